@@ -154,6 +154,13 @@ public class SipConfigManager {
      * @see #setPreferenceFloatValue(Context, String, Float)
      */
     public static final String SND_BT_SPEAKER_LEVEL = "snd_bt_speaker_level";
+    /**
+     * Period, in milliseconds, of the sampling of sound levels while a sound
+     * level meter is displayed.
+     * 
+     * @see #setPreferenceIntegerValue(Context, String, Integer)
+     */
+    public static final String LEVEL_METER_PERIOD = "level_meter_period";
     /**
      * This option is not used anymore because requires multiple working thread
      * that is not suitable for mobility mode. <br/>
@@ -853,6 +860,16 @@ public class SipConfigManager {
      * @see #setPreferenceIntegerValue(Context, String, Integer)
      */
     public static final String TSX_TD_TIMEOUT = "tsx_td_timeout";
+
+    /**
+     * Slack window for pjsip timers, in milliseconds.<br/>
+     * Timers due inside this window are fired together in one wake up.
+     * A timer is never fired earlier than a quarter of its interval. 0 to
+     * disable batching.
+     * 
+     * @see #setPreferenceIntegerValue(Context, String, Integer)
+     */
+    public static final String TIMERS_SLACK_WINDOW = "timers_slack_window";
     
     
     /**
@@ -985,6 +1002,24 @@ public class SipConfigManager {
      */
     public static final String NETWORK_ROUTES_POLLING = "network_route_polling";
     
+    /**
+     * Max number of registrations running at the same time toward one
+     * registrar, when accounts are registered together on start or network
+     * change.
+     * 
+     * @see #setPreferenceIntegerValue(Context, String, Integer)
+     */
+    public static final String REGISTRATION_CONCURRENCY = "registration_concurrency";
+    
+    /**
+     * Window, in milliseconds, over which registrations of accounts
+     * registered together to the same registrar are spread. An account
+     * alone on its registrar is registered right away.
+     * 
+     * @see #setPreferenceIntegerValue(Context, String, Integer)
+     */
+    public static final String REGISTRATION_JITTER = "registration_jitter";
+    
     /**
      * Enable wifi for incoming calls
      * 
@@ -1122,6 +1157,22 @@ public class SipConfigManager {
      */
     public static final String DISABLE_RPORT = "disable_rport";
 
+    // CALL LOGS
+    /**
+     * Maximum number of entries kept in the call log. Older entries are
+     * removed in background. 0 to keep all entries.
+     * 
+     * @see #setPreferenceIntegerValue(Context, String, Integer)
+     */
+    public static final String CALLLOGS_MAX_ROWS = "calllogs_max_rows";
+    /**
+     * Maximum age of call log entries, in days. Older entries are removed
+     * in background. 0 to keep entries whatever their age.
+     * 
+     * @see #setPreferenceIntegerValue(Context, String, Integer)
+     */
+    public static final String CALLLOGS_MAX_AGE = "calllogs_max_age";
+
     // Enums
     /**
      * Automatic echo mode.
@@ -157,7 +157,11 @@ public final class SipManager {
      * <p>
      * Provided extras :
      * <ul>
-     * <li>{@link SipProfile#FIELD_ID} the long id of the account</li>
+     * <li>{@link #EXTRA_ACCOUNT_IDS} the ids of all accounts changed at
+     * once, one broadcast is sent for all of them</li>
+     * <li>{@link SipProfile#FIELD_ID} the long id of the account, only if a
+     * single account changed. Since API 2008, receivers must read
+     * {@link #EXTRA_ACCOUNT_IDS} to know all changed accounts.</li>
      * </ul>
      * </p>
      */
@@ -167,7 +171,11 @@ public final class SipManager {
      * <p>
      * Provided extras :
      * <ul>
-     * <li>{@link SipProfile#FIELD_ID} the long id of the account</li>
+     * <li>{@link #EXTRA_ACCOUNT_IDS} the ids of all accounts changed at
+     * once, one broadcast is sent for all of them</li>
+     * <li>{@link SipProfile#FIELD_ID} the long id of the account, only if a
+     * single account changed. Since API 2008, receivers must read
+     * {@link #EXTRA_ACCOUNT_IDS} to know all changed accounts.</li>
      * </ul>
      * </p>
      */
@@ -405,7 +413,56 @@ public final class SipManager {
             + AUTHORITY + "/"
             + FILTERS_TABLE_NAME + "/");
 
+    // Content Provider - search
+    /**
+     * Path alias for full text search over messages and call logs.
+     */
+    public static final String SEARCH_ALIAS = "search";
+    /**
+     * Content type for search results.
+     */
+    public static final String SEARCH_CONTENT_TYPE = BASE_DIR_TYPE + ".search";
+    /**
+     * Base uri for search. Should be appended with the text to search.
+     * Results are ranked messages and call logs hits with columns
+     * {@link #SEARCH_FIELD_SOURCE}, {@link #SEARCH_FIELD_SOURCE_ID},
+     * {@link #SEARCH_FIELD_TITLE}, {@link #SEARCH_FIELD_SNIPPET} and
+     * {@link #SEARCH_FIELD_DATE}. A limit query parameter can set the max
+     * number of hits.
+     */
+    public static final Uri SEARCH_URI_BASE = Uri.parse(ContentResolver.SCHEME_CONTENT + "://"
+            + AUTHORITY + "/"
+            + SEARCH_ALIAS + "/");
+    /**
+     * Table of the hit, {@link SipMessage#MESSAGES_TABLE_NAME} or
+     * {@link #CALLLOGS_TABLE_NAME}.
+     */
+    public static final String SEARCH_FIELD_SOURCE = "source";
+    /**
+     * Id of the message or call log hit.
+     */
+    public static final String SEARCH_FIELD_SOURCE_ID = "source_id";
+    /**
+     * Remote contact of the message or call log hit.
+     */
+    public static final String SEARCH_FIELD_TITLE = "title";
+    /**
+     * Part of the hit text around matching terms, terms enclosed in &lt;b&gt;
+     * tags.
+     */
+    public static final String SEARCH_FIELD_SNIPPET = "snippet";
+    /**
+     * Date of the message or call log hit.
+     */
+    public static final String SEARCH_FIELD_DATE = "date";
+
     // EXTRAS
+    /**
+     * Extra key for the long array of account ids of account and
+     * registration change broadcasts, all accounts changed together.
+     * Always set since API 2008.
+     */
+    public static final String EXTRA_ACCOUNT_IDS = "account_ids";
     /**
      * Extra key to contains infos about a sip call.<br/>
      * @see SipCallSession
@@ -465,6 +522,17 @@ public final class SipManager {
      * Constant for network errors return
      */
     public static final int ERROR_CURRENT_NETWORK = 10;
+    /**
+     * Constant for requests the sip stack failed, or dropped since it did not
+     * start them in time
+     */
+    public static final int ERROR_NOT_PROCESSED = 11;
+    /**
+     * Constant for requests the sip stack is still processing when the caller
+     * stops waiting. The request may still succeed, use the asynchronous
+     * method to know its result. Since API 2009.
+     */
+    public static final int ERROR_PENDING = 12;
 
     /**
      * Possible presence status.
@@ -497,7 +565,7 @@ public final class SipManager {
      * Major version x 1000 + minor version. <br/>
      * Major version are backward compatible.
      */
-    public static final int CURRENT_API = 2004;
+    public static final int CURRENT_API = 2009;
 
     /**
      * Ensure capability of the remote sip service to reply our requests <br/>
@@ -22,11 +22,9 @@
 package com.csipsimple.backup;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.text.format.DateFormat;
 
 import com.csipsimple.api.SipManager;
@@ -48,7 +46,9 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 public final class SipProfileJson {
@@ -196,7 +196,12 @@ public final class SipProfileJson {
     }
 
     // --- RESTORE PART --- //
-    private static boolean restoreSipProfile(JSONObject jsonObj, ContentResolver cr) {
+    /**
+     * Read a saved profile and its filters. Rows are added to lists to be
+     * inserted in one batch.
+     */
+    private static boolean restoreSipProfile(JSONObject jsonObj, List<ContentValues> accountsCv,
+            List<ContentValues> filtersCv) {
         // Restore accounts
         Columns cols;
         ContentValues cv;
@@ -205,10 +210,10 @@ public final class SipProfileJson {
                 DBProvider.ACCOUNT_FULL_PROJECTION_TYPES);
         cv = cols.jsonToContentValues(jsonObj);
 
+        // Saved id is kept by the provider on insert
         long profileId = cv.getAsLong(SipProfile.FIELD_ID);
         if(profileId >= 0) {
-            Uri insertedUri = cr.insert(SipProfile.ACCOUNT_URI, cv);
-            profileId = ContentUris.parseId(insertedUri);
+            accountsCv.add(cv);
         }
         // TODO : else restore call handler in private db
         
@@ -223,7 +228,7 @@ public final class SipProfileJson {
                 // Log.d(THIS_FILE, "restoring "+filterObj.toString(4));
                 cv = cols.jsonToContentValues(filterObj);
                 cv.put(Filter.FIELD_ACCOUNT, profileId);
-                cr.insert(SipManager.FILTER_URI, cv);
+                filtersCv.add(cv);
             }
         } catch (JSONException e) {
             Log.e(THIS_FILE, "Error while restoring filters", e);
@@ -303,13 +308,20 @@ public final class SipProfileJson {
         cr.delete(SipManager.FILTER_URI, "1", null);
 
         // Add each accounts
+        List<ContentValues> accountsCv = new ArrayList<ContentValues>();
+        List<ContentValues> filtersCv = new ArrayList<ContentValues>();
         for (int i = 0; i < accounts.length(); i++) {
             try {
                 JSONObject account = accounts.getJSONObject(i);
-                restoreSipProfile(account, cr);
+                restoreSipProfile(account, accountsCv, filtersCv);
             } catch (JSONException e) {
                 Log.e(THIS_FILE, "Unable to parse item " + i, e);
             }
         }
+        // One transaction and one change broadcast for all accounts
+        cr.bulkInsert(SipProfile.ACCOUNT_URI,
+                accountsCv.toArray(new ContentValues[accountsCv.size()]));
+        cr.bulkInsert(SipManager.FILTER_URI,
+                filtersCv.toArray(new ContentValues[filtersCv.size()]));
     }
 }
@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.csipsimple.api.SipProfile;
+import com.csipsimple.api.SipProfileState;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registration status of accounts, backing
+ * {@link SipProfile#ACCOUNT_STATUS_URI}.<br/>
+ * States are kept in an immutable versioned snapshot replaced on each write,
+ * so readers never lock. Code running in the process of the provider (the
+ * sip stack) reads the snapshot directly with {@link #getLocal()}. Other
+ * processes query the provider, which builds cursors from rows computed once
+ * per snapshot version.
+ */
+public final class AccountStatusStore {
+
+    /**
+     * Columns of the status cursors
+     */
+    static final String[] COLUMNS = new String[] {
+            SipProfileState.ACCOUNT_ID,
+            SipProfileState.PJSUA_ID,
+            SipProfileState.WIZARD,
+            SipProfileState.ACTIVE,
+            SipProfileState.STATUS_CODE,
+            SipProfileState.STATUS_TEXT,
+            SipProfileState.ADDED_STATUS,
+            SipProfileState.EXPIRES,
+            SipProfileState.DISPLAY_NAME,
+            SipProfileState.PRIORITY,
+            SipProfileState.REG_URI
+    };
+
+    /**
+     * Immutable state of all accounts added to the stack. States must not
+     * be modified.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final Map<Long, SipProfileState> states;
+        // Cursor rows, built on first query of this version
+        private Map<Long, Object[]> rows;
+
+        private Snapshot(long aVersion, Map<Long, SipProfileState> aStates) {
+            version = aVersion;
+            states = aStates;
+        }
+
+        /**
+         * @return version of the snapshot, increased on each change
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @param accountId database id of the account
+         * @return the state of the account, null if not added to the stack
+         */
+        public SipProfileState get(long accountId) {
+            return states.get(accountId);
+        }
+
+        /**
+         * @return states of all accounts added to the stack
+         */
+        public Collection<SipProfileState> getAll() {
+            return states.values();
+        }
+
+        private synchronized Map<Long, Object[]> getRows() {
+            if (rows == null) {
+                Map<Long, Object[]> newRows = new LinkedHashMap<Long, Object[]>();
+                for (Map.Entry<Long, SipProfileState> entry : states.entrySet()) {
+                    ContentValues cv = entry.getValue().getAsContentValue();
+                    Object[] row = new Object[COLUMNS.length];
+                    for (int i = 0; i < COLUMNS.length; i++) {
+                        row[i] = cv.get(COLUMNS[i]);
+                    }
+                    newRows.put(entry.getKey(), row);
+                }
+                rows = newRows;
+            }
+            return rows;
+        }
+    }
+
+    private static AccountStatusStore instance;
+
+    private volatile Snapshot snapshot = new Snapshot(0,
+            Collections.<Long, SipProfileState> emptyMap());
+    // Serialize writers, readers don't lock
+    private final Object writeLock = new Object();
+
+    private AccountStatusStore() {
+    }
+
+    /**
+     * Create the store of this process. Called by the provider only.
+     */
+    static synchronized AccountStatusStore attach() {
+        if (instance == null) {
+            instance = new AccountStatusStore();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the store if the provider runs in this process.
+     *
+     * @return the store, or null if status must be queried through
+     *         {@link SipProfile#ACCOUNT_STATUS_URI}
+     */
+    public static synchronized AccountStatusStore getLocal() {
+        return instance;
+    }
+
+    /**
+     * @return the current states, never null
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Merge values into the state of an account, creating it if needed.
+     *
+     * @return the new state
+     */
+    SipProfileState put(long accountId, ContentValues values) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            SipProfileState ps = new SipProfileState();
+            SipProfileState old = current.states.get(accountId);
+            if (old != null) {
+                ps.createFromContentValue(old.getAsContentValue());
+            }
+            ps.createFromContentValue(values);
+            ps.setDatabaseId((int) accountId);
+            Map<Long, SipProfileState> states = new LinkedHashMap<Long, SipProfileState>(
+                    current.states);
+            states.put(accountId, ps);
+            snapshot = new Snapshot(current.version + 1, Collections.unmodifiableMap(states));
+            return ps;
+        }
+    }
+
+    /**
+     * Remove the state of an account.
+     */
+    void remove(long accountId) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            if (!current.states.containsKey(accountId)) {
+                return;
+            }
+            Map<Long, SipProfileState> states = new LinkedHashMap<Long, SipProfileState>(
+                    current.states);
+            states.remove(accountId);
+            snapshot = new Snapshot(current.version + 1, Collections.unmodifiableMap(states));
+        }
+    }
+
+    /**
+     * Remove all states.
+     *
+     * @return ids of accounts that had a state
+     */
+    List<Long> clear() {
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            List<Long> removed = new ArrayList<Long>(current.states.keySet());
+            snapshot = new Snapshot(current.version + 1,
+                    Collections.<Long, SipProfileState> emptyMap());
+            return removed;
+        }
+    }
+
+    /**
+     * Build a cursor over the current states.
+     *
+     * @param accountId the account to get, or {@link SipProfile#INVALID_ID}
+     *            for all accounts
+     * @return the cursor, null if there is no matching state
+     */
+    Cursor getCursor(long accountId) {
+        Map<Long, Object[]> rows = snapshot.getRows();
+        if (accountId != SipProfile.INVALID_ID) {
+            Object[] row = rows.get(accountId);
+            if (row == null) {
+                return null;
+            }
+            MatrixCursor cursor = new MatrixCursor(COLUMNS, 1);
+            cursor.addRow(row);
+            return cursor;
+        }
+        if (rows.isEmpty()) {
+            return null;
+        }
+        MatrixCursor cursor = new MatrixCursor(COLUMNS, rows.size());
+        for (Object[] row : rows.values()) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
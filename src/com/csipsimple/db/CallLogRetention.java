@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.db;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.provider.CallLog;
+
+import com.csipsimple.api.SipConfigManager;
+import com.csipsimple.api.SipManager;
+import com.csipsimple.utils.Log;
+import com.csipsimple.utils.PreferencesCache;
+
+/**
+ * Retention of the call log.<br/>
+ * Inserts only update an in memory row count. Once the count goes above a
+ * high water mark, or when the age limit was not checked for a while, a trim
+ * is scheduled on a background thread, a few seconds later so that it does
+ * not run while the call is torn down. The trim relies on the index on the
+ * date column and brings the table back to the configured maximum.
+ */
+class CallLogRetention {
+
+    private static final String THIS_FILE = "CallLogRetention";
+
+    // Let the call end before touching the table again
+    private static final long TRIM_DELAY = 5000;
+    // Check age of entries at most that often
+    private static final long AGE_CHECK_INTERVAL = 6 * 60 * 60 * 1000;
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    // Entries allowed above the maximum before a trim, at least
+    private static final int MIN_HIGH_WATER_MARGIN = 20;
+
+    private static final String TRIM_OLDEST_WHERE = CallLog.Calls._ID + " IN " +
+            "(SELECT " + CallLog.Calls._ID + " FROM " + SipManager.CALLLOGS_TABLE_NAME +
+            " ORDER BY " + CallLog.Calls.DEFAULT_SORT_ORDER + " LIMIT -1 OFFSET ?)";
+    private static final String TRIM_AGE_WHERE = CallLog.Calls.DATE + " < ?";
+
+    private final Context context;
+    private final SQLiteOpenHelper openHelper;
+    private HandlerThread handlerThread;
+    private Handler handler;
+
+    // Guarded by this
+    private int rowCount = -1;
+    private int highWaterMark = -1;
+    private long lastTrim = 0;
+    private boolean trimScheduled = false;
+
+    private final Runnable trimTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CallLogRetention.this) {
+                trimScheduled = false;
+            }
+            try {
+                trim();
+            } catch (SQLException e) {
+                Log.e(THIS_FILE, "Unable to trim call logs", e);
+            }
+        }
+    };
+
+    CallLogRetention(Context aContext, SQLiteOpenHelper aOpenHelper) {
+        context = aContext;
+        openHelper = aOpenHelper;
+    }
+
+    /**
+     * Must be called after each call log insert. Does no database access.
+     */
+    void onRowInserted() {
+        synchronized (this) {
+            if (rowCount >= 0) {
+                rowCount++;
+            }
+            if (trimScheduled) {
+                return;
+            }
+            boolean countOk = rowCount >= 0 && (highWaterMark <= 0 || rowCount <= highWaterMark);
+            boolean ageOk = lastTrim > 0
+                    && SystemClock.elapsedRealtime() - lastTrim < AGE_CHECK_INTERVAL;
+            if (countOk && ageOk) {
+                return;
+            }
+            trimScheduled = true;
+        }
+        getHandler().postDelayed(trimTask, TRIM_DELAY);
+    }
+
+    private synchronized Handler getHandler() {
+        if (handler == null) {
+            handlerThread = new HandlerThread("CallLogRetention");
+            handlerThread.start();
+            handler = new Handler(handlerThread.getLooper());
+        }
+        return handler;
+    }
+
+    private void trim() {
+        PreferencesCache prefs = PreferencesCache.getInstance(context);
+        int maxRows = prefs.getPreferenceIntegerValue(SipConfigManager.CALLLOGS_MAX_ROWS, 500);
+        int maxAge = prefs.getPreferenceIntegerValue(SipConfigManager.CALLLOGS_MAX_AGE, 0);
+
+        SQLiteDatabase db = openHelper.getWritableDatabase();
+        int deleted = 0;
+        if (maxAge > 0) {
+            long limit = System.currentTimeMillis() - maxAge * DAY;
+            deleted += db.delete(SipManager.CALLLOGS_TABLE_NAME, TRIM_AGE_WHERE, new String[] {
+                    Long.toString(limit)
+            });
+        }
+        int count = countRows(db);
+        if (maxRows > 0 && count > maxRows) {
+            int trimmed = db.delete(SipManager.CALLLOGS_TABLE_NAME, TRIM_OLDEST_WHERE,
+                    new String[] {
+                        Integer.toString(maxRows)
+                    });
+            count -= trimmed;
+            deleted += trimmed;
+        }
+
+        synchronized (this) {
+            // An insert racing with the trim may be missed, next trim recounts
+            rowCount = count;
+            highWaterMark = maxRows > 0 ? maxRows + Math.max(MIN_HIGH_WATER_MARGIN, maxRows / 10) : 0;
+            lastTrim = SystemClock.elapsedRealtime();
+        }
+        if (deleted > 0) {
+            Log.d(THIS_FILE, "Removed " + deleted + " call log entries");
+            context.getContentResolver().notifyChange(SipManager.CALLLOG_URI, null);
+            context.getContentResolver().notifyChange(SipManager.SEARCH_URI_BASE, null);
+        }
+    }
+
+    private static int countRows(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement("SELECT COUNT(*) FROM "
+                + SipManager.CALLLOGS_TABLE_NAME);
+        try {
+            return (int) statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -26,6 +26,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.CallLog;
+import android.text.TextUtils;
 
 import com.csipsimple.api.SipManager;
 import com.csipsimple.api.SipMessage;
@@ -46,7 +47,7 @@ public class DBAdapter {
 
 	public static class DatabaseHelper extends SQLiteOpenHelper {
 		
-		private static final int DATABASE_VERSION = 40;
+		private static final int DATABASE_VERSION = 45;
 
 		// Creation sql command
 		private static final String TABLE_ACCOUNT_CREATE = "CREATE TABLE IF NOT EXISTS "
@@ -176,6 +177,35 @@ public class DBAdapter {
 		
 		
 		
+		private final static String TABLE_THREADS_CREATE = "CREATE TABLE IF NOT EXISTS "
+			+ MessageThreads.THREADS_TABLE_NAME
+			+ " ("
+				+ "_id"								+ " INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ MessageThreads.FIELD_REMOTE		+ " TEXT UNIQUE,"
+				+ SipMessage.FIELD_FROM				+ " TEXT,"
+				+ SipMessage.FIELD_FROM_FULL		+ " TEXT,"
+				+ SipMessage.FIELD_TO				+ " TEXT,"
+				+ SipMessage.FIELD_BODY				+ " TEXT,"
+				+ SipMessage.FIELD_DATE				+ " INTEGER,"
+				+ MessageThreads.FIELD_UNREAD		+ " INTEGER DEFAULT 0,"
+				+ MessageThreads.FIELD_COUNTER		+ " INTEGER DEFAULT 0"
+			+");";
+		
+		// Indexes for call log default sort order and retention, filters of an
+		// account in priority order, and conversation threads lookups
+		private final static String[] INDEXES_CREATE = new String[] {
+			createIndex(SipManager.CALLLOGS_TABLE_NAME, CallLog.Calls.DATE),
+			createIndex(SipManager.CALLLOGS_TABLE_NAME, SipManager.CALLLOG_PROFILE_ID_FIELD,
+					CallLog.Calls.DATE),
+			createIndex(SipManager.FILTERS_TABLE_NAME, Filter.FIELD_ACCOUNT, Filter.FIELD_PRIORITY),
+			createIndex(SipMessage.MESSAGES_TABLE_NAME, SipMessage.FIELD_FROM, SipMessage.FIELD_TO,
+					SipMessage.FIELD_DATE),
+			// Second branch of the thread selection is on receiver only
+			createIndex(SipMessage.MESSAGES_TABLE_NAME, SipMessage.FIELD_TO, SipMessage.FIELD_DATE),
+			// Conversations list is sorted on last message date
+			createIndex(MessageThreads.THREADS_TABLE_NAME, SipMessage.FIELD_DATE),
+		};
+		
 		DatabaseHelper(Context context) {
 			super(context, SipManager.AUTHORITY, null, DATABASE_VERSION);
 		}
@@ -186,6 +216,11 @@ public class DBAdapter {
 			db.execSQL(TABLE_CALLLOGS_CREATE);
 			db.execSQL(TABLE_FILTERS_CREATE);
 			db.execSQL(TABLE_MESSAGES_CREATE);
+			db.execSQL(TABLE_THREADS_CREATE);
+			SearchIndex.create(db);
+			for(String indexCreate : INDEXES_CREATE) {
+				db.execSQL(indexCreate);
+			}
 		}
 
 		@Override
@@ -445,6 +480,26 @@ public class DBAdapter {
                 }catch(SQLiteException e) {
                     Log.e(THIS_FILE, "Upgrade fail... maybe a crappy rom...", e);
                 }
+            }
+            if(oldVersion < 43) {
+                try {
+                    // Materialize existing conversations
+                    db.execSQL(TABLE_THREADS_CREATE);
+                    MessageThreads.rebuild(db);
+                    Log.d(THIS_FILE, "Upgrade done");
+                }catch(SQLiteException e) {
+                    Log.e(THIS_FILE, "Upgrade fail... maybe a crappy rom...", e);
+                }
+            }
+            if(oldVersion < 44) {
+                try {
+                    // Index existing messages and call logs
+                    SearchIndex.create(db);
+                    SearchIndex.rebuild(db);
+                    Log.d(THIS_FILE, "Upgrade done");
+                }catch(SQLiteException e) {
+                    Log.e(THIS_FILE, "Upgrade fail... maybe a crappy rom...", e);
+                }
             }
 			onCreate(db);
 		}
@@ -479,5 +534,10 @@ public class DBAdapter {
 	    db.execSQL("ALTER TABLE " + table + " ADD "+ field + " " + type);
 	}
 	
+	private static String createIndex(String table, String... fields) {
+	    return "CREATE INDEX IF NOT EXISTS " + table + "_" + TextUtils.join("_", fields) + "_idx ON "
+	            + table + " (" + TextUtils.join(", ", fields) + ");";
+	}
+	
 
 }
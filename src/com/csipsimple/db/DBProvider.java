@@ -21,12 +21,13 @@
 package com.csipsimple.db;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -43,19 +44,18 @@ import com.csipsimple.api.SipProfileState;
 import com.csipsimple.db.DBAdapter.DatabaseHelper;
 import com.csipsimple.models.Filter;
 import com.csipsimple.utils.Log;
-import com.csipsimple.utils.backup.BackupWrapper;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 public class DBProvider extends ContentProvider {
 	
 	private DatabaseHelper mOpenHelper;
+	private CallLogRetention callLogRetention;
+	private NotificationCoalescer notificationCoalescer;
 	private static final String UNKNOWN_URI_LOG = "Unknown URI ";
     
 	// Ids for matcher
@@ -65,6 +65,7 @@ public class DBProvider extends ContentProvider {
     private static final int FILTERS = 7, FILTERS_ID = 8;
     private static final int MESSAGES = 9, MESSAGES_ID = 10;
     private static final int THREADS = 11, THREADS_ID = 12;
+    private static final int SEARCH = 13;
     
     /**
      * A UriMatcher instance
@@ -86,6 +87,7 @@ public class DBProvider extends ContentProvider {
         URI_MATCHER.addURI(SipManager.AUTHORITY, SipMessage.MESSAGES_TABLE_NAME + "/#", MESSAGES_ID);
         URI_MATCHER.addURI(SipManager.AUTHORITY, SipMessage.THREAD_ALIAS, THREADS);
         URI_MATCHER.addURI(SipManager.AUTHORITY, SipMessage.THREAD_ALIAS + "/*", THREADS_ID);
+        URI_MATCHER.addURI(SipManager.AUTHORITY, SipManager.SEARCH_ALIAS + "/*", SEARCH);
     }
 	
 
@@ -226,8 +228,8 @@ public class DBProvider extends ContentProvider {
 
 	private static final String THIS_FILE = "DBProvider";
 
-	// Map active account id (id for sql settings database) with SipProfileState that contains stack id and other status infos
-	private final Map<Long, ContentValues> profilesStatus = new HashMap<Long, ContentValues>();
+	// Active account id (id for sql settings database) with SipProfileState that contains stack id and other status infos
+	private AccountStatusStore profilesStatus;
 	
 
 	@Override
@@ -257,6 +259,8 @@ public class DBProvider extends ContentProvider {
                 return SipMessage.MESSAGE_CONTENT_TYPE;
             case THREADS_ID:
                 return SipMessage.MESSAGE_CONTENT_ITEM_TYPE;
+            case SEARCH:
+                return SipManager.SEARCH_CONTENT_TYPE;
             default:
                 throw new IllegalArgumentException(UNKNOWN_URI_LOG + uri);
         }
@@ -265,12 +269,15 @@ public class DBProvider extends ContentProvider {
 	@Override
 	public boolean onCreate() {
 		mOpenHelper = new DatabaseHelper(getContext());
+		callLogRetention = new CallLogRetention(getContext(), mOpenHelper);
+		notificationCoalescer = new NotificationCoalescer(getContext());
+		profilesStatus = AccountStatusStore.attach();
         // Assumes that any failures will be reported by a thrown exception.
         return true;
 	}
 	
 
-    private static final String MESSAGES_THREAD_SELECTION = "("+ SipMessage.FIELD_FROM+"=? AND "+
+    static final String MESSAGES_THREAD_SELECTION = "("+ SipMessage.FIELD_FROM+"=? AND "+
         SipMessage.FIELD_TYPE+" IN ("+
         Integer.toString(SipMessage.MESSAGE_TYPE_INBOX)
     +") )"
@@ -294,7 +301,7 @@ public class DBProvider extends ContentProvider {
         List<String> possibles = getPossibleFieldsForType(matched);
         checkSelection(possibles, where);
         
-        ArrayList<Long> oldRegistrationsAccounts = null;
+        List<Long> oldRegistrationsAccounts = null;
         
         switch (matched) {
             case ACCOUNTS:
@@ -319,16 +326,16 @@ public class DBProvider extends ContentProvider {
                 count = db.delete(SipManager.FILTERS_TABLE_NAME, finalWhere, whereArgs);
                 break;
             case MESSAGES:
-                count = db.delete(SipMessage.MESSAGES_TABLE_NAME, where, whereArgs);
+                count = deleteMessages(db, where, whereArgs);
                 break;
             case MESSAGES_ID:
                 finalWhere = DatabaseUtilsCompat.concatenateWhere(SipMessage.FIELD_ID + " = " + ContentUris.parseId(uri), where);
-                count = db.delete(SipMessage.MESSAGES_TABLE_NAME, finalWhere, whereArgs);
+                count = deleteMessages(db, finalWhere, whereArgs);
                 break;
             case THREADS_ID:
                 String from = uri.getLastPathSegment();
                 if(!TextUtils.isEmpty(from)) {
-                    count = db.delete(SipMessage.MESSAGES_TABLE_NAME, MESSAGES_THREAD_SELECTION, new String[] {
+                    count = deleteMessages(db, MESSAGES_THREAD_SELECTION, new String[] {
                             from, from
                     });
                 }else {
@@ -337,25 +344,18 @@ public class DBProvider extends ContentProvider {
                 regUri = SipMessage.MESSAGE_URI;
                 break;
             case ACCOUNTS_STATUS:
-                oldRegistrationsAccounts = new ArrayList<Long>();
-            	synchronized (profilesStatus) {
-            	    for(Long accId : profilesStatus.keySet()) {
-            	        oldRegistrationsAccounts.add(accId);
-            	    }
-        			profilesStatus.clear();
-        		}
+                oldRegistrationsAccounts = profilesStatus.clear();
             	break;
             case ACCOUNTS_STATUS_ID:
             	long id = ContentUris.parseId(uri);
-            	synchronized (profilesStatus) {
-        			profilesStatus.remove(id);
-        		}
+            	profilesStatus.remove(id);
             	break;
             default:
                 throw new IllegalArgumentException(UNKNOWN_URI_LOG + uri);
         }
 
-        getContext().getContentResolver().notifyChange(regUri, null);
+        notifyChange(regUri);
+        notifySearchChange(matched);
 
         if(matched == ACCOUNTS_ID || matched == ACCOUNTS_STATUS_ID) {
         	long rowId = ContentUris.parseId(uri);
@@ -368,7 +368,7 @@ public class DBProvider extends ContentProvider {
         	}
         }
         if (matched == FILTERS || matched == FILTERS_ID) {
-            Filter.resetCache();
+            resetFilters();
         }
         if(matched == ACCOUNTS_STATUS && oldRegistrationsAccounts != null) {
             for(Long accId : oldRegistrationsAccounts) {
@@ -411,19 +411,9 @@ public class DBProvider extends ContentProvider {
 		    break;
 		case ACCOUNTS_STATUS_ID:
 			long id = ContentUris.parseId(uri);
-			synchronized (profilesStatus){
-				SipProfileState ps = new SipProfileState();
-				if(profilesStatus.containsKey(id)) {
-					ContentValues currentValues = profilesStatus.get(id);
-					ps.createFromContentValue(currentValues);
-				}
-				ps.createFromContentValue(initialValues);
-				ContentValues cv = ps.getAsContentValue();
-				cv.put(SipProfileState.ACCOUNT_ID, id);
-				profilesStatus.put(id, cv);
-				Log.d(THIS_FILE, "Added "+cv);
-			}
-            getContext().getContentResolver().notifyChange(uri, null);
+			SipProfileState added = profilesStatus.put(id, initialValues);
+			Log.d(THIS_FILE, "Added " + added.getAsContentValue());
+            notifyChange(uri);
 			return uri;
 		default:
 			break;
@@ -443,28 +433,32 @@ public class DBProvider extends ContentProvider {
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        long rowId = db.insert(matchedTable, null, values);
+        long rowId;
+        if(matched == MESSAGES || matched == MESSAGES_ID) {
+            rowId = insertMessage(db, values);
+        }else {
+            rowId = db.insert(matchedTable, null, values);
+        }
 
         // If the insert succeeded, the row ID exists.
         if (rowId >= 0) {
         	// TODO : for inserted account register it here
         	
             Uri retUri = ContentUris.withAppendedId(baseInsertedUri, rowId);
-            getContext().getContentResolver().notifyChange(retUri, null);
+            notifyChange(retUri);
+            notifySearchChange(matched);
             
             if(matched == ACCOUNTS || matched == ACCOUNTS_ID) {
             	broadcastAccountChange(rowId);
             }
             if(matched == CALLLOGS || matched == CALLLOGS_ID) {
-            	db.delete(SipManager.CALLLOGS_TABLE_NAME, CallLog.Calls._ID + " IN " +
-            			"(SELECT "+CallLog.Calls._ID+" FROM "+SipManager.CALLLOGS_TABLE_NAME+" ORDER BY " + 
-            				CallLog.Calls.DEFAULT_SORT_ORDER + " LIMIT -1 OFFSET 500)", null);
+                callLogRetention.onRowInserted();
             }
             if(matched == ACCOUNTS_STATUS || matched == ACCOUNTS_STATUS_ID) {
                 broadcastRegistrationChange(rowId);
             }
             if (matched == FILTERS || matched == FILTERS_ID) {
-                Filter.resetCache();
+                resetFilters();
             }
             
             return retUri;
@@ -509,7 +503,6 @@ public class DBProvider extends ContentProvider {
         checkSelection(possibles, selection);
 
     	Cursor c;
-    	long id;
         switch (type) {
             case ACCOUNTS:
                 qb.setTables(SipProfile.ACCOUNTS_TABLE_NAME);
@@ -556,30 +549,12 @@ public class DBProvider extends ContentProvider {
                 finalSelectionArgs = DatabaseUtilsCompat.appendSelectionArgs(selectionArgs, new String[] { uri.getLastPathSegment() });
                 break;
             case THREADS:
-                qb.setTables(SipMessage.MESSAGES_TABLE_NAME);
+                // Conversations are maintained with messages changes
+                qb.setTables(MessageThreads.THREADS_TABLE_NAME);
                 if(sortOrder == null) {
                     finalSortOrder = SipMessage.FIELD_DATE + " DESC";
                 }
-                projection = new String[]{
-                    "ROWID AS _id",
-                    SipMessage.FIELD_FROM, 
-                    SipMessage.FIELD_FROM_FULL, 
-                    SipMessage.FIELD_TO, 
-                    "CASE " + 
-                            "WHEN " + SipMessage.FIELD_FROM + "='SELF' THEN "
-                                + SipMessage.FIELD_TO + 
-                            " WHEN " + SipMessage.FIELD_FROM + "!='SELF' THEN " 
-                                + SipMessage.FIELD_FROM
-                    + " END AS message_ordering",
-                    SipMessage.FIELD_BODY, 
-                    "MAX(" + SipMessage.FIELD_DATE + ") AS " + SipMessage.FIELD_DATE,
-                    "MIN(" + SipMessage.FIELD_READ + ") AS " + SipMessage.FIELD_READ,
-                    //SipMessage.FIELD_READ,
-                    "COUNT(" + SipMessage.FIELD_DATE + ") AS counter"
-                };
-                //qb.appendWhere(SipMessage.FIELD_TYPE + " in (" + SipMessage.MESSAGE_TYPE_INBOX
-                //        + "," + SipMessage.MESSAGE_TYPE_SENT + ")");
-                finalGrouping = "message_ordering";
+                projection = MessageThreads.THREADS_PROJECTION;
                 regUri = SipMessage.MESSAGE_URI;
                 break;
             case THREADS_ID:
@@ -603,29 +578,22 @@ public class DBProvider extends ContentProvider {
                 finalSelectionArgs = DatabaseUtilsCompat.appendSelectionArgs(selectionArgs, new String[] { from, from });
                 regUri = SipMessage.MESSAGE_URI;
                 break;
+            case SEARCH:
+                c = SearchIndex.search(mOpenHelper.getReadableDatabase(), uri.getLastPathSegment(),
+                        uri.getQueryParameter("limit"));
+                c.setNotificationUri(getContext().getContentResolver(), SipManager.SEARCH_URI_BASE);
+                return c;
             case ACCOUNTS_STATUS:
-            	synchronized (profilesStatus) {
-            		ContentValues[] cvs = new ContentValues[profilesStatus.size()];
-            		int i = 0;
-            		for(ContentValues  ps : profilesStatus.values()) {
-            			cvs[i] = ps;
-            			i++;
-            		}
-            		c = getCursor(cvs);
-				}
+            	c = profilesStatus.getCursor(SipProfile.INVALID_ID);
             	if(c != null) {
             		c.setNotificationUri(getContext().getContentResolver(), uri);
             	}
                 return c;
             case ACCOUNTS_STATUS_ID:
-            	id = ContentUris.parseId(uri);
-            	synchronized (profilesStatus) {
-            		ContentValues cv = profilesStatus.get(id);
-            		if(cv == null) {
-            			return null;
-            		}
-            		c = getCursor(new ContentValues[] {cv});
-				}
+            	c = profilesStatus.getCursor(ContentUris.parseId(uri));
+            	if(c == null) {
+            		return null;
+            	}
                 c.setNotificationUri(getContext().getContentResolver(), uri);
                 return c;
             default:
@@ -674,33 +642,24 @@ public class DBProvider extends ContentProvider {
                 count = db.update(SipManager.FILTERS_TABLE_NAME, values, finalWhere, whereArgs);
                 break;
             case MESSAGES:
-                count = db.update(SipMessage.MESSAGES_TABLE_NAME, values, where, whereArgs);
+                count = updateMessages(db, values, where, whereArgs);
                 break;
             case MESSAGES_ID:
                 finalWhere = DatabaseUtilsCompat.concatenateWhere(SipMessage.FIELD_ID + " = " + ContentUris.parseId(uri), where);
-                count = db.update(SipMessage.MESSAGES_TABLE_NAME, values, where, whereArgs);
+                count = updateMessages(db, values, finalWhere, whereArgs);
                 break;
             case ACCOUNTS_STATUS_ID:
     			long id = ContentUris.parseId(uri);
-    			synchronized (profilesStatus){
-    				SipProfileState ps = new SipProfileState();
-    				if(profilesStatus.containsKey(id)) {
-    					ContentValues currentValues = profilesStatus.get(id);
-    					ps.createFromContentValue(currentValues);
-    				}
-    				ps.createFromContentValue(values);
-    				ContentValues cv = ps.getAsContentValue();
-    				cv.put(SipProfileState.ACCOUNT_ID, id);
-    				profilesStatus.put(id, cv);
-    				Log.d(THIS_FILE, "Updated "+cv);
-    			}
+    			SipProfileState updated = profilesStatus.put(id, values);
+    			Log.d(THIS_FILE, "Updated " + updated.getAsContentValue());
     			count = 1;
     			break;
             default:
                 throw new IllegalArgumentException(UNKNOWN_URI_LOG + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
+        notifySearchChange(matched);
 
         long rowId = -1;
         if (matched == ACCOUNTS_ID || matched == ACCOUNTS_STATUS_ID) {
@@ -725,7 +684,7 @@ public class DBProvider extends ContentProvider {
             }
         }
         if (matched == FILTERS || matched == FILTERS_ID) {
-            Filter.resetCache();
+            resetFilters();
         }
 	
         return count;
@@ -735,45 +694,222 @@ public class DBProvider extends ContentProvider {
 	
 	
 	/**
-	 * Build a {@link Cursor} with a single row that contains all values
-	 * provided through the given {@link ContentValues}.
+	 * Search results depend on messages and call logs
 	 */
-	private Cursor getCursor(ContentValues[] contentValues) {
-		if(contentValues.length > 0) {
-	        final Set<Entry<String, Object>> valueSet = contentValues[0].valueSet();
-	        int colSize = valueSet.size();
-	        final String[] keys = new String[colSize];
+	private void notifySearchChange(int matched) {
+	    switch (matched) {
+	        case CALLLOGS:
+	        case CALLLOGS_ID:
+	        case MESSAGES:
+	        case MESSAGES_ID:
+	        case THREADS_ID:
+	            notifyChange(SipManager.SEARCH_URI_BASE);
+	            break;
+	        default:
+	            break;
+	    }
+	}
+	
+	/**
+	 * Insert a message and account for it in its conversation, in one
+	 * transaction.
+	 */
+	private long insertMessage(SQLiteDatabase db, ContentValues values) {
+	    db.beginTransaction();
+	    try {
+	        long rowId = db.insert(SipMessage.MESSAGES_TABLE_NAME, null, values);
+	        if(rowId >= 0) {
+	            MessageThreads.onMessageInserted(db, values);
+	        }
+	        db.setTransactionSuccessful();
+	        return rowId;
+	    } finally {
+	        db.endTransaction();
+	    }
+	}
 	
-	        int i = 0;
-	        for (Entry<String, Object> entry : valueSet) {
-	            keys[i] = entry.getKey();
-	            i++;
+	/**
+	 * Update messages and refresh the conversations they belong to, in one
+	 * transaction.
+	 */
+	private int updateMessages(SQLiteDatabase db, ContentValues values, String where, String[] whereArgs) {
+	    if(!MessageThreads.changesThreads(values)) {
+	        // Status or type changes are not part of conversations
+	        return db.update(SipMessage.MESSAGES_TABLE_NAME, values, where, whereArgs);
+	    }
+	    db.beginTransaction();
+	    try {
+	        Set<String> remotes = null;
+	        if(!MessageThreads.changesRemote(values)) {
+	            remotes = MessageThreads.getRemotes(db, where, whereArgs);
+	        }
+	        int count = db.update(SipMessage.MESSAGES_TABLE_NAME, values, where, whereArgs);
+	        if(remotes != null) {
+	            MessageThreads.refresh(db, remotes);
+	        }else if(count > 0) {
+	            // Messages moved to other conversations
+	            MessageThreads.rebuild(db);
 	        }
+	        db.setTransactionSuccessful();
+	        return count;
+	    } finally {
+	        db.endTransaction();
+	    }
+	}
 	
-	        final MatrixCursor cursor = new MatrixCursor(keys);
-	        for (ContentValues cv : contentValues) {
-		        final Object[] values = new Object[colSize];
-		        i = 0;
-		        for (Entry<String, Object> entry : cv.valueSet()) {
-		            values[i] = entry.getValue();
-		            i++;
-		        }
-	            cursor.addRow(values);
+	/**
+	 * Delete messages and refresh the conversations they belonged to, in one
+	 * transaction.
+	 */
+	private int deleteMessages(SQLiteDatabase db, String where, String[] whereArgs) {
+	    db.beginTransaction();
+	    try {
+	        Set<String> remotes = null;
+	        if(!TextUtils.isEmpty(where)) {
+	            remotes = MessageThreads.getRemotes(db, where, whereArgs);
 	        }
-	        return cursor;
-		}
-		return null;
-    }
+	        int count = db.delete(SipMessage.MESSAGES_TABLE_NAME, where, whereArgs);
+	        if(remotes != null) {
+	            MessageThreads.refresh(db, remotes);
+	        }else {
+	            db.delete(MessageThreads.THREADS_TABLE_NAME, null, null);
+	        }
+	        db.setTransactionSuccessful();
+	        return count;
+	    } finally {
+	        db.endTransaction();
+	    }
+	}
+	
+	/**
+	 * Changes to publish when the current batch is done
+	 */
+	private static final class PendingChanges {
+	    final Set<Uri> uris = new LinkedHashSet<Uri>();
+	    final Set<Long> changedAccounts = new LinkedHashSet<Long>();
+	    final Set<Long> changedRegistrations = new LinkedHashSet<Long>();
+	    boolean filtersChanged = false;
+	}
+	
+	private final ThreadLocal<PendingChanges> pendingChanges = new ThreadLocal<PendingChanges>();
+	
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+	    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+	    PendingChanges changes = beginBatch();
+	    boolean success = false;
+	    db.beginTransaction();
+	    try {
+	        for (ContentValues cv : values) {
+	            insert(uri, cv);
+	        }
+	        db.setTransactionSuccessful();
+	        success = true;
+	    } finally {
+	        db.endTransaction();
+	        endBatch(changes, success);
+	    }
+	    return values.length;
+	}
+	
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+	        throws OperationApplicationException {
+	    SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+	    PendingChanges changes = beginBatch();
+	    boolean success = false;
+	    db.beginTransaction();
+	    try {
+	        ContentProviderResult[] results = super.applyBatch(operations);
+	        db.setTransactionSuccessful();
+	        success = true;
+	        return results;
+	    } finally {
+	        db.endTransaction();
+	        endBatch(changes, success);
+	    }
+	}
+	
+	/**
+	 * Start collecting changes of this thread instead of publishing them.
+	 * 
+	 * @return the changes to publish at the end of the batch, null if a
+	 *         batch is already running on this thread
+	 */
+	private PendingChanges beginBatch() {
+	    if (pendingChanges.get() != null) {
+	        return null;
+	    }
+	    PendingChanges changes = new PendingChanges();
+	    pendingChanges.set(changes);
+	    return changes;
+	}
+	
+	/**
+	 * Publish changes of a batch : one notification per table and all
+	 * changed accounts at once.
+	 */
+	private void endBatch(PendingChanges changes, boolean success) {
+	    if (changes == null) {
+	        // Nested in another batch
+	        return;
+	    }
+	    pendingChanges.set(null);
+	    if (!success) {
+	        return;
+	    }
+	    Set<Uri> tablesUris = new LinkedHashSet<Uri>();
+	    for (Uri uri : changes.uris) {
+	        List<String> segments = uri.getPathSegments();
+	        if (segments.size() > 1) {
+	            // Observers of rows are notified by the table uri as well
+	            uri = uri.buildUpon().path(segments.get(0)).build();
+	        }
+	        tablesUris.add(uri);
+	    }
+	    for (Uri uri : tablesUris) {
+	        notificationCoalescer.notifyChange(uri);
+	    }
+	    if (changes.filtersChanged) {
+	        Filter.resetCache();
+	    }
+	    for (Long accountId : changes.changedAccounts) {
+	        notificationCoalescer.accountChanged(accountId);
+	    }
+	    for (Long accountId : changes.changedRegistrations) {
+	        notificationCoalescer.registrationChanged(accountId);
+	    }
+	}
+	
+	private void notifyChange(Uri uri) {
+	    PendingChanges changes = pendingChanges.get();
+	    if (changes != null) {
+	        changes.uris.add(uri);
+	    } else {
+	        notificationCoalescer.notifyChange(uri);
+	    }
+	}
+	
+	private void resetFilters() {
+	    PendingChanges changes = pendingChanges.get();
+	    if (changes != null) {
+	        changes.filtersChanged = true;
+	    } else {
+	        Filter.resetCache();
+	    }
+	}
 	
 	/**
 	 * Broadcast the fact that account config has changed
 	 * @param accountId
 	 */
 	private void broadcastAccountChange(long accountId) {
-		Intent publishIntent = new Intent(SipManager.ACTION_SIP_ACCOUNT_CHANGED);
-		publishIntent.putExtra(SipProfile.FIELD_ID, accountId);
-		getContext().sendBroadcast(publishIntent);
-		BackupWrapper.getInstance(getContext()).dataChanged();
+	    PendingChanges changes = pendingChanges.get();
+	    if (changes != null) {
+	        changes.changedAccounts.add(accountId);
+	    } else {
+	        notificationCoalescer.accountChanged(accountId);
+	    }
 	}
 	
 	/**
@@ -781,10 +917,12 @@ public class DBProvider extends ContentProvider {
 	 * @param accountId the id of the account
 	 */
 	private void broadcastRegistrationChange(long accountId) {
-        Intent publishIntent = new Intent(SipManager.ACTION_SIP_REGISTRATION_CHANGED);
-        publishIntent.putExtra(SipProfile.FIELD_ID, accountId);
-        getContext().sendBroadcast(publishIntent, SipManager.PERMISSION_USE_SIP);
-	    
+	    PendingChanges changes = pendingChanges.get();
+	    if (changes != null) {
+	        changes.changedRegistrations.add(accountId);
+	    } else {
+	        notificationCoalescer.registrationChanged(accountId);
+	    }
 	}
 	
 	private static List<String> getPossibleFieldsForType(int type){
@@ -810,6 +948,9 @@ public class DBProvider extends ContentProvider {
             case THREADS_ID:
                 possibles = new ArrayList<String>();
                 break;
+            case SEARCH:
+                possibles = Arrays.asList(SearchIndex.SEARCH_PROJECTION);
+                break;
             case ACCOUNTS_STATUS:
             case ACCOUNTS_STATUS_ID:
                 possibles = new ArrayList<String>();
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.csipsimple.api.SipMessage;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Conversation threads materialized from the messages table.<br/>
+ * There is one row per remote contact with its last message, the number of
+ * messages and the number of unread messages. Rows are maintained by the
+ * provider in the same transaction as the messages changes, so that listing
+ * conversations does not have to group the whole messages table.
+ */
+final class MessageThreads {
+
+    static final String THREADS_TABLE_NAME = "threads";
+
+    /**
+     * Remote contact of the conversation, the thread key
+     */
+    static final String FIELD_REMOTE = "message_ordering";
+    /**
+     * Number of messages in the conversation
+     */
+    static final String FIELD_COUNTER = "counter";
+    /**
+     * Number of unread messages in the conversation
+     */
+    static final String FIELD_UNREAD = "unread";
+
+    /**
+     * Sql expression giving the thread key of a message row
+     */
+    private static final String REMOTE_EXPRESSION = "CASE "
+            + "WHEN " + SipMessage.FIELD_FROM + "='" + SipMessage.SELF + "' THEN "
+            + SipMessage.FIELD_TO
+            + " WHEN " + SipMessage.FIELD_FROM + "!='" + SipMessage.SELF + "' THEN "
+            + SipMessage.FIELD_FROM
+            + " END";
+
+    private static final String THREAD_MESSAGES_SELECTION = "(" + SipMessage.FIELD_FROM + "=? AND "
+            + SipMessage.FIELD_FROM + "!='" + SipMessage.SELF + "') OR ("
+            + SipMessage.FIELD_FROM + "='" + SipMessage.SELF + "' AND "
+            + SipMessage.FIELD_TO + "=?)";
+
+    // Aggregates are taken from the last message of the group
+    private static final String AGGREGATE_COLUMNS = REMOTE_EXPRESSION + ", "
+            + SipMessage.FIELD_FROM + ", "
+            + SipMessage.FIELD_FROM_FULL + ", "
+            + SipMessage.FIELD_TO + ", "
+            + SipMessage.FIELD_BODY + ", "
+            + "MAX(" + SipMessage.FIELD_DATE + "), "
+            + "SUM(CASE WHEN " + SipMessage.FIELD_READ + "=0 THEN 1 ELSE 0 END), "
+            + "COUNT(*)";
+
+    private static final String INSERT_COLUMNS = FIELD_REMOTE + ", "
+            + SipMessage.FIELD_FROM + ", "
+            + SipMessage.FIELD_FROM_FULL + ", "
+            + SipMessage.FIELD_TO + ", "
+            + SipMessage.FIELD_BODY + ", "
+            + SipMessage.FIELD_DATE + ", "
+            + FIELD_UNREAD + ", "
+            + FIELD_COUNTER;
+
+    /**
+     * Columns of the thread uri, compatible with the former grouped query
+     * on messages
+     */
+    static final String[] THREADS_PROJECTION = new String[] {
+            "_id",
+            SipMessage.FIELD_FROM,
+            SipMessage.FIELD_FROM_FULL,
+            SipMessage.FIELD_TO,
+            FIELD_REMOTE,
+            SipMessage.FIELD_BODY,
+            SipMessage.FIELD_DATE,
+            "CASE WHEN " + FIELD_UNREAD + ">0 THEN 0 ELSE 1 END AS " + SipMessage.FIELD_READ,
+            FIELD_UNREAD,
+            FIELD_COUNTER
+    };
+
+    private MessageThreads() {
+        // Static only
+    }
+
+    /**
+     * @return the remote contact of the conversation a message belongs to
+     */
+    static String getRemote(String from, String to) {
+        if (from == null) {
+            return null;
+        }
+        return SipMessage.SELF.equals(from) ? to : from;
+    }
+
+    /**
+     * Account for a newly inserted message.
+     */
+    static void onMessageInserted(SQLiteDatabase db, ContentValues values) {
+        String remote = getRemote(values.getAsString(SipMessage.FIELD_FROM),
+                values.getAsString(SipMessage.FIELD_TO));
+        if (remote == null) {
+            return;
+        }
+        Long date = values.getAsLong(SipMessage.FIELD_DATE);
+        Boolean read = values.getAsBoolean(SipMessage.FIELD_READ);
+        int unread = (read != null && !read) ? 1 : 0;
+
+        Cursor c = db.query(THREADS_TABLE_NAME, new String[] {
+                SipMessage.FIELD_DATE
+        }, FIELD_REMOTE + "=?", new String[] {
+                remote
+        }, null, null, null);
+        boolean exists = false;
+        long lastDate = 0;
+        try {
+            if (c.moveToFirst()) {
+                exists = true;
+                lastDate = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        ContentValues lastMessage = new ContentValues();
+        lastMessage.put(SipMessage.FIELD_FROM, values.getAsString(SipMessage.FIELD_FROM));
+        lastMessage.put(SipMessage.FIELD_FROM_FULL, values.getAsString(SipMessage.FIELD_FROM_FULL));
+        lastMessage.put(SipMessage.FIELD_TO, values.getAsString(SipMessage.FIELD_TO));
+        lastMessage.put(SipMessage.FIELD_BODY, values.getAsString(SipMessage.FIELD_BODY));
+        lastMessage.put(SipMessage.FIELD_DATE, date);
+
+        if (!exists) {
+            lastMessage.put(FIELD_REMOTE, remote);
+            lastMessage.put(FIELD_UNREAD, unread);
+            lastMessage.put(FIELD_COUNTER, 1);
+            db.insert(THREADS_TABLE_NAME, null, lastMessage);
+            return;
+        }
+        db.execSQL("UPDATE " + THREADS_TABLE_NAME + " SET "
+                + FIELD_COUNTER + "=" + FIELD_COUNTER + "+1, "
+                + FIELD_UNREAD + "=" + FIELD_UNREAD + "+" + unread
+                + " WHERE " + FIELD_REMOTE + "=?", new Object[] {
+                remote
+        });
+        if (date != null && date >= lastDate) {
+            db.update(THREADS_TABLE_NAME, lastMessage, FIELD_REMOTE + "=?", new String[] {
+                    remote
+            });
+        }
+    }
+
+    /**
+     * Get the conversations of the messages matching a selection. Must be
+     * called before these messages are updated or deleted.
+     */
+    static Set<String> getRemotes(SQLiteDatabase db, String where, String[] whereArgs) {
+        Set<String> remotes = new HashSet<String>();
+        Cursor c = db.query(true, SipMessage.MESSAGES_TABLE_NAME, new String[] {
+                REMOTE_EXPRESSION
+        }, where, whereArgs, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                String remote = c.getString(0);
+                if (remote != null) {
+                    remotes.add(remote);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return remotes;
+    }
+
+    /**
+     * Recompute some conversations from their messages. Conversations
+     * without messages anymore are removed.
+     */
+    static void refresh(SQLiteDatabase db, Collection<String> remotes) {
+        for (String remote : remotes) {
+            String[] args = new String[] {
+                    remote
+            };
+            db.delete(THREADS_TABLE_NAME, FIELD_REMOTE + "=?", args);
+            db.execSQL("INSERT INTO " + THREADS_TABLE_NAME + " (" + INSERT_COLUMNS + ")"
+                    + " SELECT " + AGGREGATE_COLUMNS
+                    + " FROM " + SipMessage.MESSAGES_TABLE_NAME
+                    + " WHERE " + THREAD_MESSAGES_SELECTION
+                    // No group, so no row, if there is no message left
+                    + " GROUP BY " + REMOTE_EXPRESSION, new Object[] {
+                    remote, remote
+            });
+        }
+    }
+
+    /**
+     * Rebuild all conversations from the messages table.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        db.delete(THREADS_TABLE_NAME, null, null);
+        db.execSQL("INSERT INTO " + THREADS_TABLE_NAME + " (" + INSERT_COLUMNS + ")"
+                + " SELECT " + AGGREGATE_COLUMNS
+                + " FROM " + SipMessage.MESSAGES_TABLE_NAME
+                + " WHERE " + REMOTE_EXPRESSION + " IS NOT NULL"
+                + " GROUP BY " + REMOTE_EXPRESSION);
+    }
+
+    /**
+     * Whether changing these values may move messages to another
+     * conversation.
+     */
+    static boolean changesRemote(ContentValues values) {
+        return values.containsKey(SipMessage.FIELD_FROM) || values.containsKey(SipMessage.FIELD_TO);
+    }
+
+    /**
+     * Whether changing these values has an effect on conversations.
+     */
+    static boolean changesThreads(ContentValues values) {
+        if (values == null) {
+            return false;
+        }
+        for (String field : new String[] {
+                SipMessage.FIELD_FROM, SipMessage.FIELD_FROM_FULL, SipMessage.FIELD_TO,
+                SipMessage.FIELD_BODY, SipMessage.FIELD_DATE, SipMessage.FIELD_READ
+        }) {
+            if (values.containsKey(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
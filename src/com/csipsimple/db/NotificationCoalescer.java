@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.db;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.csipsimple.api.SipManager;
+import com.csipsimple.api.SipProfile;
+import com.csipsimple.utils.Log;
+import com.csipsimple.utils.backup.BackupWrapper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Debounce of the change notifications of the provider.<br/>
+ * The first change of an uri schedules its notification a short window
+ * later, changes of the same uri during that window are merged into it.
+ * Account and registration changes are merged the same way into one
+ * broadcast listing all changed accounts. This way a burst of writes, for
+ * example registration states during a network flap, reloads observers
+ * once.
+ */
+class NotificationCoalescer {
+
+    private static final String THIS_FILE = "NotificationCoalescer";
+
+    // Short enough not to be seen by the user
+    private static final long WINDOW = 100;
+    // Delivered and suppressed counts are logged at most this often
+    private static final long STATS_LOG_PERIOD = 10 * 60 * 1000;
+
+    private final Context context;
+    private final Handler handler;
+
+    // Guarded by this
+    private final Set<Uri> pendingUris = new LinkedHashSet<Uri>();
+    private final Set<Long> pendingAccounts = new LinkedHashSet<Long>();
+    private final Set<Long> pendingRegistrations = new LinkedHashSet<Long>();
+    private boolean flushScheduled = false;
+    private long delivered = 0;
+    private long suppressed = 0;
+    private long lastStatsLog = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    NotificationCoalescer(Context aContext) {
+        context = aContext;
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Notify content observers of an uri once the window is over.
+     */
+    void notifyChange(Uri uri) {
+        synchronized (this) {
+            if (!pendingUris.add(uri)) {
+                suppressed++;
+                return;
+            }
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Broadcast {@link SipManager#ACTION_SIP_ACCOUNT_CHANGED} for this
+     * account once the window is over.
+     */
+    void accountChanged(long accountId) {
+        synchronized (this) {
+            if (!pendingAccounts.add(accountId)) {
+                suppressed++;
+                return;
+            }
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Broadcast {@link SipManager#ACTION_SIP_REGISTRATION_CHANGED} for this
+     * account once the window is over.
+     */
+    void registrationChanged(long accountId) {
+        synchronized (this) {
+            if (!pendingRegistrations.add(accountId)) {
+                suppressed++;
+                return;
+            }
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        synchronized (this) {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        handler.postDelayed(flushTask, WINDOW);
+    }
+
+    private void flush() {
+        List<Uri> uris;
+        Set<Long> accounts;
+        Set<Long> registrations;
+        synchronized (this) {
+            flushScheduled = false;
+            uris = new ArrayList<Uri>(pendingUris);
+            accounts = new LinkedHashSet<Long>(pendingAccounts);
+            registrations = new LinkedHashSet<Long>(pendingRegistrations);
+            pendingUris.clear();
+            pendingAccounts.clear();
+            pendingRegistrations.clear();
+            delivered += uris.size() + (accounts.isEmpty() ? 0 : 1)
+                    + (registrations.isEmpty() ? 0 : 1);
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastStatsLog >= STATS_LOG_PERIOD) {
+                lastStatsLog = now;
+                Log.d(THIS_FILE, "Provider notifications : " + delivered + " delivered, "
+                        + suppressed + " merged into pending ones");
+            }
+        }
+        for (Uri uri : uris) {
+            context.getContentResolver().notifyChange(uri, null);
+        }
+        if (!accounts.isEmpty()) {
+            sendBroadcast(SipManager.ACTION_SIP_ACCOUNT_CHANGED, accounts, null);
+            BackupWrapper.getInstance(context).dataChanged();
+        }
+        if (!registrations.isEmpty()) {
+            sendBroadcast(SipManager.ACTION_SIP_REGISTRATION_CHANGED, registrations,
+                    SipManager.PERMISSION_USE_SIP);
+        }
+    }
+
+    /**
+     * Broadcast a change of accounts, listing them in
+     * {@link SipManager#EXTRA_ACCOUNT_IDS}. {@link SipProfile#FIELD_ID} is
+     * added when only one account changed.
+     */
+    private void sendBroadcast(String action, Set<Long> accountIds, String permission) {
+        Intent publishIntent = new Intent(action);
+        long[] ids = new long[accountIds.size()];
+        int i = 0;
+        for (Long id : accountIds) {
+            ids[i++] = id;
+        }
+        publishIntent.putExtra(SipManager.EXTRA_ACCOUNT_IDS, ids);
+        if (ids.length == 1) {
+            publishIntent.putExtra(SipProfile.FIELD_ID, ids[0]);
+        }
+        context.sendBroadcast(publishIntent, permission);
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.db;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.CallLog;
+import android.text.TextUtils;
+
+import com.csipsimple.api.SipManager;
+import com.csipsimple.api.SipMessage;
+import com.csipsimple.utils.Compatibility;
+
+/**
+ * Full text index over messages and call logs.<br/>
+ * Each source table has a full text table using the row id of the source
+ * as docid. Triggers keep them in sync with inserts, updates and deletes,
+ * whatever the code path changing the source table.
+ */
+final class SearchIndex {
+
+    static final String MESSAGES_FTS_TABLE_NAME = "messages_fts";
+    static final String CALLLOGS_FTS_TABLE_NAME = "calllogs_fts";
+
+    private static final int DEFAULT_LIMIT = 50;
+
+    static final String[] SEARCH_PROJECTION = new String[] {
+            "_id",
+            SipManager.SEARCH_FIELD_SOURCE,
+            SipManager.SEARCH_FIELD_SOURCE_ID,
+            SipManager.SEARCH_FIELD_TITLE,
+            SipManager.SEARCH_FIELD_SNIPPET,
+            SipManager.SEARCH_FIELD_DATE
+    };
+
+    private SearchIndex() {
+        // Static only
+    }
+
+    /**
+     * Create full text tables and triggers if they do not exist yet.
+     */
+    static void create(SQLiteDatabase db) {
+        // fts4 is not available before honeycomb sqlite
+        String module = Compatibility.isCompatible(11) ? "fts4" : "fts3";
+        if (!tableExists(db, MESSAGES_FTS_TABLE_NAME)) {
+            db.execSQL("CREATE VIRTUAL TABLE " + MESSAGES_FTS_TABLE_NAME + " USING " + module
+                    + "(" + SipMessage.FIELD_BODY + ", " + SipMessage.FIELD_FROM_FULL + ")");
+        }
+        if (!tableExists(db, CALLLOGS_FTS_TABLE_NAME)) {
+            db.execSQL("CREATE VIRTUAL TABLE " + CALLLOGS_FTS_TABLE_NAME + " USING " + module
+                    + "(" + CallLog.Calls.CACHED_NAME + ", " + CallLog.Calls.NUMBER + ")");
+        }
+        createTriggers(db, SipMessage.MESSAGES_TABLE_NAME, SipMessage.FIELD_ID,
+                MESSAGES_FTS_TABLE_NAME, SipMessage.FIELD_BODY, SipMessage.FIELD_FROM_FULL);
+        createTriggers(db, SipManager.CALLLOGS_TABLE_NAME, CallLog.Calls._ID,
+                CALLLOGS_FTS_TABLE_NAME, CallLog.Calls.CACHED_NAME, CallLog.Calls.NUMBER);
+    }
+
+    /**
+     * Index again all existing messages and call logs.
+     */
+    static void rebuild(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + MESSAGES_FTS_TABLE_NAME);
+        db.execSQL("INSERT INTO " + MESSAGES_FTS_TABLE_NAME
+                + " (docid, " + SipMessage.FIELD_BODY + ", " + SipMessage.FIELD_FROM_FULL + ")"
+                + " SELECT " + SipMessage.FIELD_ID + ", " + SipMessage.FIELD_BODY + ", "
+                + SipMessage.FIELD_FROM_FULL + " FROM " + SipMessage.MESSAGES_TABLE_NAME);
+        db.execSQL("DELETE FROM " + CALLLOGS_FTS_TABLE_NAME);
+        db.execSQL("INSERT INTO " + CALLLOGS_FTS_TABLE_NAME
+                + " (docid, " + CallLog.Calls.CACHED_NAME + ", " + CallLog.Calls.NUMBER + ")"
+                + " SELECT " + CallLog.Calls._ID + ", " + CallLog.Calls.CACHED_NAME + ", "
+                + CallLog.Calls.NUMBER + " FROM " + SipManager.CALLLOGS_TABLE_NAME);
+    }
+
+    /**
+     * Search messages and call logs. Each word of the text is searched as a
+     * prefix. Among the most recent hits, the ones with more matching terms
+     * come first.
+     *
+     * @param db the database
+     * @param text text typed by the user
+     * @param limit max number of hits, null for default
+     * @return cursor with {@link #SEARCH_PROJECTION} columns
+     */
+    static Cursor search(SQLiteDatabase db, String text, String limit) {
+        String match = toMatchQuery(text);
+        if (match == null) {
+            return new MatrixCursor(SEARCH_PROJECTION);
+        }
+        int maxHits = DEFAULT_LIMIT;
+        if (!TextUtils.isEmpty(limit)) {
+            try {
+                maxHits = Math.max(1, Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                // Keep default
+            }
+        }
+        // Each source gives its most recent hits, walking the full text
+        // index by docid so that snippets and ranks are only computed for
+        // these rows. Hits are then ranked on the number of matching terms.
+        String sql = "SELECT * FROM (SELECT "
+                // Ids of both sources must not collide in the result
+                + "(m." + SipMessage.FIELD_ID + " * 2) AS _id, "
+                + "'" + SipMessage.MESSAGES_TABLE_NAME + "' AS " + SipManager.SEARCH_FIELD_SOURCE + ", "
+                + "m." + SipMessage.FIELD_ID + " AS " + SipManager.SEARCH_FIELD_SOURCE_ID + ", "
+                + "CASE WHEN m." + SipMessage.FIELD_FROM + "='" + SipMessage.SELF + "' THEN m."
+                + SipMessage.FIELD_TO + " ELSE m." + SipMessage.FIELD_FROM_FULL + " END AS "
+                + SipManager.SEARCH_FIELD_TITLE + ", "
+                + snippet(MESSAGES_FTS_TABLE_NAME) + " AS " + SipManager.SEARCH_FIELD_SNIPPET + ", "
+                + "m." + SipMessage.FIELD_DATE + " AS " + SipManager.SEARCH_FIELD_DATE + ", "
+                + rank(MESSAGES_FTS_TABLE_NAME) + " AS rank"
+                + " FROM " + MESSAGES_FTS_TABLE_NAME + " JOIN " + SipMessage.MESSAGES_TABLE_NAME
+                + " m ON m." + SipMessage.FIELD_ID + "=" + MESSAGES_FTS_TABLE_NAME + ".docid"
+                + " WHERE " + MESSAGES_FTS_TABLE_NAME + " MATCH ?"
+                + " ORDER BY " + MESSAGES_FTS_TABLE_NAME + ".docid DESC LIMIT " + maxHits + ")"
+                + " UNION ALL SELECT * FROM (SELECT "
+                + "(c." + CallLog.Calls._ID + " * 2 + 1), "
+                + "'" + SipManager.CALLLOGS_TABLE_NAME + "', "
+                + "c." + CallLog.Calls._ID + ", "
+                + "COALESCE(c." + CallLog.Calls.CACHED_NAME + ", c." + CallLog.Calls.NUMBER + "), "
+                + snippet(CALLLOGS_FTS_TABLE_NAME) + ", "
+                + "c." + CallLog.Calls.DATE + ", "
+                + rank(CALLLOGS_FTS_TABLE_NAME)
+                + " FROM " + CALLLOGS_FTS_TABLE_NAME + " JOIN " + SipManager.CALLLOGS_TABLE_NAME
+                + " c ON c." + CallLog.Calls._ID + "=" + CALLLOGS_FTS_TABLE_NAME + ".docid"
+                + " WHERE " + CALLLOGS_FTS_TABLE_NAME + " MATCH ?"
+                + " ORDER BY " + CALLLOGS_FTS_TABLE_NAME + ".docid DESC LIMIT " + maxHits + ")"
+                + " ORDER BY rank DESC, " + SipManager.SEARCH_FIELD_DATE + " DESC"
+                + " LIMIT " + maxHits;
+        return db.rawQuery(sql, new String[] {
+                match, match
+        });
+    }
+
+    /**
+     * Turn user text into a full text query : words are searched as
+     * prefixes, all must match. Query syntax characters are dropped.
+     *
+     * @return the query or null if there is nothing to search
+     */
+    static String toMatchQuery(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() > 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(word).append('*');
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    private static String snippet(String ftsTable) {
+        return "snippet(" + ftsTable + ", '<b>', '</b>', '...')";
+    }
+
+    /**
+     * Number of matching terms : offsets() gives 4 integers per match
+     */
+    private static String rank(String ftsTable) {
+        return "((length(offsets(" + ftsTable + ")) - length(replace(offsets(" + ftsTable
+                + "), ' ', '')) + 1) / 4)";
+    }
+
+    private static void createTriggers(SQLiteDatabase db, String table, String idField,
+            String ftsTable, String field1, String field2) {
+        String insert = "INSERT INTO " + ftsTable + " (docid, " + field1 + ", " + field2 + ")"
+                + " VALUES (new." + idField + ", new." + field1 + ", new." + field2 + ");";
+        String delete = "DELETE FROM " + ftsTable + " WHERE docid=old." + idField + ";";
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + ftsTable + "_insert AFTER INSERT ON "
+                + table + " BEGIN " + insert + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + ftsTable + "_update AFTER UPDATE OF "
+                + field1 + ", " + field2 + " ON " + table + " BEGIN " + delete + " " + insert
+                + " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + ftsTable + "_delete AFTER DELETE ON "
+                + table + " BEGIN " + delete + " END");
+    }
+
+    private static boolean tableExists(SQLiteDatabase db, String table) {
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name=?",
+                new String[] {
+                    table
+                });
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -26,7 +26,13 @@
 package com.csipsimple.models;
 
 import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.support.v4.util.LruCache;
 import android.text.TextUtils;
 
@@ -35,6 +41,13 @@ import com.csipsimple.api.SipUri.ParsedSipContactInfos;
 import com.csipsimple.utils.Log;
 import com.csipsimple.utils.contacts.ContactsWrapper;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Looks up caller information for the given phone number.
  */
@@ -65,45 +78,265 @@ public class CallerInfo {
     public Uri contactContentUri;
     
     
-    private static LruCache<String, CallerInfo> callerCache;
+    /**
+     * Listener of an asynchronous caller info lookup
+     */
+    public interface OnCallerInfoListener {
+        /**
+         * Called on the main thread once the caller info is known.
+         * 
+         * @param sipUri The remote contact sip uri asked
+         * @param callerInfo The caller info, never null
+         */
+        void onCallerInfoResolved(String sipUri, CallerInfo callerInfo);
+    }
+    
+    // Max estimated memory used by cached caller infos
+    private static final int CACHE_SIZE = 256 * 1024;
+    
+    private static CallerInfoLruCache callerCache;
+    // Lookups queued or running, by sip uri. Guarded by itself
+    private static final Map<String, Lookup> pendingLookups = new HashMap<String, Lookup>();
+    // Increased when contacts change. Guarded by pendingLookups
+    private static int cacheGeneration = 0;
+    private static Handler lookupHandler;
+    private static Handler mainHandler;
     
     
     private static class CallerInfoLruCache extends LruCache<String, CallerInfo> {
+        public CallerInfoLruCache() {
+            super(CACHE_SIZE);
+        }
+        
+        @Override
+        protected int sizeOf(String sipUri, CallerInfo callerInfo) {
+            return 2 * sipUri.length() + callerInfo.getEstimatedSize();
+        }
+    }
+    
+    /**
+     * Lookup of one sip uri, shared by all callers asking for it meanwhile
+     */
+    private static class Lookup implements Runnable {
         final Context mContext;
-        public CallerInfoLruCache(Context context) {
-            super(4 * 1024 * 1024);
+        final String mSipUri;
+        final int mGeneration;
+        // Guarded by pendingLookups
+        final List<OnCallerInfoListener> mListeners = new ArrayList<OnCallerInfoListener>();
+        boolean mStarted = false;
+        boolean mDone = false;
+        CallerInfo mResult;
+        
+        Lookup(Context context, String sipUri, int generation) {
             mContext = context;
+            mSipUri = sipUri;
+            mGeneration = generation;
         }
         
         @Override
-        protected CallerInfo create(String sipUri) {
-            CallerInfo callerInfo = null;
-            ParsedSipContactInfos uriInfos = SipUri.parseSipContact(sipUri);
-            String phoneNumber = SipUri.getPhoneNumber(uriInfos);
-            if (!TextUtils.isEmpty(phoneNumber)) {
+        public void run() {
+            run(null, null);
+        }
+        
+        /**
+         * Run the lookup here unless already started elsewhere
+         * 
+         * @param numberCallerInfos Caller infos already found by phone
+         *            number, or null to search the number only
+         * @param uriCallerInfos Caller infos already found by contact
+         *            address, or null to search the contact address
+         */
+        void run(Map<String, CallerInfo> numberCallerInfos, Map<String, CallerInfo> uriCallerInfos) {
+            synchronized (pendingLookups) {
+                if(mStarted) {
+                    // Already run by a synchronous caller or a prefetch
+                    return;
+                }
+                mStarted = true;
+            }
+            CallerInfo callerInfo;
+            try {
+                callerInfo = findCallerInfo(mContext, mSipUri, numberCallerInfos, uriCallerInfos);
+            } catch (RuntimeException e) {
+                // Never leave a started lookup without result, callers wait for it
+                Log.e(THIS_FILE, "Unable to find caller info of " + mSipUri, e);
+                complete(getFallbackCallerInfo(mSipUri), false);
+                return;
+            }
+            complete(callerInfo, true);
+        }
+        
+        /**
+         * Publish the result of the lookup, must be called once started
+         * 
+         * @param cache false if the result must not be kept, for a failed
+         *            lookup
+         */
+        void complete(CallerInfo callerInfo, boolean cache) {
+            final List<OnCallerInfoListener> listeners;
+            synchronized (pendingLookups) {
+                pendingLookups.remove(mSipUri);
+                // Do not keep a result that may predate a contact change
+                if(cache && mGeneration == cacheGeneration) {
+                    callerCache.put(mSipUri, callerInfo);
+                }
+                mResult = callerInfo;
+                mDone = true;
+                pendingLookups.notifyAll();
+                listeners = new ArrayList<OnCallerInfoListener>(mListeners);
+            }
+            if(!listeners.isEmpty()) {
+                final CallerInfo result = callerInfo;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for(OnCallerInfoListener listener : listeners) {
+                            listener.onCallerInfoResolved(mSipUri, result);
+                        }
+                    }
+                });
+            }
+        }
+        
+        /**
+         * Wait for the result, running the lookup here if not started yet.
+         * Must not be called with pendingLookups lock held.
+         */
+        CallerInfo get() {
+            run();
+            synchronized (pendingLookups) {
+                while(!mDone) {
+                    try {
+                        pendingLookups.wait();
+                    } catch (InterruptedException e) {
+                        Log.e(THIS_FILE, "Interrupted while waiting caller info", e);
+                        break;
+                    }
+                }
+                return mResult != null ? mResult : EMPTY;
+            }
+        }
+    }
+    
+    /**
+     * @param numberCallerInfos Caller infos already found by phone number,
+     *            numbers not in it are still searched. Null to search the
+     *            number only
+     * @param uriCallerInfos Caller infos already found by contact address, or
+     *            null to search the contact address
+     */
+    private static CallerInfo findCallerInfo(Context context, String sipUri,
+            Map<String, CallerInfo> numberCallerInfos, Map<String, CallerInfo> uriCallerInfos) {
+        CallerInfo callerInfo = null;
+        ParsedSipContactInfos uriInfos = SipUri.parseSipContact(sipUri);
+        String phoneNumber = SipUri.getPhoneNumber(uriInfos);
+        if (!TextUtils.isEmpty(phoneNumber)) {
+            if(numberCallerInfos != null) {
+                callerInfo = numberCallerInfos.get(phoneNumber);
+            }
+            if(callerInfo == null) {
                 Log.d(THIS_FILE, "Number found " + phoneNumber + ", try People lookup");
-                callerInfo = ContactsWrapper.getInstance().findCallerInfo(mContext, phoneNumber);
+                callerInfo = ContactsWrapper.getInstance().findCallerInfo(context, phoneNumber);
             }
+        }
 
-            if (callerInfo == null || !callerInfo.contactExists) {
-                // We can now search by sip uri
-                callerInfo = ContactsWrapper.getInstance().findCallerInfoForUri(mContext,
+        if (callerInfo == null || !callerInfo.contactExists) {
+            // We can now search by sip uri
+            if(uriCallerInfos != null) {
+                callerInfo = uriCallerInfos.get(uriInfos.getContactAddress());
+            }else {
+                callerInfo = ContactsWrapper.getInstance().findCallerInfoForUri(context,
                         uriInfos.getContactAddress());
             }
-            
-            if(callerInfo == null) {
-                callerInfo = new CallerInfo();
-                callerInfo.phoneNumber = sipUri;
-            }
-            
-            return callerInfo;
         }
         
+        if(callerInfo == null) {
+            callerInfo = getFallbackCallerInfo(sipUri);
+        }
+        
+        return callerInfo;
+    }
+    
+    /**
+     * @return caller info of a sip uri matching no contact
+     */
+    private static CallerInfo getFallbackCallerInfo(String sipUri) {
+        CallerInfo callerInfo = new CallerInfo();
+        callerInfo.phoneNumber = sipUri;
+        return callerInfo;
+    }
+    
+    /**
+     * @return approximate memory used by this object, in bytes
+     */
+    private int getEstimatedSize() {
+        int size = 64;
+        size += getEstimatedSize(name);
+        size += getEstimatedSize(phoneNumber);
+        size += getEstimatedSize(phoneLabel);
+        size += getEstimatedSize(numberLabel);
+        size += getEstimatedSize(photoUri);
+        size += getEstimatedSize(contactRingtoneUri);
+        size += getEstimatedSize(contactContentUri);
+        return size;
+    }
+    
+    private static int getEstimatedSize(Object value) {
+        if(value == null) {
+            return 0;
+        }
+        return 40 + 2 * value.toString().length();
     }
     
+    private static synchronized void ensureResolver(Context context) {
+        if(callerCache != null) {
+            return;
+        }
+        callerCache = new CallerInfoLruCache();
+        mainHandler = new Handler(Looper.getMainLooper());
+        HandlerThread thread = new HandlerThread("CallerInfoResolver", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        lookupHandler = new Handler(thread.getLooper());
+        
+        // Forget everything known when contacts change
+        context.getContentResolver().registerContentObserver(
+                ContactsWrapper.getInstance().getContactsChangesUri(), true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        synchronized (pendingLookups) {
+                            cacheGeneration++;
+                        }
+                        callerCache.evictAll();
+                    }
+                });
+    }
+    
+    /**
+     * Get the lookup of a sip uri, creating it if none is queued or running
+     * 
+     * @return the lookup and whether it has just been created
+     */
+    private static Lookup getLookup(Context context, String sipUri, OnCallerInfoListener listener, boolean[] created) {
+        synchronized (pendingLookups) {
+            Lookup lookup = pendingLookups.get(sipUri);
+            created[0] = (lookup == null);
+            if(lookup == null) {
+                lookup = new Lookup(context, sipUri, cacheGeneration);
+                pendingLookups.put(sipUri, lookup);
+            }
+            if(listener != null && !lookup.mListeners.contains(listener)) {
+                lookup.mListeners.add(listener);
+            }
+            return lookup;
+        }
+    }
 
     /**
-     * Build and retrieve caller infos from contacts based on the caller sip uri
+     * Build and retrieve caller infos from contacts based on the caller sip uri.
+     * This blocks on a contacts query if the uri is not cached, prefer
+     * {@link #getCallerInfoFromSipUri(Context, String, OnCallerInfoListener)}
+     * from the main thread.
      * 
      * @param context Current application context
      * @param sipUri The remote contact sip uri
@@ -113,11 +346,144 @@ public class CallerInfo {
         if (TextUtils.isEmpty(sipUri)) {
             return EMPTY;
         }
-        if(callerCache == null) {
-            callerCache = new CallerInfoLruCache(context);
+        Context appContext = context.getApplicationContext();
+        ensureResolver(appContext);
+        CallerInfo callerInfo = callerCache.get(sipUri);
+        if(callerInfo != null) {
+            return callerInfo;
+        }
+        // Only one query per uri, the one of other callers is joined
+        return getLookup(appContext, sipUri, null, new boolean[1]).get();
+    }
+    
+    /**
+     * Retrieve caller infos without blocking. If the uri is not cached, the
+     * contacts lookup is done in background and the listener is called once
+     * done. Lookups of the same uri are done once.
+     * 
+     * @param context Current application context
+     * @param sipUri The remote contact sip uri
+     * @param listener Called on main thread when not known yet
+     * @return The caller info if already known, null else
+     */
+    public static CallerInfo getCallerInfoFromSipUri(Context context, String sipUri, OnCallerInfoListener listener) {
+        if (TextUtils.isEmpty(sipUri)) {
+            return EMPTY;
+        }
+        Context appContext = context.getApplicationContext();
+        ensureResolver(appContext);
+        CallerInfo callerInfo = callerCache.get(sipUri);
+        if(callerInfo != null) {
+            return callerInfo;
+        }
+        boolean[] created = new boolean[1];
+        Lookup lookup = getLookup(appContext, sipUri, listener, created);
+        if(created[0]) {
+            lookupHandler.post(lookup);
+        }
+        return null;
+    }
+
+    /**
+     * Warm the cache with caller infos of the remote contacts of a list, in
+     * background. Sip uris are searched with a few batch queries instead of
+     * one query per row. Rows bound meanwhile join the pending lookups.
+     * This reads the whole cursor, call it from the loader thread.
+     * 
+     * @param context Current application context
+     * @param cursor The list cursor, its position is not changed
+     * @param columnName Column of the remote contact sip uri
+     */
+    public static void prefetchCallerInfos(Context context, Cursor cursor, String columnName) {
+        if(cursor == null || cursor.isClosed()) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        ensureResolver(appContext);
+        
+        Set<String> sipUris = new HashSet<String>();
+        int columnIndex = cursor.getColumnIndex(columnName);
+        if(columnIndex < 0) {
+            return;
+        }
+        int position = cursor.getPosition();
+        if(cursor.moveToFirst()) {
+            do {
+                String sipUri = cursor.getString(columnIndex);
+                if(!TextUtils.isEmpty(sipUri) && callerCache.get(sipUri) == null) {
+                    sipUris.add(sipUri);
+                }
+            } while(cursor.moveToNext());
+        }
+        cursor.moveToPosition(position);
+        if(sipUris.isEmpty()) {
+            return;
+        }
+        
+        final List<Lookup> lookups = new ArrayList<Lookup>();
+        synchronized (pendingLookups) {
+            for(String sipUri : sipUris) {
+                if(pendingLookups.containsKey(sipUri)) {
+                    continue;
+                }
+                Lookup lookup = new Lookup(appContext, sipUri, cacheGeneration);
+                pendingLookups.put(sipUri, lookup);
+                lookups.add(lookup);
+            }
+        }
+        if(lookups.isEmpty()) {
+            return;
+        }
+        final Context ctxt = appContext;
+        lookupHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                prefetch(ctxt, lookups);
+            }
+        });
+    }
+    
+    private static void prefetch(Context context, List<Lookup> lookups) {
+        List<Lookup> remaining = new ArrayList<Lookup>(lookups.size());
+        Set<String> contactAddresses = new HashSet<String>();
+        synchronized (pendingLookups) {
+            for(Lookup lookup : lookups) {
+                // Some may have been run meanwhile by synchronous callers
+                if(!lookup.mStarted) {
+                    remaining.add(lookup);
+                }
+            }
+        }
+        Set<String> phoneNumbers = new HashSet<String>();
+        for(Lookup lookup : remaining) {
+            ParsedSipContactInfos uriInfos = SipUri.parseSipContact(lookup.mSipUri);
+            contactAddresses.add(uriInfos.getContactAddress());
+            String phoneNumber = SipUri.getPhoneNumber(uriInfos);
+            if(!TextUtils.isEmpty(phoneNumber)) {
+                phoneNumbers.add(phoneNumber);
+            }
+        }
+        // Numbers not matched here are searched one by one with PhoneLookup
+        Map<String, CallerInfo> numberCallerInfos;
+        try {
+            numberCallerInfos = ContactsWrapper.getInstance().findCallerInfosForNumbers(context, phoneNumbers);
+        } catch (RuntimeException e) {
+            Log.e(THIS_FILE, "Unable to prefetch caller infos by number", e);
+            numberCallerInfos = new HashMap<String, CallerInfo>();
+        }
+        Map<String, CallerInfo> uriCallerInfos;
+        try {
+            uriCallerInfos = ContactsWrapper.getInstance().findCallerInfosForUris(context, contactAddresses);
+        } catch (RuntimeException e) {
+            Log.e(THIS_FILE, "Unable to prefetch caller infos by sip uri", e);
+            uriCallerInfos = new HashMap<String, CallerInfo>();
         }
-        synchronized (callerCache) {
-            return callerCache.get(sipUri);
+        Log.d(THIS_FILE, "Prefetching " + remaining.size() + " caller infos, " + numberCallerInfos.size()
+                + " found by number, " + uriCallerInfos.size() + " found by sip uri");
+        // Each lookup is started and completed in turn, so that a synchronous
+        // caller can still run one not reached yet
+        for(Lookup lookup : remaining) {
+            lookup.run(numberCallerInfos, uriCallerInfos);
         }
     }
 
@@ -0,0 +1,380 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.models;
+
+import com.csipsimple.models.Filter.RegExpRepresentation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Index of consecutive filters using simple matchers (starts with, ends with,
+ * contains, is exactly, has n digits, all).<br/>
+ * Rules are compiled into a prefix trie, a suffix trie, an Aho-Corasick
+ * automaton and hash maps, so finding matching rules costs O(number length)
+ * whatever the number of rules. Only filters that do not change the number
+ * can be indexed, so that all rules of the plan see the same number.<br/>
+ * Rules are given as matcher representations and actions, not filters, so
+ * that dial plans do not depend on android.
+ */
+final class DialPlan {
+
+    static final int NO_RULE = Integer.MAX_VALUE;
+    // Digits count rules above this are left to regexp, no number is that long
+    private static final int MAX_DIGITS_COUNT = 256;
+
+    private static final int CAT_STOP = 0;
+    private static final int CAT_CANT_CALL = 1;
+    private static final int CAT_AUTO_ANSWER = 2;
+    private static final int CAT_COUNT = 3;
+
+    /**
+     * First matching rule of each category, as indexes in the filters list
+     */
+    static final class Match {
+        /**
+         * First matching can call or directly call rule
+         */
+        int stop;
+        /**
+         * First matching can't call rule
+         */
+        int cantCall;
+        /**
+         * First matching auto answer rule
+         */
+        int autoAnswer;
+
+        private void reset() {
+            stop = cantCall = autoAnswer = NO_RULE;
+        }
+
+        private void merge(int[] mins) {
+            if (mins[CAT_STOP] < stop) {
+                stop = mins[CAT_STOP];
+            }
+            if (mins[CAT_CANT_CALL] < cantCall) {
+                cantCall = mins[CAT_CANT_CALL];
+            }
+            if (mins[CAT_AUTO_ANSWER] < autoAnswer) {
+                autoAnswer = mins[CAT_AUTO_ANSWER];
+            }
+        }
+    }
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        final int[] mins = newMins();
+        // Aho-Corasick failure link
+        Node fail;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                char[] nKeys = new char[keys.length + 1];
+                Node[] nChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, nKeys, 0, keys.length);
+                System.arraycopy(children, 0, nChildren, 0, children.length);
+                nKeys[keys.length] = c;
+                nChildren[children.length] = child;
+                keys = nKeys;
+                children = nChildren;
+            }
+            return child;
+        }
+    }
+
+    private final int end;
+    private final Node prefixes = new Node();
+    private final Node suffixes = new Node();
+    private final Node contains = new Node();
+    private final HashMap<String, int[]> exacts = new HashMap<String, int[]>();
+    private final HashMap<Integer, int[]> digitsCount = new HashMap<Integer, int[]>();
+    // Index n gives rules matching n digits or more
+    private int[][] minDigitsCount = new int[0][];
+    private final int[] all = newMins();
+
+    /**
+     * Build the plan for rules [aStart, aEnd[. All these rules must be
+     * indexable.
+     *
+     * @param matchers matcher representation of each filter
+     * @param actions action of each filter
+     */
+    DialPlan(RegExpRepresentation[] matchers, int[] actions, int aStart, int aEnd) {
+        end = aEnd;
+        List<int[]> moreDigits = new ArrayList<int[]>();
+        for (int idx = aStart; idx < end; idx++) {
+            RegExpRepresentation repr = matchers[idx];
+            int cat = getCategory(actions[idx]);
+            switch (repr.type) {
+                case Filter.MATCHER_STARTS:
+                    setMin(insert(prefixes, repr.fieldContent, false).mins, cat, idx);
+                    break;
+                case Filter.MATCHER_ENDS:
+                    setMin(insert(suffixes, repr.fieldContent, true).mins, cat, idx);
+                    break;
+                case Filter.MATCHER_CONTAINS:
+                    setMin(insert(contains, repr.fieldContent, false).mins, cat, idx);
+                    break;
+                case Filter.MATCHER_IS_EXACTLY:
+                    setMin(getMins(exacts, repr.fieldContent), cat, idx);
+                    break;
+                case Filter.MATCHER_HAS_N_DIGIT:
+                    setMin(getMins(digitsCount, Integer.parseInt(repr.fieldContent)), cat, idx);
+                    break;
+                case Filter.MATCHER_HAS_MORE_N_DIGIT:
+                    moreDigits.add(new int[] {
+                            Integer.parseInt(repr.fieldContent), cat, idx
+                    });
+                    break;
+                case Filter.MATCHER_ALL:
+                    setMin(all, cat, idx);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Filter " + idx + " can't be indexed");
+            }
+        }
+        buildFailLinks();
+        buildMinDigitsCount(moreDigits);
+    }
+
+    /**
+     * @return index after the last filter of this plan
+     */
+    int getEnd() {
+        return end;
+    }
+
+    /**
+     * Whether a rule can be part of a dial plan.
+     *
+     * @param repr matcher representation of the filter, null if it has no
+     *            match pattern
+     * @param action action of the filter
+     */
+    static boolean isIndexable(RegExpRepresentation repr, int action) {
+        if (repr == null || getCategory(action) < 0) {
+            return false;
+        }
+        switch (repr.type) {
+            case Filter.MATCHER_STARTS:
+            case Filter.MATCHER_ENDS:
+            case Filter.MATCHER_CONTAINS:
+            case Filter.MATCHER_IS_EXACTLY:
+                // A quoted content containing \E would have been split by
+                // Pattern.quote, the representation is not the literal
+                return repr.fieldContent != null && repr.fieldContent.length() > 0
+                        && repr.fieldContent.indexOf("\\E") < 0
+                        && repr.fieldContent.indexOf("\\Q") < 0;
+            case Filter.MATCHER_HAS_N_DIGIT:
+            case Filter.MATCHER_HAS_MORE_N_DIGIT:
+                try {
+                    int count = Integer.parseInt(repr.fieldContent);
+                    return count >= 0 && count <= MAX_DIGITS_COUNT;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            case Filter.MATCHER_ALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Find the first matching rules of each category.
+     *
+     * @param number the number to test
+     * @param match filled with the rules found
+     * @return false if the number can't be tested with the index (it
+     *         contains line terminators that the regexps would not match)
+     *         and filters must be evaluated one by one
+     */
+    boolean lookup(String number, Match match) {
+        match.reset();
+        int len = number.length();
+        boolean onlyDigits = true;
+        for (int i = 0; i < len; i++) {
+            char c = number.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+            if (c < '0' || c > '9') {
+                onlyDigits = false;
+            }
+        }
+
+        match.merge(all);
+
+        int[] mins = exacts.get(number);
+        if (mins != null) {
+            match.merge(mins);
+        }
+
+        if (onlyDigits) {
+            mins = digitsCount.get(len);
+            if (mins != null) {
+                match.merge(mins);
+            }
+            if (minDigitsCount.length > 0) {
+                match.merge(minDigitsCount[Math.min(len, minDigitsCount.length - 1)]);
+            }
+        }
+
+        Node node = prefixes;
+        for (int i = 0; i < len && node != null; i++) {
+            node = node.child(number.charAt(i));
+            if (node != null) {
+                match.merge(node.mins);
+            }
+        }
+
+        node = suffixes;
+        for (int i = len - 1; i >= 0 && node != null; i--) {
+            node = node.child(number.charAt(i));
+            if (node != null) {
+                match.merge(node.mins);
+            }
+        }
+
+        node = contains;
+        for (int i = 0; i < len; i++) {
+            char c = number.charAt(i);
+            Node next = node.child(c);
+            while (next == null && node != contains) {
+                node = node.fail;
+                next = node.child(c);
+            }
+            node = next != null ? next : contains;
+            // mins of each node include the ones of its failure chain
+            match.merge(node.mins);
+        }
+        return true;
+    }
+
+    private static int getCategory(int action) {
+        switch (action) {
+            case Filter.ACTION_CAN_CALL:
+            case Filter.ACTION_DIRECTLY_CALL:
+                return CAT_STOP;
+            case Filter.ACTION_CANT_CALL:
+                return CAT_CANT_CALL;
+            case Filter.ACTION_AUTO_ANSWER:
+                return CAT_AUTO_ANSWER;
+            default:
+                return -1;
+        }
+    }
+
+    private static int[] newMins() {
+        int[] mins = new int[CAT_COUNT];
+        for (int i = 0; i < CAT_COUNT; i++) {
+            mins[i] = NO_RULE;
+        }
+        return mins;
+    }
+
+    private static void setMin(int[] mins, int cat, int idx) {
+        if (idx < mins[cat]) {
+            mins[cat] = idx;
+        }
+    }
+
+    private static <K> int[] getMins(HashMap<K, int[]> map, K key) {
+        int[] mins = map.get(key);
+        if (mins == null) {
+            mins = newMins();
+            map.put(key, mins);
+        }
+        return mins;
+    }
+
+    private static Node insert(Node root, String literal, boolean reversed) {
+        Node node = root;
+        int len = literal.length();
+        for (int i = 0; i < len; i++) {
+            node = node.addChild(literal.charAt(reversed ? len - 1 - i : i));
+        }
+        return node;
+    }
+
+    private void buildFailLinks() {
+        LinkedList<Node> queue = new LinkedList<Node>();
+        for (Node child : contains.children) {
+            child.fail = contains;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.removeFirst();
+            for (int i = 0; i < node.keys.length; i++) {
+                char c = node.keys[i];
+                Node child = node.children[i];
+                Node fail = node.fail;
+                Node target = fail.child(c);
+                while (target == null && fail != contains) {
+                    fail = fail.fail;
+                    target = fail.child(c);
+                }
+                child.fail = target != null ? target : contains;
+                // Parents are treated first, so fail mins are already merged
+                for (int cat = 0; cat < CAT_COUNT; cat++) {
+                    setMin(child.mins, cat, child.fail.mins[cat]);
+                }
+                queue.add(child);
+            }
+        }
+    }
+
+    private void buildMinDigitsCount(List<int[]> moreDigits) {
+        int maxCount = -1;
+        for (int[] rule : moreDigits) {
+            maxCount = Math.max(maxCount, rule[0]);
+        }
+        minDigitsCount = new int[maxCount + 1][];
+        for (int n = 0; n <= maxCount; n++) {
+            minDigitsCount[n] = newMins();
+        }
+        for (int[] rule : moreDigits) {
+            setMin(minDigitsCount[rule[0]], rule[1], rule[2]);
+        }
+        // A number with n digits matches all rules asking for n or less
+        for (int n = 1; n <= maxCount; n++) {
+            for (int cat = 0; cat < CAT_COUNT; cat++) {
+                setMin(minDigitsCount[n], cat, minDigitsCount[n - 1][cat]);
+            }
+        }
+    }
+}
@@ -36,7 +36,6 @@ import com.csipsimple.utils.bluetooth.BluetoothWrapper;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -107,6 +106,10 @@ public class Filter {
 	public String replacePattern;
 	public Integer action;
 	
+	// Compiled version of matchPattern, built once per pattern value
+	private String compiledFor;
+	private Pattern compiledPattern;
+	
 	public Filter() {
 		// Nothing to do
 	}
@@ -198,7 +201,27 @@ public class Filter {
 		Log.e(THIS_FILE, "Invalid pattern ", e);
 	}
 	
-	private boolean patternMatches(Context ctxt, String number, Bundle extraHdr, boolean defaultValue) {
+	/**
+	 * Get the compiled match pattern. Compilation is done only once for a given pattern.
+	 * @return the pattern or null if the pattern is not a valid regexp
+	 */
+	synchronized Pattern getCompiledPattern() {
+	    String current = matchPattern;
+	    if(current != compiledFor) {
+	        compiledFor = current;
+	        compiledPattern = null;
+	        if(current != null) {
+	            try {
+	                compiledPattern = Pattern.compile(current);
+	            }catch(PatternSyntaxException e) {
+	                logInvalidPattern(e);
+	            }
+	        }
+	    }
+	    return compiledPattern;
+	}
+	
+	boolean patternMatches(Context ctxt, String number, Bundle extraHdr, boolean defaultValue) {
 	    if(CALLINFO_AUTOREPLY_MATCHER_KEY.equals(matchPattern)) {
 	        if(extraHdr != null &&
                 extraHdr.containsKey("Call-Info")) {
@@ -214,10 +237,9 @@ public class Filter {
 	    }else if(BLUETOOTH_MATCHER_KEY.equals(matchPattern)) {
             return BluetoothWrapper.getInstance(ctxt).isBTHeadsetConnected();
         }else {
-            try {
-                return Pattern.matches(matchPattern, number);
-            }catch(PatternSyntaxException e) {
-                logInvalidPattern(e);
+            Pattern pattern = getCompiledPattern();
+            if(pattern != null) {
+                return pattern.matcher(number).matches();
             }
         }
 	    return defaultValue;
@@ -284,14 +306,14 @@ public class Filter {
      */
 	public String rewrite(String number) {
 		if(action == ACTION_REPLACE) {
-			try {
-				Pattern pattern = Pattern.compile(matchPattern);
-				Matcher matcher = pattern.matcher(number);
-				return matcher.replaceAll(replacePattern); 
-			}catch(PatternSyntaxException e) {
-				logInvalidPattern(e);
-			}catch(ArrayIndexOutOfBoundsException e) {
-				Log.e(THIS_FILE, "Out of bounds ", e);
+			Pattern pattern = getCompiledPattern();
+			if(pattern != null) {
+    			try {
+    				Matcher matcher = pattern.matcher(number);
+    				return matcher.replaceAll(replacePattern); 
+    			}catch(ArrayIndexOutOfBoundsException e) {
+    				Log.e(THIS_FILE, "Out of bounds ", e);
+    			}
 			}
 		}
 		return number;
@@ -621,34 +643,11 @@ public class Filter {
 	//Static utility method
 
     public static boolean isCallableNumber(Context ctxt, long accountId, String number) {
-        boolean canCall = true;
-        List<Filter> filterList = getFiltersForAccount(ctxt, accountId);
-        for (Filter f : filterList) {
-            Log.d(THIS_FILE, "Test filter " + f.matchPattern);
-            canCall &= f.canCall(ctxt, number);
-
-            // Stop processing & rewrite
-            if (f.stopProcessing(ctxt, number)) {
-                return canCall;
-            }
-            number = f.rewrite(number);
-        }
-        return canCall;
+        return getPipelineForAccount(ctxt, accountId).evaluate(ctxt, number, null).canCall;
     }
 
 	public static boolean isMustCallNumber(Context ctxt, long accountId, String number) {
-	    List<Filter> filterList = getFiltersForAccount(ctxt, accountId);
-        for (Filter f : filterList) {
-			if(f.mustCall(ctxt, number)) {
-				return true;
-			}
-			//Stop processing & rewrite
-			if(f.stopProcessing(ctxt, number)) {
-				return false;
-			}
-			number = f.rewrite(number);
-		}
-		return false;
+	    return getPipelineForAccount(ctxt, accountId).evaluate(ctxt, number, null).mustCall;
 	}
 	
 	/**
@@ -660,40 +659,29 @@ public class Filter {
 	 * @return Rewritten number
 	 */
 	public static String rewritePhoneNumber(Context ctxt, long accountId, String number) {
-        List<Filter> filterList = getFiltersForAccount(ctxt, accountId);
-        for (Filter f : filterList) {
-			//Log.d(THIS_FILE, "RW > Test filter "+f.matches);
-			number = f.rewrite(number);
-			if(f.stopProcessing(ctxt, number)) {
-				return number;
-			}
-		}
-		return number;
+	    return getPipelineForAccount(ctxt, accountId).evaluate(ctxt, number, null).rewrittenNumber;
 	}
 	
 	public static int isAutoAnswerNumber(Context ctxt, long accountId, String number, Bundle extraHdr) {
-        List<Filter> filterList = getFiltersForAccount(ctxt, accountId);
-        for (Filter f : filterList) {
-            if (f.autoAnswer(ctxt, number, extraHdr)) {
-                if (TextUtils.isEmpty(f.replacePattern)) {
-                    return 200;
-                }
-                try {
-                    return Integer.parseInt(f.replacePattern);
-                } catch (NumberFormatException e) {
-                    Log.e(THIS_FILE, "Invalid autoanswer code : " + f.replacePattern);
-                }
-                return 200;
-            }
-            // Stop processing & rewrite
-            if (f.stopProcessing(ctxt, number)) {
-                return 0;
-            }
-            number = f.rewrite(number);
-        }
-        return 0;
+	    return getPipelineForAccount(ctxt, accountId).evaluate(ctxt, number, extraHdr).autoAnswerCode;
     }
 	
+	/**
+	 * Get auto answer code of this filter
+	 * @return the sip code to answer with
+	 */
+	int getAutoAnswerCode() {
+	    if (TextUtils.isEmpty(replacePattern)) {
+	        return 200;
+	    }
+	    try {
+	        return Integer.parseInt(replacePattern);
+	    } catch (NumberFormatException e) {
+	        Log.e(THIS_FILE, "Invalid autoanswer code : " + replacePattern);
+	    }
+	    return 200;
+	}
+	
 	
 
 	// Helpers static factory
@@ -719,10 +707,15 @@ public class Filter {
 		return filter;
 	}
 	
-	private static Map<Long, List<Filter>> FILTERS_PER_ACCOUNT = new HashMap<Long, List<Filter>>();
+	private static volatile Map<Long, FilterPipeline> PIPELINE_PER_ACCOUNT = new HashMap<Long, FilterPipeline>();
 	
-	private static List<Filter> getFiltersForAccount(Context ctxt, long accountId){
-        if (!FILTERS_PER_ACCOUNT.containsKey(accountId)) {
+	private static FilterPipeline getPipelineForAccount(Context ctxt, long accountId){
+	    Map<Long, FilterPipeline> pipelines = PIPELINE_PER_ACCOUNT;
+	    FilterPipeline pipeline;
+	    synchronized (pipelines) {
+	        pipeline = pipelines.get(accountId);
+	    }
+	    if (pipeline == null) {
             ArrayList<Filter> aList = new ArrayList<Filter>();
             Cursor c = getFiltersCursorForAccount(ctxt, accountId);
             if (c != null) {
@@ -738,13 +731,16 @@ public class Filter {
                     c.close();
                 }
             }
-            FILTERS_PER_ACCOUNT.put(accountId, aList);
+            pipeline = new FilterPipeline(aList);
+            synchronized (pipelines) {
+                pipelines.put(accountId, pipeline);
+            }
         }
-        return FILTERS_PER_ACCOUNT.get(accountId);
+        return pipeline;
 	}
 	
 	public static void resetCache() {
-	    FILTERS_PER_ACCOUNT = new HashMap<Long, List<Filter>>();
+	    PIPELINE_PER_ACCOUNT = new HashMap<Long, FilterPipeline>();
 	}
 	
 	public static Cursor getFiltersCursorForAccount(Context ctxt, long accountId) {
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.models;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import com.csipsimple.models.Filter.RegExpRepresentation;
+
+import java.util.List;
+
+/**
+ * Immutable, compiled list of filters of an account.<br/>
+ * Patterns are compiled when the pipeline is built and all decisions
+ * (allow, must call, rewrite, auto answer) are taken in one walk over the
+ * filters. Runs of consecutive filters with simple matchers are indexed in a
+ * {@link DialPlan} so that their cost does not depend on the number of
+ * rules. Pipelines are cached per account by {@link Filter} and dropped by
+ * {@link Filter#resetCache()}.
+ */
+public final class FilterPipeline {
+
+    /**
+     * Decisions of the filters for a number
+     */
+    public static final class Result {
+        /**
+         * Whether no filter prevents to call the number
+         */
+        public boolean canCall = true;
+        /**
+         * Whether a filter forces to call the number with this account
+         */
+        public boolean mustCall = false;
+        /**
+         * The number rewritten by replace filters
+         */
+        public String rewrittenNumber;
+        /**
+         * Sip code to auto answer with, 0 if the call should not be auto
+         * answered
+         */
+        public int autoAnswerCode = 0;
+    }
+
+    private final Filter[] filters;
+    private final int[] autoAnswerCodes;
+    // Dial plan starting at a given filter index, if any
+    private final DialPlan[] dialPlans;
+
+    FilterPipeline(List<Filter> filterList) {
+        filters = filterList.toArray(new Filter[filterList.size()]);
+        autoAnswerCodes = new int[filters.length];
+        dialPlans = new DialPlan[filters.length];
+        RegExpRepresentation[] matchers = new RegExpRepresentation[filters.length];
+        int[] actions = new int[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            Filter f = filters[i];
+            matchers[i] = f.matchPattern != null ? f.getRepresentationForMatcher() : null;
+            actions[i] = f.action != null ? f.action : -1;
+        }
+        int planStart = -1;
+        for (int i = 0; i <= filters.length; i++) {
+            boolean indexable = i < filters.length && DialPlan.isIndexable(matchers[i], actions[i]);
+            if (indexable && planStart < 0) {
+                planStart = i;
+            } else if (!indexable && planStart >= 0) {
+                dialPlans[planStart] = new DialPlan(matchers, actions, planStart, i);
+                planStart = -1;
+            }
+            if (i == filters.length) {
+                break;
+            }
+            Filter f = filters[i];
+            if (!indexable) {
+                // Compile now rather than on first call
+                f.getCompiledPattern();
+            }
+            if (f.action != null && f.action == Filter.ACTION_AUTO_ANSWER) {
+                autoAnswerCodes[i] = f.getAutoAnswerCode();
+            }
+        }
+    }
+
+    /**
+     * Run the number through the filters.<br/>
+     * Filters are processed in priority order. A can call or directly call
+     * filter matching the number stops processing, replace filters rewrite
+     * the number seen by next filters.
+     *
+     * @param ctxt Application context
+     * @param number the number to test
+     * @param extraHdr extra headers of the incoming call if any
+     * @return the decisions for this number
+     */
+    public Result evaluate(Context ctxt, String number, Bundle extraHdr) {
+        Result result = new Result();
+        boolean autoAnswerFound = false;
+        DialPlan.Match match = null;
+        int i = 0;
+        while (i < filters.length) {
+            DialPlan dialPlan = dialPlans[i];
+            if (dialPlan != null) {
+                if (match == null) {
+                    match = new DialPlan.Match();
+                }
+                if (dialPlan.lookup(number, match)) {
+                    // Only rules before the stopping one are processed
+                    if (match.cantCall < match.stop) {
+                        result.canCall = false;
+                    }
+                    if (!autoAnswerFound && match.autoAnswer < match.stop) {
+                        autoAnswerFound = true;
+                        result.autoAnswerCode = autoAnswerCodes[match.autoAnswer];
+                    }
+                    if (match.stop != DialPlan.NO_RULE) {
+                        result.mustCall = filters[match.stop].action == Filter.ACTION_DIRECTLY_CALL;
+                        result.rewrittenNumber = number;
+                        return result;
+                    }
+                    i = dialPlan.getEnd();
+                    continue;
+                }
+                // Number can't be looked up in the index, test rules one by one
+            }
+            int idx = i++;
+            Filter f = filters[idx];
+            if (f.action == null) {
+                continue;
+            }
+            switch (f.action) {
+                case Filter.ACTION_CANT_CALL:
+                    if (result.canCall && f.patternMatches(ctxt, number, null, false)) {
+                        result.canCall = false;
+                    }
+                    break;
+                case Filter.ACTION_CAN_CALL:
+                    if (f.patternMatches(ctxt, number, null, false)) {
+                        result.rewrittenNumber = number;
+                        return result;
+                    }
+                    break;
+                case Filter.ACTION_DIRECTLY_CALL:
+                    if (f.patternMatches(ctxt, number, null, false)) {
+                        result.mustCall = true;
+                        result.rewrittenNumber = number;
+                        return result;
+                    }
+                    break;
+                case Filter.ACTION_AUTO_ANSWER:
+                    if (!autoAnswerFound && f.patternMatches(ctxt, number, extraHdr, false)) {
+                        autoAnswerFound = true;
+                        result.autoAnswerCode = autoAnswerCodes[idx];
+                    }
+                    break;
+                case Filter.ACTION_REPLACE:
+                    number = f.rewrite(number);
+                    break;
+                default:
+                    break;
+            }
+        }
+        result.rewrittenNumber = number;
+        return result;
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.pjsip;
+
+import android.content.ContentValues;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.CallLog;
+import android.text.TextUtils;
+
+import com.csipsimple.api.SipCallSession;
+import com.csipsimple.api.SipManager;
+import com.csipsimple.api.SipProfile;
+import com.csipsimple.api.SipUri;
+import com.csipsimple.api.SipUri.ParsedSipContactInfos;
+import com.csipsimple.service.SipNotifications;
+import com.csipsimple.service.SipService;
+import com.csipsimple.utils.CallLogHelper;
+import com.csipsimple.utils.Log;
+import com.csipsimple.utils.Threading;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistence of ended calls.<br/>
+ * The call state worker only queues an immutable record of the call. Records
+ * are written from a dedicated thread a short time later, all records queued
+ * meanwhile in one batch : one insert transaction in our call log, then
+ * missed call notifications, error toasts and native call log entries.
+ */
+class CallEndPersister {
+
+    private static final String THIS_FILE = "CallEndPersister";
+
+    // Group records of calls ending together
+    private static final long BATCH_DELAY = 300;
+
+    /**
+     * State of a call when it ended. Never modified.
+     */
+    private static final class CallEndRecord {
+        final SipCallSession call;
+        final long callStart;
+        final long callEnd;
+        final boolean integrateWithCallLogs;
+
+        CallEndRecord(SipCallSession aCall, long aCallStart, long aCallEnd,
+                boolean aIntegrateWithCallLogs) {
+            call = aCall;
+            callStart = aCallStart;
+            callEnd = aCallEnd;
+            integrateWithCallLogs = aIntegrateWithCallLogs;
+        }
+    }
+
+    private final SipService service;
+    private final SipNotifications notificationManager;
+    private HandlerThread handlerThread;
+    private Handler handler;
+
+    // Guarded by this
+    private List<CallEndRecord> pendingRecords = new ArrayList<CallEndRecord>();
+    private boolean flushScheduled = false;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    CallEndPersister(SipService aService, SipNotifications aNotificationManager) {
+        service = aService;
+        notificationManager = aNotificationManager;
+    }
+
+    /**
+     * Queue persistence of an ended call. Does no database access.
+     *
+     * @param callInfo the call, copied so it can be reused by the stack
+     * @param integrateWithCallLogs whether to add the call to native call log
+     */
+    void onCallEnded(SipCallSession callInfo, boolean integrateWithCallLogs) {
+        // Call start is not part of the parceled copy
+        CallEndRecord record = new CallEndRecord(new SipCallSession(callInfo),
+                callInfo.getCallStart(), System.currentTimeMillis(), integrateWithCallLogs);
+        synchronized (this) {
+            pendingRecords.add(record);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        getHandler().postDelayed(flushTask, BATCH_DELAY);
+    }
+
+    /**
+     * Write records still queued and stop the thread.
+     */
+    void stop() {
+        HandlerThread thread;
+        synchronized (this) {
+            if (handler != null) {
+                handler.removeCallbacks(flushTask);
+            }
+            thread = handlerThread;
+            handlerThread = null;
+            handler = null;
+        }
+        flush();
+        Threading.stopHandlerThread(thread, false);
+    }
+
+    private synchronized Handler getHandler() {
+        if (handler == null) {
+            handlerThread = new HandlerThread("CallEndPersister");
+            handlerThread.start();
+            handler = new Handler(handlerThread.getLooper());
+        }
+        return handler;
+    }
+
+    private void flush() {
+        List<CallEndRecord> records;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pendingRecords.isEmpty()) {
+                return;
+            }
+            records = pendingRecords;
+            pendingRecords = new ArrayList<CallEndRecord>();
+        }
+
+        ContentValues[] values = new ContentValues[records.size()];
+        for (int i = 0; i < values.length; i++) {
+            CallEndRecord record = records.get(i);
+            values[i] = CallLogHelper.logValuesForCall(service, record.call, record.callStart,
+                    record.callEnd);
+        }
+        // Fill our own database, in one transaction
+        service.getContentResolver().bulkInsert(SipManager.CALLLOG_URI, values);
+        Log.d(THIS_FILE, "Logged " + values.length + " ended calls");
+
+        Map<Long, String> providers = new HashMap<Long, String>();
+        for (int i = 0; i < values.length; i++) {
+            CallEndRecord record = records.get(i);
+            ContentValues cv = values[i];
+            Integer isNew = cv.getAsInteger(CallLog.Calls.NEW);
+            if (isNew != null && isNew == 1) {
+                notificationManager.showNotificationForMissedCall(cv);
+            }
+
+            // If the call goes out in error...
+            SipCallSession callInfo = record.call;
+            if (callInfo.getLastStatusCode() != 200 && callInfo.getLastReasonCode() != 200) {
+                // We notify the user with toaster
+                service.notifyUserOfMessage(callInfo.getLastStatusCode() + " / "
+                        + callInfo.getLastStatusComment());
+            }
+
+            if (record.integrateWithCallLogs) {
+                addNativeCallLog(callInfo, cv, providers);
+            }
+        }
+    }
+
+    /**
+     * Fill native database.
+     *
+     * @param providers display names of accounts already looked up
+     */
+    private void addNativeCallLog(SipCallSession callInfo, ContentValues cv,
+            Map<Long, String> providers) {
+        // Don't add with new flag
+        cv.put(CallLog.Calls.NEW, false);
+        // Remove csipsimple custom entries
+        cv.remove(SipManager.CALLLOG_PROFILE_ID_FIELD);
+        cv.remove(SipManager.CALLLOG_STATUS_CODE_FIELD);
+        cv.remove(SipManager.CALLLOG_STATUS_TEXT_FIELD);
+
+        // Reformat number for callogs
+        ParsedSipContactInfos callerInfos = SipUri.parseSipContact(cv
+                .getAsString(CallLog.Calls.NUMBER));
+        if (callerInfos == null) {
+            return;
+        }
+        String phoneNumber = SipUri.getPhoneNumber(callerInfos);
+        // Only log numbers that can be called by GSM too.
+        // TODO : if android 2.3 add sip uri also
+        if (TextUtils.isEmpty(phoneNumber)) {
+            return;
+        }
+        cv.put(CallLog.Calls.NUMBER, phoneNumber);
+        ContentValues extraCv = new ContentValues();
+        long accId = callInfo.getAccId();
+        if (accId != SipProfile.INVALID_ID) {
+            String provider;
+            if (providers.containsKey(accId)) {
+                provider = providers.get(accId);
+            } else {
+                SipProfile acc = service.getAccount(accId);
+                provider = acc != null ? acc.display_name : null;
+                providers.put(accId, provider);
+            }
+            if (provider != null) {
+                extraCv.put(CallLogHelper.EXTRA_SIP_PROVIDER, provider);
+            }
+        }
+        CallLogHelper.addCallLog(service, cv, extraCv);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.pjsip;
+
+import com.csipsimple.service.impl.SipCallSessionImpl;
+
+/**
+ * Calls sessions known by the UA state receiver.<br/>
+ * Sessions are published in an immutable array replaced when a call is
+ * added, together with a generation increased on each change. Readers take
+ * the current snapshot without locking, so that they never wait for pjsip
+ * callbacks updating calls. Only writers are serialized.
+ */
+final class CallSessionRegistry {
+
+    private static final SipCallSessionImpl[] EMPTY = new SipCallSessionImpl[0];
+
+    /**
+     * Immutable list of sessions.
+     */
+    static final class Snapshot {
+        final long generation;
+        // Ordered by call id, never modified
+        final SipCallSessionImpl[] calls;
+
+        private Snapshot(long aGeneration, SipCallSessionImpl[] aCalls) {
+            generation = aGeneration;
+            calls = aCalls;
+        }
+
+        SipCallSessionImpl get(int callId) {
+            for (SipCallSessionImpl call : calls) {
+                if (call.getCallId() == callId) {
+                    return call;
+                }
+            }
+            return null;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+    // Serialize writers, readers don't lock
+    private final Object writeLock = new Object();
+
+    /**
+     * @return current sessions, never null
+     */
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @param callId pjsip call id
+     * @return the session of the call, null if unknown
+     */
+    SipCallSessionImpl get(int callId) {
+        return snapshot.get(callId);
+    }
+
+    /**
+     * @return all sessions. The array is shared and must not be modified.
+     */
+    SipCallSessionImpl[] getAll() {
+        return snapshot.calls;
+    }
+
+    /**
+     * Publish a session, replacing the one with the same call id. Publishing
+     * a session already known only increases the generation.
+     */
+    void put(SipCallSessionImpl session) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            SipCallSessionImpl[] calls = current.calls;
+            int callId = session.getCallId();
+            int index = 0;
+            while (index < calls.length && calls[index].getCallId() < callId) {
+                index++;
+            }
+            if (index < calls.length && calls[index].getCallId() == callId) {
+                if (calls[index] != session) {
+                    calls = calls.clone();
+                    calls[index] = session;
+                }
+            } else {
+                SipCallSessionImpl[] newCalls = new SipCallSessionImpl[calls.length + 1];
+                System.arraycopy(calls, 0, newCalls, 0, index);
+                newCalls[index] = session;
+                System.arraycopy(calls, index, newCalls, index + 1, calls.length - index);
+                calls = newCalls;
+            }
+            snapshot = new Snapshot(current.generation + 1, calls);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.pjsip;
+
+import com.csipsimple.api.SipProfile;
+
+import java.util.Arrays;
+
+/**
+ * Bidirectional map between pjsua account ids and database account ids.<br/>
+ * It mirrors the pjsua id column of account status rows for the pjsip
+ * callback threads. Writers (on the sip executor) publish a new immutable
+ * state, readers only do a volatile read and never lock.
+ */
+public final class PjSipAccountIds {
+
+    public static final int INVALID_PJSUA_ID = -1;
+
+    private static final class State {
+        // Account id by pjsua id. pjsua ids are small indexes in pjsua
+        // accounts table so a dense array is enough
+        final long[] accountIds;
+        // Sorted account ids and matching pjsua ids for reverse lookup
+        final long[] sortedAccountIds;
+        final int[] pjsuaIds;
+
+        State(long[] aAccountIds, long[] aSortedAccountIds, int[] aPjsuaIds) {
+            accountIds = aAccountIds;
+            sortedAccountIds = aSortedAccountIds;
+            pjsuaIds = aPjsuaIds;
+        }
+    }
+
+    private static final State EMPTY = new State(new long[0], new long[0], new int[0]);
+
+    private static volatile State state = EMPTY;
+
+    private PjSipAccountIds() {
+        // Static only
+    }
+
+    /**
+     * @param pjsuaId the pjsua account id
+     * @return the database account id, or {@link SipProfile#INVALID_ID}
+     */
+    public static long getAccountId(int pjsuaId) {
+        long[] accountIds = state.accountIds;
+        if (pjsuaId < 0 || pjsuaId >= accountIds.length) {
+            return SipProfile.INVALID_ID;
+        }
+        return accountIds[pjsuaId];
+    }
+
+    /**
+     * @param accountId the database account id
+     * @return the pjsua account id, or {@link #INVALID_PJSUA_ID}
+     */
+    public static int getPjsuaId(long accountId) {
+        State current = state;
+        int idx = Arrays.binarySearch(current.sortedAccountIds, accountId);
+        return idx >= 0 ? current.pjsuaIds[idx] : INVALID_PJSUA_ID;
+    }
+
+    /**
+     * Associate a pjsua id and an account id, replacing previous
+     * association of each of them.
+     */
+    public static synchronized void put(int pjsuaId, long accountId) {
+        if (pjsuaId < 0 || accountId == SipProfile.INVALID_ID) {
+            return;
+        }
+        State current = state;
+        removeInternal(current, accountId);
+        current = state;
+
+        long[] accountIds = new long[Math.max(current.accountIds.length, pjsuaId + 1)];
+        Arrays.fill(accountIds, SipProfile.INVALID_ID);
+        System.arraycopy(current.accountIds, 0, accountIds, 0, current.accountIds.length);
+        // The pjsua id may have been used by another account before
+        accountIds[pjsuaId] = accountId;
+
+        // Rebuild reverse lookup from the dense array
+        int count = 0;
+        for (long accId : accountIds) {
+            if (accId != SipProfile.INVALID_ID) {
+                count++;
+            }
+        }
+        long[] sorted = new long[count];
+        int[] pjsuaIds = new int[count];
+        int i = 0;
+        for (long accId : accountIds) {
+            if (accId != SipProfile.INVALID_ID) {
+                sorted[i++] = accId;
+            }
+        }
+        Arrays.sort(sorted);
+        for (int pjId = 0; pjId < accountIds.length; pjId++) {
+            if (accountIds[pjId] != SipProfile.INVALID_ID) {
+                pjsuaIds[Arrays.binarySearch(sorted, accountIds[pjId])] = pjId;
+            }
+        }
+        state = new State(accountIds, sorted, pjsuaIds);
+    }
+
+    /**
+     * Remove the association of an account id.
+     */
+    public static synchronized void removeAccount(long accountId) {
+        removeInternal(state, accountId);
+    }
+
+    /**
+     * Remove all associations, when the stack is destroyed.
+     */
+    public static synchronized void clear() {
+        state = EMPTY;
+    }
+
+    private static void removeInternal(State current, long accountId) {
+        int idx = Arrays.binarySearch(current.sortedAccountIds, accountId);
+        if (idx < 0) {
+            return;
+        }
+        long[] accountIds = current.accountIds.clone();
+        accountIds[current.pjsuaIds[idx]] = SipProfile.INVALID_ID;
+
+        int count = current.sortedAccountIds.length - 1;
+        long[] sorted = new long[count];
+        int[] pjsuaIds = new int[count];
+        System.arraycopy(current.sortedAccountIds, 0, sorted, 0, idx);
+        System.arraycopy(current.sortedAccountIds, idx + 1, sorted, idx, count - idx);
+        System.arraycopy(current.pjsuaIds, 0, pjsuaIds, 0, idx);
+        System.arraycopy(current.pjsuaIds, idx + 1, pjsuaIds, idx, count - idx);
+        state = new State(accountIds, sorted, pjsuaIds);
+    }
+}
@@ -50,6 +50,17 @@ public final class PjSipCalls {
 
     private static final String THIS_FILE = "PjSipCalls";
 
+    /**
+     * Native call info filled by the stack on each update. call_get_info
+     * rewrites the whole struct so it is reused, one per pjsip thread.
+     */
+    private static final ThreadLocal<pjsua_call_info> CALL_INFO = new ThreadLocal<pjsua_call_info>() {
+        @Override
+        protected pjsua_call_info initialValue() {
+            return new pjsua_call_info();
+        }
+    };
+
     /**
      * Update the call session infos
      * 
@@ -61,7 +72,7 @@ public final class PjSipCalls {
     public static void updateSessionFromPj(SipCallSessionImpl session, pjsip_event e, Context context)
             throws SameThreadException {
         Log.d(THIS_FILE, "Update call " + session.getCallId());
-        pjsua_call_info pjInfo = new pjsua_call_info();
+        pjsua_call_info pjInfo = CALL_INFO.get();
         int status = pjsua.call_get_info(session.getCallId(), pjInfo);
 
         if (status == pjsua.PJ_SUCCESS) {
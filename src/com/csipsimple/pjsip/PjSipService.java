@@ -46,6 +46,7 @@ import com.csipsimple.api.SipProfile;
 import com.csipsimple.api.SipProfileState;
 import com.csipsimple.api.SipUri;
 import com.csipsimple.api.SipUri.ParsedSipContactInfos;
+import com.csipsimple.db.AccountStatusStore;
 import com.csipsimple.pjsip.earlylock.EarlyLockModule;
 import com.csipsimple.pjsip.player.IPlayerHandler;
 import com.csipsimple.pjsip.player.impl.SimpleWavPlayerHandler;
@@ -61,6 +62,7 @@ import com.csipsimple.service.SipService.ToCall;
 import com.csipsimple.utils.ExtraPlugins;
 import com.csipsimple.utils.ExtraPlugins.DynCodecInfos;
 import com.csipsimple.utils.Log;
+import com.csipsimple.utils.PreferencesCache;
 import com.csipsimple.utils.PreferencesProviderWrapper;
 import com.csipsimple.utils.PreferencesWrapper;
 import com.csipsimple.utils.TimerWrapper;
@@ -125,6 +127,7 @@ public class PjSipService {
     public UAStateReceiver userAgentReceiver;
     public ZrtpStateReceiver zrtpReceiver;
     public MediaManager mediaManager;
+    private RegistrationScheduler registrationScheduler;
 
     private Timer tasksTimer;
     private SparseArray<String> dtmfToAutoSend = new SparseArray<String>(5);
@@ -234,6 +237,9 @@ public class PjSipService {
                     mediaManager = new MediaManager(service);
                 }
                 mediaManager.startService();
+                if (registrationScheduler == null) {
+                    registrationScheduler = new RegistrationScheduler(service);
+                }
 
                 initModules();
 
@@ -627,6 +633,7 @@ public class PjSipService {
             setCodecsPriorities();
 
             created = true;
+            PreferencesCache.getInstance(service).logReadStats(20);
 
             return true;
         }
@@ -675,8 +682,13 @@ public class PjSipService {
             // so don't use RX | TX to not consume data at all
             flags = 3;
         }
+        if (registrationScheduler != null) {
+            registrationScheduler.cancel();
+            registrationScheduler = null;
+        }
         pjsua.csipsimple_destroy(flags);
         service.getContentResolver().delete(SipProfile.ACCOUNT_STATUS_URI, null, null);
+        PjSipAccountIds.clear();
         if (userAgentReceiver != null) {
             userAgentReceiver.stopService();
             userAgentReceiver = null;
@@ -827,9 +839,13 @@ public class PjSipService {
             if (!account.wizard.equalsIgnoreCase(WizardUtils.LOCAL_WIZARD_TAG)) {
                 // Re register
                 if (status == pjsuaConstants.PJ_SUCCESS) {
-                    status = pjsua.acc_set_registration(currentAccountStatus.getPjsuaId(), 1);
-                    if (status == pjsuaConstants.PJ_SUCCESS) {
-                        pjsua.acc_set_online_status(currentAccountStatus.getPjsuaId(), 1);
+                    if (isBatchingRegistrations()) {
+                        registrationScheduler.schedule(currentAccountStatus.getPjsuaId(), profile);
+                    } else {
+                        status = pjsua.acc_set_registration(currentAccountStatus.getPjsuaId(), 1);
+                        if (status == pjsuaConstants.PJ_SUCCESS) {
+                            pjsua.acc_set_online_status(currentAccountStatus.getPjsuaId(), 1);
+                        }
                     }
                 }
             }
@@ -867,7 +883,11 @@ public class PjSipService {
                 pjsua.csipsimple_set_acc_user_data(account.cfg, account.css_cfg);
                 status = pjsua.acc_add(account.cfg, pjsuaConstants.PJ_FALSE, accId);
                 beforeAccountRegistration(accId[0], profile);
-                pjsua.acc_set_registration(accId[0], 1);
+                if (status == pjsuaConstants.PJ_SUCCESS && isBatchingRegistrations()) {
+                    registrationScheduler.schedule(accId[0], profile);
+                } else {
+                    pjsua.acc_set_registration(accId[0], 1);
+                }
             }
 
             if (status == pjsuaConstants.PJ_SUCCESS) {
@@ -877,6 +897,7 @@ public class PjSipService {
                 service.getContentResolver().insert(
                         ContentUris.withAppendedId(SipProfile.ACCOUNT_STATUS_ID_URI_BASE,
                                 account.id), ps.getAsContentValue());
+                PjSipAccountIds.put(accId[0], account.id);
 
                 pjsua.acc_set_online_status(accId[0], 1);
             }
@@ -885,6 +906,51 @@ public class PjSipService {
         return status == pjsuaConstants.PJ_SUCCESS;
     }
 
+    /**
+     * Add accounts to the stack, their registrations being spread by the
+     * registration scheduler
+     * 
+     * @param profiles the accounts to add
+     * @return true if at least one account was added
+     * @throws SameThreadException
+     */
+    public boolean addAccounts(List<SipProfile> profiles) throws SameThreadException {
+        boolean hasSomeSuccess = false;
+        if (registrationScheduler != null) {
+            registrationScheduler.beginBatch();
+        }
+        try {
+            for (SipProfile profile : profiles) {
+                if (addAccount(profile)) {
+                    hasSomeSuccess = true;
+                }
+            }
+        } finally {
+            if (registrationScheduler != null) {
+                registrationScheduler.endBatch();
+            }
+        }
+        return hasSomeSuccess;
+    }
+
+    private boolean isBatchingRegistrations() {
+        return registrationScheduler != null && registrationScheduler.isBatching();
+    }
+
+    private void cancelRegistration(int pjsuaId) {
+        if (registrationScheduler != null) {
+            registrationScheduler.cancel(pjsuaId);
+        }
+    }
+
+    /**
+     * @return ms until all accounts registered together got their
+     *         registration state, last time it happened. -1 if unknown.
+     */
+    public long getLastRegistrationBatchDuration() {
+        return registrationScheduler != null ? registrationScheduler.getLastBatchDuration() : -1;
+    }
+
     void beforeAccountRegistration(int pjId, SipProfile profile) {
         for (PjsipModule mod : pjsipModules.values()) {
             mod.onBeforeAccountStartRegistration(pjId, profile);
@@ -911,13 +977,17 @@ public class PjSipService {
             if (success == pjsuaConstants.PJ_SUCCESS && pjAccountInfo != null) {
                 ContentValues cv = new ContentValues();
 
+                int statusCode;
                 try {
                     // Should be fine : status code are coherent with RFC
                     // status codes
-                    cv.put(SipProfileState.STATUS_CODE, pjAccountInfo.getStatus().swigValue());
+                    statusCode = pjAccountInfo.getStatus().swigValue();
                 } catch (IllegalArgumentException e) {
-                    cv.put(SipProfileState.STATUS_CODE,
-                            SipCallSession.StatusCode.INTERNAL_SERVER_ERROR);
+                    statusCode = SipCallSession.StatusCode.INTERNAL_SERVER_ERROR;
+                }
+                cv.put(SipProfileState.STATUS_CODE, statusCode);
+                if (registrationScheduler != null) {
+                    registrationScheduler.onRegistrationState(pjsuaId, statusCode);
                 }
 
                 cv.put(SipProfileState.STATUS_TEXT, pjStrToString(pjAccountInfo.getStatus_text()));
@@ -935,7 +1005,8 @@ public class PjSipService {
     }
 
     /**
-     * Get the dynamic state of the profile
+     * Get the dynamic state of the profile. Its pjsua id is the one of
+     * {@link PjSipAccountIds}, not the one of the status row.
      * 
      * @param account the sip profile from database. Important field is id.
      * @return the dynamic sip profile state
@@ -948,6 +1019,16 @@ public class PjSipService {
             return null;
         }
         SipProfileState accountInfo = new SipProfileState(account);
+        AccountStatusStore statusStore = AccountStatusStore.getLocal();
+        if (statusStore != null) {
+            // Provider runs in this process, read its state directly
+            SipProfileState current = statusStore.getSnapshot().get(account.id);
+            if (current != null) {
+                accountInfo.createFromContentValue(current.getAsContentValue());
+            }
+            accountInfo.setPjsuaId(PjSipAccountIds.getPjsuaId(account.id));
+            return accountInfo;
+        }
         Cursor c = service.getContentResolver().query(
                 ContentUris.withAppendedId(SipProfile.ACCOUNT_STATUS_ID_URI_BASE, account.id),
                 null, null, null, null);
@@ -963,6 +1044,7 @@ public class PjSipService {
                 c.close();
             }
         }
+        accountInfo.setPjsuaId(PjSipAccountIds.getPjsuaId(account.id));
         return accountInfo;
     }
 
@@ -1076,8 +1158,8 @@ public class PjSipService {
 
                             String codecKey = SipConfigManager.getCodecKey(codec,
                                     SipConfigManager.FRAMES_PER_PACKET_SUFFIX);
-                            Integer frmPerPacket = SipConfigManager.getPreferenceIntegerValue(
-                                    service, codecKey);
+                            Integer frmPerPacket = prefsWrapper.getPreferenceIntegerValue(
+                                    codecKey, null);
                             if (frmPerPacket != null && frmPerPacket > 0) {
                                 Log.v(THIS_FILE, "Set codec " + codec + " fpp : " + frmPerPacket);
                                 pjsua.codec_set_frames_per_packet(codecStr, frmPerPacket);
@@ -1091,7 +1173,7 @@ public class PjSipService {
                             if (aPrio >= 0) {
                                 pjsua.vid_codec_set_priority(pjsua.pj_str_copy(codec), aPrio);
                             }
-                            String videoSize = SipConfigManager.getPreferenceStringValue(service,
+                            String videoSize = prefsWrapper.getPreferenceStringValue(
                                     SipConfigManager.VIDEO_CAPTURE_SIZE, "");
                             if (TextUtils.isEmpty(videoSize) || videoSize.equalsIgnoreCase("0x0@0")) {
                                 List<VideoCaptureDeviceInfo> cps = VideoUtilsWrapper.getInstance()
@@ -1104,12 +1186,12 @@ public class PjSipService {
                             VideoCaptureCapability videoCap = new VideoUtilsWrapper.VideoCaptureCapability(
                                     videoSize);
                             if (codec.startsWith("H264")) {
-                                int h264profile = SipConfigManager.getPreferenceIntegerValue(
-                                        service, SipConfigManager.H264_PROFILE, 66);
-                                int h264level = SipConfigManager.getPreferenceIntegerValue(service,
+                                int h264profile = prefsWrapper.getPreferenceIntegerValue(
+                                        SipConfigManager.H264_PROFILE, 66);
+                                int h264level = prefsWrapper.getPreferenceIntegerValue(
                                         SipConfigManager.H264_LEVEL, 30);
-                                int h264bitrate = SipConfigManager.getPreferenceIntegerValue(
-                                        service, SipConfigManager.H264_BITRATE, 0);
+                                int h264bitrate = prefsWrapper.getPreferenceIntegerValue(
+                                        SipConfigManager.H264_BITRATE, 0);
 
                                 if (h264profile > 0) {
                                     pjsua.codec_h264_set_profile(h264profile, h264level,
@@ -1632,31 +1714,34 @@ public class PjSipService {
             }
         }
 
-        SipProfileState profileState = getProfileState(account);
+        int pjsuaId = PjSipAccountIds.getPjsuaId(account.id);
 
         // In case of already added, we have to act finely
         // If it's local we can just consider that we have to re-add account
         // since it will actually just touch the account with a modify
-        if (profileState != null && profileState.isAddedToStack()
+        if (pjsuaId != PjSipAccountIds.INVALID_PJSUA_ID
                 && !account.wizard.equalsIgnoreCase(WizardUtils.LOCAL_WIZARD_TAG)) {
             // The account is already there in accounts list
             service.getContentResolver().delete(
                     ContentUris.withAppendedId(SipProfile.ACCOUNT_STATUS_URI, account.id), null,
                     null);
+            PjSipAccountIds.removeAccount(account.id);
             Log.d(THIS_FILE, "Account already added to stack, remove and re-load or delete");
             if (renew == 1) {
                 if (forceReAdd) {
-                    status = pjsua.acc_del(profileState.getPjsuaId());
+                    cancelRegistration(pjsuaId);
+                    status = pjsua.acc_del(pjsuaId);
                     addAccount(account);
                 } else {
-                    pjsua.acc_set_online_status(profileState.getPjsuaId(),
+                    pjsua.acc_set_online_status(pjsuaId,
                             getOnlineForStatus(service.getPresence()));
-                    status = pjsua.acc_set_registration(profileState.getPjsuaId(), renew);
+                    status = pjsua.acc_set_registration(pjsuaId, renew);
                 }
             } else {
                 // if(status == pjsuaConstants.PJ_SUCCESS && renew == 0) {
                 Log.d(THIS_FILE, "Delete account !!");
-                status = pjsua.acc_del(profileState.getPjsuaId());
+                cancelRegistration(pjsuaId);
+                status = pjsua.acc_del(pjsuaId);
             }
         } else {
             if (renew == 1) {
@@ -1701,29 +1786,17 @@ public class PjSipService {
         return presence == PresenceStatus.ONLINE ? 1 : 0;
     }
 
+    /**
+     * Get the database account id of a pjsua account.<br/>
+     * This is a lock free lookup in a map kept in sync with account status
+     * rows, so it can be used from pjsip callback threads.
+     * 
+     * @param ctxt unused, kept for callers
+     * @param pjId the pjsua account id
+     * @return the account id or {@link SipProfile#INVALID_ID}
+     */
     public static long getAccountIdForPjsipId(Context ctxt, int pjId) {
-        long accId = SipProfile.INVALID_ID;
-
-        Cursor c = ctxt.getContentResolver().query(SipProfile.ACCOUNT_STATUS_URI, null, null,
-                null, null);
-        if (c != null) {
-            try {
-                c.moveToFirst();
-                do {
-                    int pjsuaId = c.getInt(c.getColumnIndex(SipProfileState.PJSUA_ID));
-                    Log.d(THIS_FILE, "Found pjsua " + pjsuaId + " searching " + pjId);
-                    if (pjsuaId == pjId) {
-                        accId = c.getInt(c.getColumnIndex(SipProfileState.ACCOUNT_ID));
-                        break;
-                    }
-                } while (c.moveToNext());
-            } catch (Exception e) {
-                Log.e(THIS_FILE, "Error on looping over sip profiles", e);
-            } finally {
-                c.close();
-            }
-        }
-        return accId;
+        return PjSipAccountIds.getAccountId(pjId);
     }
 
     public SipProfile getAccountForPjsipId(int pjId) {
@@ -1784,27 +1857,26 @@ public class PjSipService {
     private ToCall sanitizeSipUri(String callee, long accountId) throws SameThreadException {
         // accountId is the id in term of csipsimple database
         // pjsipAccountId is the account id in term of pjsip adding
-        int pjsipAccountId = (int) SipProfile.INVALID_ID;
-
-        // Fake a sip profile empty to get it's profile state
-        // Real get from db will be done later
-        SipProfile account = new SipProfile();
-        account.id = accountId;
-        SipProfileState profileState = getProfileState(account);
+        int pjsipAccountId = PjSipAccountIds.getPjsuaId(accountId);
         long finalAccountId = accountId;
+        SipProfile account = null;
 
         // If this is an invalid account id
-        if (accountId == SipProfile.INVALID_ID || !profileState.isAddedToStack()) {
+        if (accountId == SipProfile.INVALID_ID
+                || pjsipAccountId == PjSipAccountIds.INVALID_PJSUA_ID) {
             int defaultPjsipAccount = pjsua.acc_get_default();
-
-            boolean valid = false;
-            account = getAccountForPjsipId(defaultPjsipAccount);
-            if (account != null) {
-                profileState = getProfileState(account);
-                valid = profileState.isAddedToStack();
-            }
+            long defaultAccountId = getAccountIdForPjsipId(service, defaultPjsipAccount);
             // If default account is not active
-            if (!valid) {
+            AccountStatusStore statusStore = AccountStatusStore.getLocal();
+            if (defaultAccountId == SipProfile.INVALID_ID && statusStore != null) {
+                for (SipProfileState ps : statusStore.getSnapshot().getAll()) {
+                    if (ps.isValidForCall()) {
+                        finalAccountId = ps.getAccountId();
+                        pjsipAccountId = PjSipAccountIds.getPjsuaId(finalAccountId);
+                        break;
+                    }
+                }
+            } else if (defaultAccountId == SipProfile.INVALID_ID) {
                 Cursor c = service.getContentResolver().query(SipProfile.ACCOUNT_STATUS_URI, null,
                         null, null, null);
                 if (c != null) {
@@ -1815,7 +1887,7 @@ public class PjSipService {
                                 SipProfileState ps = new SipProfileState(c);
                                 if (ps.isValidForCall()) {
                                     finalAccountId = ps.getAccountId();
-                                    pjsipAccountId = ps.getPjsuaId();
+                                    pjsipAccountId = PjSipAccountIds.getPjsuaId(finalAccountId);
                                     break;
                                 }
                             } while (c.moveToNext());
@@ -1828,12 +1900,9 @@ public class PjSipService {
                 }
             } else {
                 // Use the default account
-                finalAccountId = profileState.getAccountId();
-                pjsipAccountId = profileState.getPjsuaId();
+                finalAccountId = defaultAccountId;
+                pjsipAccountId = defaultPjsipAccount;
             }
-        } else {
-            // If the account is valid
-            pjsipAccountId = profileState.getPjsuaId();
         }
 
         if (pjsipAccountId == SipProfile.INVALID_ID) {
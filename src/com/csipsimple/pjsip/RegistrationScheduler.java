@@ -0,0 +1,359 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.pjsip;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.csipsimple.api.SipConfigManager;
+import com.csipsimple.api.SipProfile;
+import com.csipsimple.api.SipUri;
+import com.csipsimple.api.SipUri.ParsedSipUriInfos;
+import com.csipsimple.service.SipService;
+import com.csipsimple.service.SipService.SameThreadException;
+import com.csipsimple.service.SipService.SipRunnable;
+import com.csipsimple.utils.Log;
+
+import org.pjsip.pjsua.pjsua;
+import org.pjsip.pjsua.pjsuaConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Registration of accounts added together, on stack start or network
+ * change.<br/>
+ * Instead of sending all REGISTER at once, registrations of a batch going to
+ * the same registrar are spread over a jitter window, highest priority
+ * accounts first, and at most a configured number of registrations are
+ * running per registrar. A slot is
+ * released when pjsip reports the registration state, or after a timeout.
+ * The time until all accounts of a batch got their state is logged and kept
+ * as {@link #getLastBatchDuration()}.
+ * <p>
+ * Only used from the sip executor thread.
+ */
+class RegistrationScheduler {
+
+    private static final String THIS_FILE = "RegistrationScheduler";
+
+    // Give up waiting for a registration state, a bit more than sip timer F
+    private static final long REGISTRATION_TIMEOUT = 35000;
+
+    private final class PendingRegistration {
+        final int pjsuaId;
+        final int priority;
+        final String registrar;
+        long notBefore;
+
+        final Runnable timeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                service.getExecutor().execute(new SipRunnable() {
+                    @Override
+                    protected void doRun() throws SameThreadException {
+                        if (inFlight.get(pjsuaId) == PendingRegistration.this) {
+                            Log.w(THIS_FILE, "No registration state for " + pjsuaId);
+                            onRegistrationDone(pjsuaId, false);
+                        }
+                    }
+                });
+            }
+        };
+
+        PendingRegistration(int aPjsuaId, SipProfile profile) {
+            pjsuaId = aPjsuaId;
+            priority = profile.priority;
+            registrar = getRegistrar(profile);
+        }
+    }
+
+    // Highest priority first
+    private static final Comparator<PendingRegistration> PRIORITY_ORDER = new Comparator<PendingRegistration>() {
+        @Override
+        public int compare(PendingRegistration lhs, PendingRegistration rhs) {
+            return lhs.priority > rhs.priority ? -1 : (lhs.priority == rhs.priority ? 0 : 1);
+        }
+    };
+
+    private final SipService service;
+    private final Handler handler;
+    private final Random random = new Random();
+    private final int maxPerRegistrar;
+    private final int jitter;
+
+    private boolean batching = false;
+    // Registrations waiting for a slot, in dispatch order
+    private final List<PendingRegistration> queue = new ArrayList<PendingRegistration>();
+    private final Map<Integer, PendingRegistration> inFlight = new HashMap<Integer, PendingRegistration>();
+    private final Map<String, Integer> inFlightPerRegistrar = new HashMap<String, Integer>();
+
+    // Accounts of the current batch without registration state yet
+    private final Set<Integer> batchPending = new HashSet<Integer>();
+    private long batchStart = 0;
+    private int batchSize = 0;
+    private int batchRegistered = 0;
+    private long lastBatchDuration = -1;
+
+    private final Runnable pumpTask = new Runnable() {
+        @Override
+        public void run() {
+            service.getExecutor().execute(new SipRunnable() {
+                @Override
+                protected void doRun() throws SameThreadException {
+                    pump();
+                }
+            });
+        }
+    };
+
+    RegistrationScheduler(SipService aService) {
+        service = aService;
+        handler = new Handler(service.getExecutor().getLooper());
+        maxPerRegistrar = Math.max(1, service.getPrefs().getPreferenceIntegerValue(
+                SipConfigManager.REGISTRATION_CONCURRENCY));
+        jitter = Math.max(0, service.getPrefs().getPreferenceIntegerValue(
+                SipConfigManager.REGISTRATION_JITTER));
+    }
+
+    /**
+     * Start collecting registrations of accounts added together.
+     */
+    void beginBatch() {
+        batching = true;
+    }
+
+    /**
+     * @return true if registrations are collected by
+     *         {@link #schedule(int, SipProfile)} instead of being sent
+     */
+    boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * Queue the registration of an account of the batch.
+     *
+     * @param pjsuaId pjsip id of the account, already added to the stack
+     * @param profile the account
+     */
+    void schedule(int pjsuaId, SipProfile profile) {
+        cancel(pjsuaId);
+        queue.add(new PendingRegistration(pjsuaId, profile));
+        batchPending.add(pjsuaId);
+    }
+
+    /**
+     * Stop collecting registrations and start sending the ones queued.
+     */
+    void endBatch() {
+        batching = false;
+        if (queue.isEmpty()) {
+            return;
+        }
+        Collections.sort(queue, PRIORITY_ORDER);
+        long now = SystemClock.elapsedRealtime();
+        int count = queue.size();
+        // Only accounts sharing a registrar are spread over the jitter
+        // window, in priority order. One alone is registered right away.
+        Map<String, List<PendingRegistration>> perRegistrar = new HashMap<String, List<PendingRegistration>>();
+        for (PendingRegistration registration : queue) {
+            List<PendingRegistration> sameRegistrar = perRegistrar.get(registration.registrar);
+            if (sameRegistrar == null) {
+                sameRegistrar = new ArrayList<PendingRegistration>();
+                perRegistrar.put(registration.registrar, sameRegistrar);
+            }
+            sameRegistrar.add(registration);
+        }
+        for (List<PendingRegistration> sameRegistrar : perRegistrar.values()) {
+            int registrarCount = sameRegistrar.size();
+            int slice = registrarCount > 1 ? jitter / registrarCount : 0;
+            for (int i = 0; i < registrarCount; i++) {
+                sameRegistrar.get(i).notBefore = now + (long) slice * i
+                        + (slice > 0 ? random.nextInt(slice) : 0);
+            }
+        }
+        if (batchStart == 0) {
+            batchStart = now;
+            batchRegistered = 0;
+        }
+        batchSize = batchPending.size();
+        Log.d(THIS_FILE, "Registering " + count + " accounts to " + perRegistrar.size()
+                + " registrars");
+        pump();
+    }
+
+    /**
+     * Release the slot of an account once pjsip reports its registration
+     * state.
+     *
+     * @param pjsuaId pjsip id of the account
+     * @param statusCode sip status code of the registration
+     */
+    void onRegistrationState(int pjsuaId, int statusCode) {
+        if (inFlight.containsKey(pjsuaId)) {
+            onRegistrationDone(pjsuaId, statusCode / 100 == 2);
+        }
+    }
+
+    /**
+     * Forget everything queued or running, the stack is going down.
+     */
+    void cancel() {
+        handler.removeCallbacks(pumpTask);
+        for (PendingRegistration registration : inFlight.values()) {
+            handler.removeCallbacks(registration.timeoutTask);
+        }
+        queue.clear();
+        inFlight.clear();
+        inFlightPerRegistrar.clear();
+        batchPending.clear();
+        batchStart = 0;
+        batching = false;
+    }
+
+    /**
+     * @return ms between the start of the last complete batch and the last
+     *         registration state of its accounts, -1 if none completed yet
+     */
+    long getLastBatchDuration() {
+        return lastBatchDuration;
+    }
+
+    /**
+     * Forget the registration of an account, must be called before the
+     * account is removed from the stack.
+     *
+     * @param pjsuaId pjsip id of the account
+     */
+    void cancel(int pjsuaId) {
+        Iterator<PendingRegistration> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().pjsuaId == pjsuaId) {
+                it.remove();
+            }
+        }
+        PendingRegistration running = inFlight.remove(pjsuaId);
+        if (running != null) {
+            handler.removeCallbacks(running.timeoutTask);
+            releaseSlot(running.registrar);
+        }
+        onBatchAccountDone(pjsuaId, false);
+        if (running != null && !batching) {
+            // Its slot may let another registration go
+            pump();
+        }
+    }
+
+    private void pump() {
+        handler.removeCallbacks(pumpTask);
+        long now = SystemClock.elapsedRealtime();
+        long nextTime = Long.MAX_VALUE;
+        Iterator<PendingRegistration> it = queue.iterator();
+        while (it.hasNext()) {
+            PendingRegistration registration = it.next();
+            if (registration.notBefore > now) {
+                nextTime = Math.min(nextTime, registration.notBefore);
+                continue;
+            }
+            Integer running = inFlightPerRegistrar.get(registration.registrar);
+            if (running != null && running >= maxPerRegistrar) {
+                // Next state of this registrar pumps again
+                continue;
+            }
+            it.remove();
+            register(registration);
+        }
+        if (nextTime != Long.MAX_VALUE) {
+            handler.postDelayed(pumpTask, nextTime - now);
+        }
+    }
+
+    private void register(PendingRegistration registration) {
+        int status = pjsua.acc_set_registration(registration.pjsuaId, 1);
+        if (status != pjsuaConstants.PJ_SUCCESS) {
+            Log.w(THIS_FILE, "Registration of " + registration.pjsuaId + " failed " + status);
+            onBatchAccountDone(registration.pjsuaId, false);
+            return;
+        }
+        pjsua.acc_set_online_status(registration.pjsuaId, 1);
+        inFlight.put(registration.pjsuaId, registration);
+        Integer running = inFlightPerRegistrar.get(registration.registrar);
+        inFlightPerRegistrar.put(registration.registrar, running == null ? 1 : running + 1);
+        handler.postDelayed(registration.timeoutTask, REGISTRATION_TIMEOUT);
+    }
+
+    private void onRegistrationDone(int pjsuaId, boolean registered) {
+        PendingRegistration registration = inFlight.remove(pjsuaId);
+        if (registration == null) {
+            return;
+        }
+        handler.removeCallbacks(registration.timeoutTask);
+        releaseSlot(registration.registrar);
+        onBatchAccountDone(pjsuaId, registered);
+        pump();
+    }
+
+    private void releaseSlot(String registrar) {
+        Integer running = inFlightPerRegistrar.get(registrar);
+        if (running == null || running <= 1) {
+            inFlightPerRegistrar.remove(registrar);
+        } else {
+            inFlightPerRegistrar.put(registrar, running - 1);
+        }
+    }
+
+    private void onBatchAccountDone(int pjsuaId, boolean registered) {
+        if (!batchPending.remove(pjsuaId)) {
+            return;
+        }
+        if (registered) {
+            batchRegistered++;
+        }
+        if (batchPending.isEmpty() && !batching) {
+            lastBatchDuration = SystemClock.elapsedRealtime() - batchStart;
+            batchStart = 0;
+            Log.i(THIS_FILE, "Time to all registered : " + lastBatchDuration + " ms ("
+                    + batchRegistered + "/" + batchSize + " registered)");
+        }
+    }
+
+    /**
+     * @return host and port registrations of the account go to, lower case
+     */
+    private static String getRegistrar(SipProfile profile) {
+        if (TextUtils.isEmpty(profile.reg_uri)) {
+            return "";
+        }
+        ParsedSipUriInfos infos = SipUri.parseSipUri(profile.reg_uri);
+        return infos.domain.toLowerCase() + ":" + infos.port;
+    }
+}
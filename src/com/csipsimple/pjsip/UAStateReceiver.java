@@ -34,11 +34,8 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.SystemClock;
-import android.provider.CallLog;
-import android.provider.CallLog.Calls;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
-import android.util.SparseArray;
 
 import com.csipsimple.R;
 import com.csipsimple.api.SipCallSession;
@@ -49,14 +46,12 @@ import com.csipsimple.api.SipManager.PresenceStatus;
 import com.csipsimple.api.SipMessage;
 import com.csipsimple.api.SipProfile;
 import com.csipsimple.api.SipUri;
-import com.csipsimple.api.SipUri.ParsedSipContactInfos;
 import com.csipsimple.service.MediaManager;
 import com.csipsimple.service.SipNotifications;
 import com.csipsimple.service.SipService;
 import com.csipsimple.service.SipService.SameThreadException;
 import com.csipsimple.service.SipService.SipRunnable;
 import com.csipsimple.service.impl.SipCallSessionImpl;
-import com.csipsimple.utils.CallLogHelper;
 import com.csipsimple.utils.Log;
 import com.csipsimple.utils.Threading;
 import com.csipsimple.utils.TimerWrapper;
@@ -72,8 +67,6 @@ import org.pjsip.pjsua.pjsua;
 import org.pjsip.pjsua.pjsua_buddy_info;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -122,6 +115,7 @@ public class UAStateReceiver extends Callback {
         // Check if we have not already an ongoing call
         boolean hasOngoingSipCall = false;
         if (pjService != null && pjService.service != null) {
+            // Snapshot of calls, does not wait for other callbacks
             SipCallSessionImpl[] calls = getCalls();
             if (calls != null) {
                 for (SipCallSessionImpl existingCall : calls) {
@@ -540,7 +534,7 @@ public class UAStateReceiver extends Callback {
      * information it gets comes from the stack. Except recording status that
      * comes from service.
      */
-    private SparseArray<SipCallSessionImpl> callsList = new SparseArray<SipCallSessionImpl>();
+    private final CallSessionRegistry callsList = new CallSessionRegistry();
 
     /**
      * Update the call information from pjsip stack by calling pjsip primitives.
@@ -554,24 +548,19 @@ public class UAStateReceiver extends Callback {
      */
     private SipCallSessionImpl updateCallInfoFromStack(Integer callId, pjsip_event e)
             throws SameThreadException {
-        SipCallSessionImpl callInfo;
         Log.d(THIS_FILE, "Updating call infos from the stack");
-        synchronized (callsList) {
-            callInfo = callsList.get(callId);
-            if (callInfo == null) {
-                callInfo = new SipCallSessionImpl();
-                callInfo.setCallId(callId);
-            }
+        SipCallSessionImpl callInfo = callsList.get(callId);
+        if (callInfo == null) {
+            callInfo = new SipCallSessionImpl();
+            callInfo.setCallId(callId);
         }
         // We update session infos. callInfo is both in/out and will be updated
         PjSipCalls.updateSessionFromPj(callInfo, e, pjService.service);
         // We update from our current recording state
         callInfo.setIsRecording(pjService.isRecording(callId));
         callInfo.setCanRecord(pjService.canRecord(callId));
-        synchronized (callsList) {
-            // Re-add to list mainly for case newly added session
-            callsList.put(callId, callInfo);
-        }
+        // Re-add to list mainly for case newly added session
+        callsList.put(callInfo);
         return callInfo;
     }
 
@@ -582,34 +571,28 @@ public class UAStateReceiver extends Callback {
      * @return the call session infos.
      */
     public SipCallSessionImpl getCallInfo(Integer callId) {
-        SipCallSessionImpl callInfo;
-        synchronized (callsList) {
-            callInfo = callsList.get(callId, null);
-        }
-        return callInfo;
+        return callsList.get(callId);
     }
 
     /**
      * Get list of calls session available.
      * 
-     * @return List of calls.
+     * @return List of calls. The array is shared and must not be modified.
      */
     public SipCallSessionImpl[] getCalls() {
-        if (callsList != null) {
-            List<SipCallSessionImpl> calls = new ArrayList<SipCallSessionImpl>();
+        return callsList.getAll();
+    }
 
-            for (int i = 0; i < callsList.size(); i++) {
-                SipCallSessionImpl callInfo = getCallInfo(i);
-                if (callInfo != null) {
-                    calls.add(callInfo);
-                }
-            }
-            return calls.toArray(new SipCallSessionImpl[calls.size()]);
-        }
-        return new SipCallSessionImpl[0];
+    /**
+     * @return generation of the calls list, increased each time a call
+     *         session is changed
+     */
+    public long getCallsGeneration() {
+        return callsList.getSnapshot().generation;
     }
 
     private WorkerHandler msgHandler;
+    private CallEndPersister callEndPersister;
     private HandlerThread handlerThread;
     private WakeLock ongoingCallLock;
     private WakeLock eventLock;
@@ -699,66 +682,10 @@ public class UAStateReceiver extends Callback {
                                 }
                             }
 
-                            // CallLog
-                            ContentValues cv = CallLogHelper.logValuesForCall(
-                                    stateReceiver.pjService.service, callInfo,
-                                    callInfo.getCallStart());
-
-                            // Fill our own database
-                            stateReceiver.pjService.service.getContentResolver().insert(
-                                    SipManager.CALLLOG_URI, cv);
-                            Integer isNew = cv.getAsInteger(CallLog.Calls.NEW);
-                            if (isNew != null && isNew == 1) {
-                                stateReceiver.notificationManager.showNotificationForMissedCall(cv);
-                            }
-
-                            // If the call goes out in error...
-                            if (callInfo.getLastStatusCode() != 200 && callInfo.getLastReasonCode() != 200) {
-                                // We notify the user with toaster
-                                stateReceiver.pjService.service.notifyUserOfMessage(callInfo
-                                        .getLastStatusCode()
-                                        + " / "
-                                        + callInfo.getLastStatusComment());
-                            }
-
-                            // If needed fill native database
-                            if (stateReceiver.mIntegrateWithCallLogs) {
-                                // Don't add with new flag
-                                cv.put(CallLog.Calls.NEW, false);
-                                // Remove csipsimple custom entries
-                                cv.remove(SipManager.CALLLOG_PROFILE_ID_FIELD);
-                                cv.remove(SipManager.CALLLOG_STATUS_CODE_FIELD);
-                                cv.remove(SipManager.CALLLOG_STATUS_TEXT_FIELD);
-
-                                // Reformat number for callogs
-                                ParsedSipContactInfos callerInfos = SipUri.parseSipContact(cv
-                                        .getAsString(Calls.NUMBER));
-                                if (callerInfos != null) {
-                                    String phoneNumber = SipUri.getPhoneNumber(callerInfos);
-
-                                    // Only log numbers that can be called by
-                                    // GSM too.
-                                    // TODO : if android 2.3 add sip uri also
-                                    if (!TextUtils.isEmpty(phoneNumber)) {
-                                        cv.put(Calls.NUMBER, phoneNumber);
-                                        // For log in call logs => don't add as
-                                        // new calls... we manage it ourselves.
-                                        cv.put(Calls.NEW, false);
-                                        ContentValues extraCv = new ContentValues();
-
-                                        if (callInfo.getAccId() != SipProfile.INVALID_ID) {
-                                            SipProfile acc = stateReceiver.pjService.service
-                                                    .getAccount(callInfo.getAccId());
-                                            if (acc != null && acc.display_name != null) {
-                                                extraCv.put(CallLogHelper.EXTRA_SIP_PROVIDER,
-                                                        acc.display_name);
-                                            }
-                                        }
-                                        CallLogHelper.addCallLog(stateReceiver.pjService.service,
-                                                cv, extraCv);
-                                    }
-                                }
-                            }
+                            // Call logs, notifications and native call logs
+                            // are written by the persister thread
+                            stateReceiver.callEndPersister.onCallEnded(callInfo,
+                                    stateReceiver.mIntegrateWithCallLogs);
                             callInfo.applyDisconnect();
                             break;
                         default:
@@ -772,7 +699,7 @@ public class UAStateReceiver extends Callback {
                     SipCallSessionImpl callInfo = stateReceiver.callsList.get(mediaCallInfo
                             .getCallId());
                     callInfo.setMediaStatus(mediaCallInfo.getMediaStatus());
-                    stateReceiver.callsList.put(mediaCallInfo.getCallId(), callInfo);
+                    stateReceiver.callsList.put(callInfo);
                     stateReceiver.onBroadcastCallState(callInfo);
                     break;
                 }
@@ -796,6 +723,9 @@ public class UAStateReceiver extends Callback {
         if (msgHandler == null) {
             msgHandler = new WorkerHandler(handlerThread.getLooper(), this);
         }
+        if (callEndPersister == null) {
+            callEndPersister = new CallEndPersister(pjService.service, notificationManager);
+        }
 
         if (eventLock == null) {
             PowerManager pman = (PowerManager) pjService.service
@@ -819,6 +749,9 @@ public class UAStateReceiver extends Callback {
         Threading.stopHandlerThread(handlerThread, true);
         handlerThread = null;
         msgHandler = null;
+        if (callEndPersister != null) {
+            callEndPersister.stop();
+        }
 
         // Ensure lock is released since this lock is a ref counted one.
         if (eventLock != null) {
@@ -861,7 +794,8 @@ public class UAStateReceiver extends Callback {
         Intent callStateChangedIntent = new Intent(SipManager.ACTION_SIP_CALL_CHANGED);
         callStateChangedIntent.putExtra(SipManager.EXTRA_CALL_INFO, publicCallInfo);
         pjService.service.sendBroadcast(callStateChangedIntent, SipManager.PERMISSION_USE_SIP);
-
+        // Registered listeners get the change without a broadcast
+        pjService.service.callStateDispatcher.onCallChanged(publicCallInfo);
     }
 
     /**
@@ -921,9 +855,8 @@ public class UAStateReceiver extends Callback {
      */
     public SipCallSession getActiveCallInProgress() {
         // Go through the whole list of calls and find the first active state.
-        for (int i = 0; i < callsList.size(); i++) {
-            SipCallSession callInfo = getCallInfo(i);
-            if (callInfo != null && callInfo.isActive()) {
+        for (SipCallSession callInfo : callsList.getAll()) {
+            if (callInfo.isActive()) {
                 return callInfo;
             }
         }
@@ -937,9 +870,8 @@ public class UAStateReceiver extends Callback {
      */
     public SipCallSession getActiveCallOngoing() {
         // Go through the whole list of calls and find the first active state.
-        for (int i = 0; i < callsList.size(); i++) {
-            SipCallSession callInfo = getCallInfo(i);
-            if (callInfo != null && callInfo.isActive() && callInfo.isOngoing()) {
+        for (SipCallSession callInfo : callsList.getAll()) {
+            if (callInfo.isActive() && callInfo.isOngoing()) {
                 return callInfo;
             }
         }
@@ -1015,10 +947,8 @@ public class UAStateReceiver extends Callback {
         SipCallSessionImpl callInfo = getCallInfo(callId);
         callInfo.setCanRecord(canRecord);
         callInfo.setIsRecording(isRecording);
-        synchronized (callsList) {
-            // Re-add it just to be sure
-            callsList.put(callId, callInfo);
-        }
+        // Re-add it just to be sure
+        callsList.put(callInfo);
         onBroadcastCallState(callInfo);
     }
 
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.service;
+
+import android.content.Context;
+import android.database.ContentObserver;
+
+import com.csipsimple.api.SipProfile;
+import com.csipsimple.db.DBProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accounts of the service, kept by id.<br/>
+ * The first read of an account queries the provider, next ones reuse the
+ * profile until the account changes. Entries are dropped when the provider
+ * notifies a change of accounts and when
+ * {@link com.csipsimple.api.SipManager#ACTION_SIP_ACCOUNT_CHANGED} is
+ * received. A query racing with a change is not kept, so a stale profile
+ * never stays in the cache.
+ */
+public class AccountCache {
+
+    private final Context context;
+
+    // Guarded by this
+    private final Map<Long, SipProfile> profiles = new HashMap<Long, SipProfile>();
+    // Increased by each invalidation
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private final ContentObserver accountsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidateAll();
+        }
+    };
+
+    public AccountCache(Context aContext) {
+        context = aContext;
+    }
+
+    /**
+     * Start listening to changes of accounts.
+     */
+    public void start() {
+        context.getContentResolver().registerContentObserver(SipProfile.ACCOUNT_URI, true,
+                accountsObserver);
+    }
+
+    /**
+     * Stop listening to changes of accounts and drop all entries.
+     */
+    public void stop() {
+        context.getContentResolver().unregisterContentObserver(accountsObserver);
+        invalidateAll();
+    }
+
+    /**
+     * Get an account. The profile is shared and must not be modified.
+     *
+     * @param accountId database id of the account
+     * @return the account, with {@link SipProfile#INVALID_ID} id if it does
+     *         not exist
+     */
+    public SipProfile get(long accountId) {
+        long queryGeneration;
+        synchronized (this) {
+            SipProfile profile = profiles.get(accountId);
+            if (profile != null) {
+                hits++;
+                return profile;
+            }
+            misses++;
+            queryGeneration = generation;
+        }
+        SipProfile profile = SipProfile.getProfileFromDbId(context, accountId,
+                DBProvider.ACCOUNT_FULL_PROJECTION);
+        if (profile.id != SipProfile.INVALID_ID) {
+            synchronized (this) {
+                if (queryGeneration == generation) {
+                    profiles.put(accountId, profile);
+                }
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Drop an account, next read queries the provider.
+     */
+    public synchronized void invalidate(long accountId) {
+        generation++;
+        profiles.remove(accountId);
+    }
+
+    /**
+     * Drop all accounts.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        profiles.clear();
+    }
+
+    /**
+     * @return number of reads served from the cache
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return number of reads that queried the provider
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.util.SparseArray;
+
+import com.csipsimple.api.ISipCallListener;
+import com.csipsimple.api.SipCallSession;
+import com.csipsimple.utils.Log;
+
+/**
+ * Push calls states to {@link ISipCallListener} registered on the service.<br/>
+ * Changes are sent from a dedicated thread, so that they reach a listener in
+ * order, after its initial snapshot. Changes of a call are held a short
+ * window and only the last state of the call in this window is sent.
+ */
+public class CallStateDispatcher {
+
+    private static final String THIS_FILE = "CallStateDispatcher";
+
+    // Changes of a call closer than that are sent once
+    private static final long COALESCE_WINDOW = 50;
+
+    private final SipService service;
+    private final RemoteCallbackList<ISipCallListener> listeners = new RemoteCallbackList<ISipCallListener>();
+    private final HandlerThread handlerThread;
+    private final Handler handler;
+
+    // Guarded by pendingCalls
+    private final SparseArray<SipCallSession> pendingCalls = new SparseArray<SipCallSession>();
+    private boolean flushScheduled = false;
+    // Only used on handler thread
+    private long version = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public CallStateDispatcher(SipService aService) {
+        service = aService;
+        handlerThread = new HandlerThread("CallStateDispatcher");
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * Add a listener. It gets the current calls first, then changes.
+     */
+    public void register(final ISipCallListener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!listeners.register(listener)) {
+                    return;
+                }
+                try {
+                    listener.onCallsSnapshot(version, service.getCalls());
+                } catch (RemoteException e) {
+                    Log.e(THIS_FILE, "Can't send calls to listener", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove a listener. Done on the dispatch thread too, so that it can't
+     * pass a pending {@link #register(ISipCallListener)} of the same listener.
+     */
+    public void unregister(final ISipCallListener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listeners.unregister(listener);
+            }
+        });
+    }
+
+    /**
+     * Must be called each time a call changes.
+     *
+     * @param callInfo the new state of the call, must not be modified later
+     */
+    public void onCallChanged(SipCallSession callInfo) {
+        synchronized (pendingCalls) {
+            pendingCalls.put(callInfo.getCallId(), callInfo);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        handler.postDelayed(flushTask, COALESCE_WINDOW);
+    }
+
+    /**
+     * Drop listeners and stop the thread.
+     */
+    public void stop() {
+        listeners.kill();
+        handlerThread.quit();
+    }
+
+    private void flush() {
+        SipCallSession[] calls;
+        synchronized (pendingCalls) {
+            flushScheduled = false;
+            calls = new SipCallSession[pendingCalls.size()];
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] = pendingCalls.valueAt(i);
+            }
+            pendingCalls.clear();
+        }
+        int count = listeners.beginBroadcast();
+        try {
+            for (SipCallSession call : calls) {
+                version++;
+                for (int i = 0; i < count; i++) {
+                    try {
+                        listeners.getBroadcastItem(i).onCallChanged(version, call);
+                    } catch (RemoteException e) {
+                        // Dead listeners are removed by the list
+                        Log.w(THIS_FILE, "Can't send call change to listener");
+                    }
+                }
+            }
+        } finally {
+            listeners.finishBroadcast();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.service;
+
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.IBinder.DeathRecipient;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+import com.csipsimple.api.SipConfigManager;
+import com.csipsimple.utils.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sound level meter of the conference port 0.<br/>
+ * While at least one client holds a lease, levels are sampled at the
+ * configured period into a ring buffer living in a memory mapped file. Clients
+ * get a read only descriptor of this file once, then read levels with a
+ * {@link Reader} without any call to the service.
+ * <p>
+ * Layout of the buffer : number of samples written, sampling period in ms,
+ * sampled port, then {@link #CAPACITY} levels encoded as
+ * <code>rx &lt;&lt; 8 | tx</code>.
+ */
+public class LevelMeter {
+
+    private static final String THIS_FILE = "LevelMeter";
+
+    private static final String FILE_NAME = "level_meter";
+    private static final int DEFAULT_PERIOD = 100;
+    // Must be a power of 2 so that slots do not jump when sequence wraps
+    private static final int CAPACITY = 32;
+
+    private static final int OFFSET_SEQUENCE = 0;
+    private static final int OFFSET_PERIOD = 4;
+    private static final int OFFSET_PORT = 8;
+    private static final int OFFSET_LEVELS = 12;
+    private static final int SIZE = OFFSET_LEVELS + CAPACITY * 4;
+
+    private final SipService service;
+    private final Handler handler;
+    private final int port = 0;
+
+    // Guarded by this
+    private final Map<IBinder, DeathRecipient> clients = new HashMap<IBinder, DeathRecipient>();
+    private File file;
+    private MappedByteBuffer buffer;
+    private int sequence = 0;
+    private int period = DEFAULT_PERIOD;
+    private boolean running = false;
+
+    private final Runnable sampleTask = new Runnable() {
+        @Override
+        public void run() {
+            // Stack calls must be done from the sip executor thread
+            long level = service.getRxTxLevel(port);
+            synchronized (LevelMeter.this) {
+                if (!running) {
+                    return;
+                }
+                buffer.putInt(OFFSET_LEVELS + (sequence & (CAPACITY - 1)) * 4, (int) level);
+                sequence = (sequence + 1) & Integer.MAX_VALUE;
+                buffer.putInt(OFFSET_SEQUENCE, sequence);
+                // A stop then start while sampling posted another run, keep one chain
+                handler.removeCallbacks(this);
+                handler.postDelayed(this, period);
+            }
+        }
+    };
+
+    /**
+     * @param aService the service, giving levels
+     * @param looper looper of the sip executor thread
+     */
+    public LevelMeter(SipService aService, Looper looper) {
+        service = aService;
+        handler = new Handler(looper);
+    }
+
+    /**
+     * Take a lease on the meter, starting sampling if needed. The lease ends
+     * with {@link #stop(IBinder)} or when the client dies.
+     *
+     * @param token binder identifying the client
+     * @return read only descriptor of the buffer, or null if not available
+     */
+    public synchronized ParcelFileDescriptor start(final IBinder token) {
+        if (!ensureBuffer()) {
+            return null;
+        }
+        if (!clients.containsKey(token)) {
+            DeathRecipient recipient = new DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    stop(token);
+                }
+            };
+            try {
+                token.linkToDeath(recipient, 0);
+            } catch (RemoteException e) {
+                // Client already dead
+                return null;
+            }
+            clients.put(token, recipient);
+        }
+        if (!running) {
+            period = Math.max(20, service.getPrefs().getPreferenceIntegerValue(
+                    SipConfigManager.LEVEL_METER_PERIOD, DEFAULT_PERIOD));
+            buffer.putInt(OFFSET_PERIOD, period);
+            running = true;
+            handler.removeCallbacks(sampleTask);
+            handler.post(sampleTask);
+        }
+        try {
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (FileNotFoundException e) {
+            Log.e(THIS_FILE, "Level meter file disappeared", e);
+            return null;
+        }
+    }
+
+    /**
+     * Release a lease on the meter. Sampling stops with the last lease.
+     *
+     * @param token binder given to {@link #start(IBinder)}
+     */
+    public synchronized void stop(IBinder token) {
+        DeathRecipient recipient = clients.remove(token);
+        if (recipient != null) {
+            token.unlinkToDeath(recipient, 0);
+        }
+        if (clients.isEmpty()) {
+            running = false;
+            handler.removeCallbacks(sampleTask);
+        }
+    }
+
+    /**
+     * Drop all leases and stop sampling.
+     */
+    public synchronized void release() {
+        for (Map.Entry<IBinder, DeathRecipient> client : clients.entrySet()) {
+            client.getKey().unlinkToDeath(client.getValue(), 0);
+        }
+        clients.clear();
+        running = false;
+        handler.removeCallbacks(sampleTask);
+    }
+
+    private boolean ensureBuffer() {
+        if (buffer != null) {
+            return true;
+        }
+        File meterFile = new File(service.getCacheDir(), FILE_NAME);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(meterFile, "rw");
+            raf.setLength(SIZE);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            buffer.putInt(OFFSET_SEQUENCE, sequence);
+            buffer.putInt(OFFSET_PORT, port);
+            file = meterFile;
+            return true;
+        } catch (IOException e) {
+            Log.e(THIS_FILE, "Unable to create level meter buffer", e);
+            return false;
+        } finally {
+            if (raf != null) {
+                try {
+                    // Mapping remains valid
+                    raf.close();
+                } catch (IOException e) {
+                    Log.e(THIS_FILE, "Unable to close level meter file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Client side of the meter, reads levels from the shared buffer.
+     */
+    public static final class Reader {
+        private final ParcelFileDescriptor fd;
+        private final MappedByteBuffer buffer;
+
+        private Reader(ParcelFileDescriptor aFd, MappedByteBuffer aBuffer) {
+            fd = aFd;
+            buffer = aBuffer;
+        }
+
+        /**
+         * Map the buffer of a meter.
+         *
+         * @param fd descriptor given by the service, owned by the reader
+         *            once this returns
+         * @return the reader, or null if the buffer cannot be mapped
+         */
+        public static Reader open(ParcelFileDescriptor fd) {
+            if (fd == null) {
+                return null;
+            }
+            try {
+                FileInputStream is = new FileInputStream(fd.getFileDescriptor());
+                MappedByteBuffer buffer = is.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        SIZE);
+                return new Reader(fd, buffer);
+            } catch (IOException e) {
+                Log.e(THIS_FILE, "Unable to map level meter buffer", e);
+                closeQuietly(fd);
+                return null;
+            }
+        }
+
+        /**
+         * @return number of samples written so far, changes when a new level
+         *         is available
+         */
+        public int getSequence() {
+            return buffer.getInt(OFFSET_SEQUENCE);
+        }
+
+        /**
+         * @return sampling period in ms
+         */
+        public int getPeriod() {
+            int period = buffer.getInt(OFFSET_PERIOD);
+            return period > 0 ? period : DEFAULT_PERIOD;
+        }
+
+        /**
+         * @return the last sampled level, rx level << 8 | tx level, 0 if
+         *         nothing was sampled yet
+         */
+        public int getLevel() {
+            int seq = getSequence();
+            if (seq == 0) {
+                return 0;
+            }
+            return buffer.getInt(OFFSET_LEVELS + ((seq - 1) & (CAPACITY - 1)) * 4);
+        }
+
+        /**
+         * Release the descriptor. The reader must not be used anymore.
+         */
+        public void close() {
+            closeQuietly(fd);
+        }
+
+        private static void closeQuietly(ParcelFileDescriptor fd) {
+            try {
+                fd.close();
+            } catch (IOException e) {
+                Log.e(THIS_FILE, "Unable to close level meter descriptor", e);
+            }
+        }
+    }
+}
@@ -27,10 +27,13 @@ import com.csipsimple.utils.PreferencesWrapper;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
 /**
@@ -62,9 +65,25 @@ public class PreferenceProvider extends ContentProvider {
 		URI_MATCHER.addURI(SipConfigManager.AUTHORITY, SipConfigManager.RESET_TABLE_NAME, RAZ);
 	}
 
+	/**
+	 * Notify each changed key on its own uri so that caches in other processes
+	 * only drop this key. Preferences activities write shared preferences
+	 * directly so we listen them instead of notifying in update.
+	 */
+	private final OnSharedPreferenceChangeListener prefsListener = new OnSharedPreferenceChangeListener() {
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+			if (key != null) {
+				getContext().getContentResolver().notifyChange(Uri.withAppendedPath(SipConfigManager.PREF_ID_URI_BASE, key), null);
+			}
+		}
+	};
+
 	@Override
 	public boolean onCreate() {
 		prefs = new PreferencesWrapper(getContext());
+		// Listener is weakly referenced by shared preferences, keep it as a field
+		PreferenceManager.getDefaultSharedPreferences(getContext()).registerOnSharedPreferenceChangeListener(prefsListener);
 		return true;
 	}
 
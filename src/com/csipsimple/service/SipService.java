@@ -41,17 +41,21 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.widget.Toast;
 
 import com.csipsimple.R;
+import com.csipsimple.api.ISipCallListener;
 import com.csipsimple.api.ISipConfiguration;
+import com.csipsimple.api.ISipResultCallback;
 import com.csipsimple.api.ISipService;
 import com.csipsimple.api.MediaState;
 import com.csipsimple.api.SipCallSession;
@@ -62,6 +66,7 @@ import com.csipsimple.api.SipMessage;
 import com.csipsimple.api.SipProfile;
 import com.csipsimple.api.SipProfileState;
 import com.csipsimple.api.SipUri;
+import com.csipsimple.db.AccountStatusStore;
 import com.csipsimple.db.DBProvider;
 import com.csipsimple.models.Filter;
 import com.csipsimple.pjsip.PjSipCalls;
@@ -75,6 +80,7 @@ import com.csipsimple.utils.CustomDistribution;
 import com.csipsimple.utils.ExtraPlugins;
 import com.csipsimple.utils.ExtraPlugins.DynActivityPlugin;
 import com.csipsimple.utils.Log;
+import com.csipsimple.utils.PreferencesCache;
 import com.csipsimple.utils.PreferencesProviderWrapper;
 import com.csipsimple.utils.PreferencesWrapper;
 
@@ -83,9 +89,9 @@ import org.pjsip.pjsua.pjsua;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -308,14 +314,9 @@ public class SipService extends Service {
 		@Override
 		public int answer(final int callId, final int status) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
-			ReturnRunnable action = new ReturnRunnable() {
-				@Override
-				protected Object runWithReturn() throws SameThreadException {
-					return (Integer) pjService.callAnswer(callId, status);
-				}
-			};
-			getExecutor().execute(action);
-			//return (Integer) action.getResult();
+			ReturnRunnable action = answerTask(callId, status);
+			getExecutor().executeUrgent(action);
+			//return getStatusResult(action);
 			return SipManager.SUCCESS;
 		}
 
@@ -326,14 +327,9 @@ public class SipService extends Service {
 		@Override
 		public int hangup(final int callId, final int status) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
-			ReturnRunnable action = new ReturnRunnable() {
-				@Override
-				protected Object runWithReturn() throws SameThreadException {
-					return (Integer) pjService.callHangup(callId, status);
-				}
-			};
-			getExecutor().execute(action);
-			//return (Integer) action.getResult();
+			ReturnRunnable action = hangupTask(callId, status);
+			getExecutor().executeUrgent(action);
+			//return getStatusResult(action);
 			
 			return SipManager.SUCCESS;
 		}
@@ -345,14 +341,9 @@ public class SipService extends Service {
 		public int xfer(final int callId, final String callee) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
 			Log.d(THIS_FILE, "XFER");
-			ReturnRunnable action = new ReturnRunnable() {
-				@Override
-				protected Object runWithReturn() throws SameThreadException {
-					return (Integer) pjService.callXfer(callId, callee);
-				}
-			};
-			getExecutor().execute(action);
-			return (Integer) action.getResult();
+			ReturnRunnable action = xferTask(callId, callee);
+			getExecutor().executeUrgent(action);
+			return getStatusResult(action);
 		}
 
         /**
@@ -362,14 +353,9 @@ public class SipService extends Service {
 		public int xferReplace(final int callId, final int otherCallId, final int options) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
 			Log.d(THIS_FILE, "XFER-replace");
-			ReturnRunnable action = new ReturnRunnable() {
-				@Override
-				protected Object runWithReturn() throws SameThreadException {
-					return (Integer) pjService.callXferReplace(callId, otherCallId, options);
-				}
-			};
-			getExecutor().execute(action);
-			return (Integer) action.getResult();
+			ReturnRunnable action = xferReplaceTask(callId, otherCallId, options);
+			getExecutor().executeUrgent(action);
+			return getStatusResult(action);
 		}
 
         /**
@@ -379,14 +365,9 @@ public class SipService extends Service {
 		public int sendDtmf(final int callId, final int keyCode) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
 
-			ReturnRunnable action = new ReturnRunnable() {
-				@Override
-				protected Object runWithReturn() throws SameThreadException {
-					return (Integer) pjService.sendDtmf(callId, keyCode);
-				}
-			};
-			getExecutor().execute(action);
-			return (Integer) action.getResult();
+			ReturnRunnable action = sendDtmfTask(callId, keyCode);
+			getExecutor().executeUrgent(action);
+			return getStatusResult(action);
 		}
 
         /**
@@ -396,14 +377,9 @@ public class SipService extends Service {
 		public int hold(final int callId) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
 			Log.d(THIS_FILE, "HOLDING");
-			ReturnRunnable action = new ReturnRunnable() {
-				@Override
-				protected Object runWithReturn() throws SameThreadException {
-					return (Integer) pjService.callHold(callId);
-				}
-			};
-			getExecutor().execute(action);
-			return (Integer) action.getResult();
+			ReturnRunnable action = holdTask(callId);
+			getExecutor().executeUrgent(action);
+			return getStatusResult(action);
 		}
 
         /**
@@ -413,14 +389,9 @@ public class SipService extends Service {
 		public int reinvite(final int callId, final boolean unhold) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
 			Log.d(THIS_FILE, "REINVITING");
-			ReturnRunnable action = new ReturnRunnable() {
-				@Override
-				protected Object runWithReturn() throws SameThreadException {
-					return (Integer) pjService.callReinvite(callId, unhold);
-				}
-			};
-			getExecutor().execute(action);
-			return (Integer) action.getResult();
+			ReturnRunnable action = reinviteTask(callId, unhold);
+			getExecutor().executeUrgent(action);
+			return getStatusResult(action);
 		}
 		
         /**
@@ -438,7 +409,7 @@ public class SipService extends Service {
 		@Override
 		public void setBluetoothOn(final boolean on) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
-			getExecutor().execute(new SipRunnable() {
+			getExecutor().executeUrgent(new SipRunnable() {
 				@Override
 				protected void doRun() throws SameThreadException {
 					pjService.setBluetoothOn(on);
@@ -452,7 +423,7 @@ public class SipService extends Service {
 		@Override
 		public void setMicrophoneMute(final boolean on) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
-			getExecutor().execute(new SipRunnable() {
+			getExecutor().executeUrgent(new SipRunnable() {
 				@Override
 				protected void doRun() throws SameThreadException {
 					pjService.setMicrophoneMute(on);
@@ -466,7 +437,7 @@ public class SipService extends Service {
 		@Override
 		public void setSpeakerphoneOn(final boolean on) throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
-			getExecutor().execute(new SipRunnable() {
+			getExecutor().executeUrgent(new SipRunnable() {
 				@Override
 				protected void doRun() throws SameThreadException {
 					pjService.setSpeakerphoneOn(on);
@@ -481,12 +452,52 @@ public class SipService extends Service {
 		@Override
 		public SipCallSession[] getCalls() throws RemoteException {
 			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
-			if(pjService != null) {
-				return pjService.getCalls();
+			return SipService.this.getCalls();
+		}
+		
+        /**
+         * {@inheritDoc}
+         */
+		@Override
+		public void registerCallListener(ISipCallListener listener) throws RemoteException {
+			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
+			if(listener != null) {
+				callStateDispatcher.register(listener);
+			}
+		}
+		
+        /**
+         * {@inheritDoc}
+         */
+		@Override
+		public void unregisterCallListener(ISipCallListener listener) throws RemoteException {
+			if(listener != null) {
+				callStateDispatcher.unregister(listener);
 			}
-			return new SipCallSession[0];
 		}
 
+        /**
+         * {@inheritDoc}
+         */
+		@Override
+		public ParcelFileDescriptor startLevelMeter(IBinder token) throws RemoteException {
+			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
+			if(token == null) {
+				return null;
+			}
+			return levelMeter.start(token);
+		}
+		
+        /**
+         * {@inheritDoc}
+         */
+		@Override
+		public void stopLevelMeter(IBinder token) throws RemoteException {
+			if(token != null) {
+				levelMeter.stop(token);
+			}
+		}
+		
         /**
          * {@inheritDoc}
          */
@@ -744,17 +755,12 @@ public class SipService extends Service {
          */
 		@Override
 		public String showCallInfosDialog(final int callId) throws RemoteException {
-			ReturnRunnable action = new ReturnRunnable() {
-				@Override
-				protected Object runWithReturn() throws SameThreadException {
-					String infos = PjSipCalls.dumpCallInfo(callId);
-					Log.d(THIS_FILE, infos);
-					return infos;
-				}
-			};
+			ReturnRunnable action = showCallInfosDialogTask(callId);
 			
 			getExecutor().execute(action);
-			return (String) action.getResult();
+			String infos = (String) action.getResult();
+			// Timed out, callers expect a text to show
+			return infos != null ? infos : "";
 		}
 
         /**
@@ -802,14 +808,10 @@ public class SipService extends Service {
          */
         @Override
         public long confGetRxTxLevel(final int port) throws RemoteException {
-            ReturnRunnable action = new ReturnRunnable() {
-                @Override
-                protected Object runWithReturn() throws SameThreadException {
-                    return (Long) pjService.getRxTxLevel(port);
-                }
-            };
+            ReturnRunnable action = confGetRxTxLevelTask(port);
             getExecutor().execute(action);
-            return (Long) action.getResult();
+            Long level = (Long) action.getResult();
+            return level != null ? level : 0;
         }
 
         /**
@@ -830,6 +832,177 @@ public class SipService extends Service {
             });
         }
 
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void answerAsync(final int callId, final int status, final int requestId,
+				final ISipResultCallback callback) throws RemoteException {
+			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
+			executeWithCallback(answerTask(callId, status), true, requestId, callback);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void hangupAsync(final int callId, final int status, final int requestId,
+				final ISipResultCallback callback) throws RemoteException {
+			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
+			executeWithCallback(hangupTask(callId, status), true, requestId, callback);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void xferAsync(final int callId, final String callee, final int requestId,
+				final ISipResultCallback callback) throws RemoteException {
+			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
+			executeWithCallback(xferTask(callId, callee), true, requestId, callback);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void xferReplaceAsync(final int callId, final int otherCallId, final int options,
+				final int requestId, final ISipResultCallback callback) throws RemoteException {
+			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
+			executeWithCallback(xferReplaceTask(callId, otherCallId, options), true, requestId, callback);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void sendDtmfAsync(final int callId, final int keyCode, final int requestId,
+				final ISipResultCallback callback) throws RemoteException {
+			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
+			executeWithCallback(sendDtmfTask(callId, keyCode), true, requestId, callback);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void holdAsync(final int callId, final int requestId,
+				final ISipResultCallback callback) throws RemoteException {
+			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
+			executeWithCallback(holdTask(callId), true, requestId, callback);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void reinviteAsync(final int callId, final boolean unhold, final int requestId,
+				final ISipResultCallback callback) throws RemoteException {
+			SipService.this.enforceCallingOrSelfPermission(SipManager.PERMISSION_USE_SIP, null);
+			executeWithCallback(reinviteTask(callId, unhold), true, requestId, callback);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void showCallInfosDialogAsync(final int callId, final int requestId,
+				final ISipResultCallback callback) throws RemoteException {
+			executeWithCallback(showCallInfosDialogTask(callId), false, requestId, callback);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void confGetRxTxLevelAsync(final int port, final int requestId,
+				final ISipResultCallback callback) throws RemoteException {
+			executeWithCallback(confGetRxTxLevelTask(port), false, requestId, callback);
+		}
+
+		private ReturnRunnable answerTask(final int callId, final int status) {
+			return new ReturnRunnable() {
+				@Override
+				protected Object runWithReturn() throws SameThreadException {
+					return (Integer) pjService.callAnswer(callId, status);
+				}
+			};
+		}
+
+		private ReturnRunnable hangupTask(final int callId, final int status) {
+			return new ReturnRunnable() {
+				@Override
+				protected Object runWithReturn() throws SameThreadException {
+					return (Integer) pjService.callHangup(callId, status);
+				}
+			};
+		}
+
+		private ReturnRunnable xferTask(final int callId, final String callee) {
+			return new ReturnRunnable() {
+				@Override
+				protected Object runWithReturn() throws SameThreadException {
+					return (Integer) pjService.callXfer(callId, callee);
+				}
+			};
+		}
+
+		private ReturnRunnable xferReplaceTask(final int callId, final int otherCallId, final int options) {
+			return new ReturnRunnable() {
+				@Override
+				protected Object runWithReturn() throws SameThreadException {
+					return (Integer) pjService.callXferReplace(callId, otherCallId, options);
+				}
+			};
+		}
+
+		private ReturnRunnable sendDtmfTask(final int callId, final int keyCode) {
+			return new ReturnRunnable() {
+				@Override
+				protected Object runWithReturn() throws SameThreadException {
+					return (Integer) pjService.sendDtmf(callId, keyCode);
+				}
+			};
+		}
+
+		private ReturnRunnable holdTask(final int callId) {
+			return new ReturnRunnable() {
+				@Override
+				protected Object runWithReturn() throws SameThreadException {
+					return (Integer) pjService.callHold(callId);
+				}
+			};
+		}
+
+		private ReturnRunnable reinviteTask(final int callId, final boolean unhold) {
+			return new ReturnRunnable() {
+				@Override
+				protected Object runWithReturn() throws SameThreadException {
+					return (Integer) pjService.callReinvite(callId, unhold);
+				}
+			};
+		}
+
+		private ReturnRunnable showCallInfosDialogTask(final int callId) {
+			return new ReturnRunnable() {
+				@Override
+				protected Object runWithReturn() throws SameThreadException {
+					String infos = PjSipCalls.dumpCallInfo(callId);
+					Log.d(THIS_FILE, infos);
+					return infos;
+				}
+			};
+		}
+
+		private ReturnRunnable confGetRxTxLevelTask(final int port) {
+			return new ReturnRunnable() {
+				@Override
+				protected Object runWithReturn() throws SameThreadException {
+					return (Long) pjService.getRxTxLevel(port);
+				}
+			};
+		}
+
 
 
 		
@@ -887,6 +1060,9 @@ public class SipService extends Service {
 //	private ConnectivityManager connectivityManager;
 
 	public SipNotifications notificationManager;
+	public CallStateDispatcher callStateDispatcher;
+	public LevelMeter levelMeter;
+	public AccountCache accountCache;
 	private SipServiceExecutor mExecutor;
 	private static PjSipService pjService;
 	private static HandlerThread executorThread;
@@ -966,13 +1142,17 @@ public class SipService extends Service {
 		singleton = this;
 
 		Log.i(THIS_FILE, "Create SIP Service");
-		prefsWrapper = new PreferencesProviderWrapper(this);
+		prefsWrapper = new PreferencesProviderWrapper(this, PreferencesCache.getInstance(this));
 		Log.setLogLevel(prefsWrapper.getLogLevel());
 		
 		telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
 //		connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
 		notificationManager = new SipNotifications(this);
 		notificationManager.onServiceCreate();
+		callStateDispatcher = new CallStateDispatcher(this);
+		levelMeter = new LevelMeter(this, getExecutor().getLooper());
+		accountCache = new AccountCache(this);
+		accountCache.start();
 		sipWakeLock = new SipWakeLock((PowerManager) getSystemService(Context.POWER_SERVICE));
 		
 		boolean hasSetup = prefsWrapper.getPreferenceBooleanValue(PreferencesProviderWrapper.HAS_ALREADY_SETUP_SERVICE, false);
@@ -997,6 +1177,9 @@ public class SipService extends Service {
 		unregisterBroadcasts();
 		unregisterServiceBroadcasts();
 		notificationManager.onServiceDestroy();
+		callStateDispatcher.stop();
+		levelMeter.release();
+		accountCache.stop();
 		getExecutor().execute(new FinalizeDestroyRunnable());
 	}
 	
@@ -1348,6 +1531,7 @@ public class SipService extends Service {
 		Log.d(THIS_FILE, "We are adding all accounts right now....");
 
 		boolean hasSomeSuccess = false;
+		List<SipProfile> accounts = new ArrayList<SipProfile>();
 		Cursor c = getContentResolver().query(SipProfile.ACCOUNT_URI, DBProvider.ACCOUNT_FULL_PROJECTION, 
 				SipProfile.FIELD_ACTIVE + "=?", new String[] {"1"}, null);
 		if (c != null) {
@@ -1356,10 +1540,7 @@ public class SipService extends Service {
 				if(c.getCount() > 0) {
     				c.moveToFirst();
     				do {
-    					SipProfile account = new SipProfile(c);
-    					if (pjService != null && pjService.addAccount(account) ) {
-    						hasSomeSuccess = true;
-    					}
+    					accounts.add(new SipProfile(c));
     					index ++;
     				} while (c.moveToNext() && index < 10);
 				}
@@ -1369,6 +1550,14 @@ public class SipService extends Service {
 				c.close();
 			}
 		}
+		if (pjService != null && !accounts.isEmpty()) {
+		    try {
+		        // Registrations are spread, not sent all at once
+		        hasSomeSuccess = pjService.addAccounts(accounts);
+		    } catch (Exception e) {
+		        Log.e(THIS_FILE, "Error on adding sip profiles", e);
+		    }
+		}
 		
 		hasSomeActiveAccount = hasSomeSuccess;
 
@@ -1444,22 +1633,32 @@ public class SipService extends Service {
 	public void updateRegistrationsState() {
 		Log.d(THIS_FILE, "Update registration state");
 		ArrayList<SipProfileState> activeProfilesState = new ArrayList<SipProfileState>();
-		Cursor c = getContentResolver().query(SipProfile.ACCOUNT_STATUS_URI, null, null, null, null);
-		if (c != null) {
-			try {
-				if(c.getCount() > 0) {
-					c.moveToFirst();
-					do {
-						SipProfileState ps = new SipProfileState(c);
-						if(ps.isValidForCall()) {
-							activeProfilesState.add(ps);
-						}
-					} while ( c.moveToNext() );
+		// Status is in this process, no need to go through a cursor
+		AccountStatusStore statusStore = AccountStatusStore.getLocal();
+		if (statusStore != null) {
+			for (SipProfileState ps : statusStore.getSnapshot().getAll()) {
+				if(ps.isValidForCall()) {
+					activeProfilesState.add(ps);
+				}
+			}
+		} else {
+			Cursor c = getContentResolver().query(SipProfile.ACCOUNT_STATUS_URI, null, null, null, null);
+			if (c != null) {
+				try {
+					if(c.getCount() > 0) {
+						c.moveToFirst();
+						do {
+							SipProfileState ps = new SipProfileState(c);
+							if(ps.isValidForCall()) {
+								activeProfilesState.add(ps);
+							}
+						} while ( c.moveToNext() );
+					}
+				} catch (Exception e) {
+					Log.e(THIS_FILE, "Error on looping over sip profiles", e);
+				} finally {
+					c.close();
 				}
-			} catch (Exception e) {
-				Log.e(THIS_FILE, "Error on looping over sip profiles", e);
-			} finally {
-				c.close();
 			}
 		}
 		
@@ -1639,6 +1838,29 @@ public class SipService extends Service {
 	public UAStateReceiver getUAStateReceiver() {
 		return pjService.userAgentReceiver;
 	}
+	
+	/**
+	 * Get sound levels of a conference port. Must be called from the executor thread.
+	 * 
+	 * @param port the conference port
+	 * @return rx level << 8 | tx level, 0 if the stack is not there
+	 */
+	public long getRxTxLevel(int port) {
+		if(pjService != null && pjService.isCreated()) {
+			return pjService.getRxTxLevel(port);
+		}
+		return 0;
+	}
+	
+	/**
+	 * @return current calls, empty if the stack is not there
+	 */
+	public SipCallSession[] getCalls() {
+		if(pjService != null) {
+			return pjService.getCalls();
+		}
+		return new SipCallSession[0];
+	}
 
 
 
@@ -1681,8 +1903,8 @@ public class SipService extends Service {
 	};
 	
 	public SipProfile getAccount(long accountId) {
-		// TODO : create cache at this point to not requery each time as far as it's a service query
-		return SipProfile.getProfileFromDbId(this, accountId, DBProvider.ACCOUNT_FULL_PROJECTION);
+		// Cached, the profile must not be modified
+		return accountCache.get(accountId);
 	}
 	
 
@@ -1692,6 +1914,8 @@ public class SipService extends Service {
 		autoAcceptCurrent = auto_response;
 	}
 	
+	private static final Pattern REMOTE_CONTACT_PATTERN = Pattern.compile("^(?:\")?([^<\"]*)(?:\")?[ ]*(?:<)?sip(?:s)?:([^@]*@[^>]*)(?:>)?", Pattern.CASE_INSENSITIVE);
+	
 	/**
 	 * Should a current incoming call be answered.
 	 * A call to this method will reset internal state
@@ -1711,8 +1935,7 @@ public class SipService extends Service {
 		}
 		
 		if(acc != null) {
-			Pattern p = Pattern.compile("^(?:\")?([^<\"]*)(?:\")?[ ]*(?:<)?sip(?:s)?:([^@]*@[^>]*)(?:>)?", Pattern.CASE_INSENSITIVE);
-			Matcher m = p.matcher(remContact);
+			Matcher m = REMOTE_CONTACT_PATTERN.matcher(remContact);
 			String number = remContact;
 			if (m.matches()) {
 				number = m.group(2);
@@ -1755,31 +1978,135 @@ public class SipService extends Service {
     
 
     // Executes immediate tasks in a single executorThread.
+    // Tasks are queued in lanes, call control tasks run before any pending
+    // housekeeping task. All lanes run on the same thread to keep pjsip
+    // single thread contract.
     // Hold/release wake lock for running tasks
     public static class SipServiceExecutor extends Handler {
+        /**
+         * Lane for call control, run before any pending normal task
+         */
+        public static final int LANE_URGENT = 0;
+        /**
+         * Lane for accounts, presence and other housekeeping
+         */
+        public static final int LANE_NORMAL = 1;
+        private static final int LANE_COUNT = 2;
+        
+        /**
+         * Upper bounds, in ms, of the wait time histogram buckets. The last
+         * bucket counts longer waits.
+         */
+        public static final long[] WAIT_HISTOGRAM_BOUNDS = new long[] {
+                10, 50, 100, 500, 1000, 5000
+        };
+        
+        private static final int MSG_RUN_TASK = 0;
+        
+        private static final class PendingTask {
+            final Runnable task;
+            final long enqueueTime;
+            
+            PendingTask(Runnable aTask) {
+                task = aTask;
+                enqueueTime = SystemClock.elapsedRealtime();
+            }
+        }
+        
         WeakReference<SipService> handlerService;
+        // Guarded by lanes
+        private final LinkedList<PendingTask>[] lanes;
+        private final long[][] waitHistograms = new long[LANE_COUNT][WAIT_HISTOGRAM_BOUNDS.length + 1];
         
+        @SuppressWarnings("unchecked")
         SipServiceExecutor(SipService s) {
             super(createLooper());
             handlerService = new WeakReference<SipService>(s);
+            lanes = new LinkedList[LANE_COUNT];
+            for (int i = 0; i < LANE_COUNT; i++) {
+                lanes[i] = new LinkedList<PendingTask>();
+            }
         }
 
+        /**
+         * Run a task in the normal lane
+         */
         public void execute(Runnable task) {
+            execute(task, LANE_NORMAL);
+        }
+        
+        /**
+         * Run a call control task, before pending tasks of the normal lane
+         */
+        public void executeUrgent(Runnable task) {
+            execute(task, LANE_URGENT);
+        }
+
+        private void execute(Runnable task, int lane) {
             SipService s = handlerService.get();
             if(s != null) {
                 s.sipWakeLock.acquire(task);
             }
-            Message.obtain(this, 0/* don't care */, task).sendToTarget();
+            synchronized (lanes) {
+                lanes[lane].add(new PendingTask(task));
+            }
+            // Each message runs the first task of the most urgent lane
+            Message msg = Message.obtain(this, MSG_RUN_TASK);
+            if(lane == LANE_URGENT) {
+                sendMessageAtFrontOfQueue(msg);
+            }else {
+                sendMessage(msg);
+            }
+        }
+        
+        /**
+         * @param lane {@link #LANE_URGENT} or {@link #LANE_NORMAL}
+         * @return number of tasks waiting in the lane
+         */
+        public int getQueueDepth(int lane) {
+            synchronized (lanes) {
+                return lanes[lane].size();
+            }
+        }
+        
+        /**
+         * @param lane {@link #LANE_URGENT} or {@link #LANE_NORMAL}
+         * @return number of tasks of the lane per wait time bucket, see
+         *         {@link #WAIT_HISTOGRAM_BOUNDS}
+         */
+        public long[] getWaitHistogram(int lane) {
+            synchronized (lanes) {
+                return waitHistograms[lane].clone();
+            }
         }
 
         @Override
         public void handleMessage(Message msg) {
-	        if (msg.obj instanceof Runnable) {
-                executeInternal((Runnable) msg.obj);
+	        if (msg.what == MSG_RUN_TASK) {
+	            PendingTask pending = null;
+	            synchronized (lanes) {
+	                for (int i = 0; i < LANE_COUNT && pending == null; i++) {
+	                    pending = lanes[i].poll();
+	                    if(pending != null) {
+	                        recordWait(i, SystemClock.elapsedRealtime() - pending.enqueueTime);
+	                    }
+	                }
+	            }
+	            if(pending != null) {
+	                executeInternal(pending.task);
+	            }
             } else {
                 Log.w(THIS_FILE, "can't handle msg: " + msg);
             }
         }
+        
+        private void recordWait(int lane, long wait) {
+            int bucket = 0;
+            while (bucket < WAIT_HISTOGRAM_BOUNDS.length && wait > WAIT_HISTOGRAM_BOUNDS[bucket]) {
+                bucket++;
+            }
+            waitHistograms[lane][bucket]++;
+        }
 
         private void executeInternal(Runnable task) {
             try {
@@ -1913,37 +2240,214 @@ public class SipService extends Service {
 	}
 	
 
+    /**
+     * Listener of the result of a {@link ReturnRunnable}
+     */
+    public interface OnResultListener {
+        /**
+         * Called on the executor thread once the task is done.
+         * 
+         * @param result result of the task, null if it failed
+         */
+        void onResult(Object result);
+    }
+    
+    // Max time a caller waits for a task result by default
+    private static final long RESULT_TIMEOUT = 5000;
+
+    /**
+     * Task giving a result. The result works as a future : callers either
+     * wait for it until a deadline or get called back once it is set.
+     */
     public abstract class ReturnRunnable extends SipRunnable {
-    	private Semaphore runSemaphore;
+    	private final Object resultLock = new Object();
+    	private boolean started = false;
+    	private boolean cancelled = false;
+    	private boolean done = false;
     	private Object resultObject;
+    	private OnResultListener resultListener;
     	
     	public ReturnRunnable() {
 			super();
-			runSemaphore = new Semaphore(0);
 		}
     	
+    	/**
+    	 * Wait for the result, at most {@link #RESULT_TIMEOUT} ms.<br/>
+    	 * This used to wait with no limit : callers must now handle a null
+    	 * result. Use {@link #getResult(long)} to wait longer, or
+    	 * {@link #setOnResultListener(OnResultListener)} to not wait at all.
+    	 * 
+    	 * @return the result, null if not available in time
+    	 */
     	public Object getResult() {
-    		try {
-				runSemaphore.acquire();
-			} catch (InterruptedException e) {
-				Log.e(THIS_FILE, "Can't acquire run semaphore... problem...");
-			}
-    		return resultObject;
+    	    return getResult(RESULT_TIMEOUT);
+    	}
+    	
+    	/**
+    	 * Wait for the result until a deadline.
+    	 * 
+    	 * @param timeout max time to wait in ms
+    	 * @return the result, null if not available in time
+    	 */
+    	public Object getResult(long timeout) {
+    	    long deadline = SystemClock.elapsedRealtime() + timeout;
+    	    synchronized (resultLock) {
+    	        while (!done) {
+    	            long remaining = deadline - SystemClock.elapsedRealtime();
+    	            if (remaining <= 0) {
+    	                Log.w(THIS_FILE, "No result after " + timeout + "ms for " + this);
+    	                return null;
+    	            }
+    	            try {
+    	                resultLock.wait(remaining);
+    	            } catch (InterruptedException e) {
+    	                Log.e(THIS_FILE, "Interrupted while waiting for result");
+    	                return null;
+    	            }
+    	        }
+    	        return resultObject;
+    	    }
+    	}
+    	
+    	/**
+    	 * Set the listener of the result. It is called right away if the
+    	 * task is already done.
+    	 */
+    	public void setOnResultListener(OnResultListener listener) {
+    	    Object result;
+    	    synchronized (resultLock) {
+    	        resultListener = listener;
+    	        if (!done) {
+    	            return;
+    	        }
+    	        result = resultObject;
+    	    }
+    	    listener.onResult(result);
+    	}
+    	
+    	/**
+    	 * Prevent the task from running if it has not started yet. Its
+    	 * result is then null.
+    	 * 
+    	 * @return true if cancelled, false if it has started or is done
+    	 */
+    	public boolean cancel() {
+    	    synchronized (resultLock) {
+    	        if (started) {
+    	            return false;
+    	        }
+    	        cancelled = true;
+    	        return true;
+    	    }
+    	}
+    	
+    	/**
+    	 * @return whether the result is set
+    	 */
+    	public boolean isDone() {
+    	    synchronized (resultLock) {
+    	        return done;
+    	    }
     	}
     	
     	protected abstract Object runWithReturn() throws SameThreadException;
     	
     	@Override
     	public void doRun() throws SameThreadException {
-    		setResult(runWithReturn());
+    	    synchronized (resultLock) {
+    	        if (cancelled) {
+    	            Log.w(THIS_FILE, "Dropping cancelled " + this);
+    	            done = true;
+    	            resultLock.notifyAll();
+    	            return;
+    	        }
+    	        started = true;
+    	    }
+    	    Object result = null;
+    	    try {
+    	        result = runWithReturn();
+    	    } finally {
+    	        // Waiters are released even if the task failed
+    	        setResult(result);
+    	    }
     	}
     	
     	private void setResult(Object obj) {
-    		resultObject = obj;
-    		runSemaphore.release();
+    	    OnResultListener listener;
+    	    synchronized (resultLock) {
+    	        resultObject = obj;
+    	        done = true;
+    	        listener = resultListener;
+    	        resultLock.notifyAll();
+    	    }
+    	    if (listener != null) {
+    	        listener.onResult(obj);
+    	    }
     	}
     }
     
+    /**
+     * Wait for the status returned by a call control task, at most
+     * {@link #RESULT_TIMEOUT} ms. A task not started by then is cancelled.
+     * 
+     * @return the status, {@link SipManager#ERROR_NOT_PROCESSED} if the task
+     *         failed or was cancelled, {@link SipManager#ERROR_PENDING} if it
+     *         is still running
+     */
+    private static int getStatusResult(ReturnRunnable action) {
+        Integer status = (Integer) action.getResult();
+        if (status != null) {
+            return status;
+        }
+        if (action.cancel()) {
+            return SipManager.ERROR_NOT_PROCESSED;
+        }
+        if (!action.isDone()) {
+            return SipManager.ERROR_PENDING;
+        }
+        // Done between the deadline and the cancel
+        status = (Integer) action.getResult(0);
+        return status != null ? status : SipManager.ERROR_NOT_PROCESSED;
+    }
+    
+    /**
+     * Run a task and give its result to a remote callback, without waiting.
+     * 
+     * @param action the task to run
+     * @param urgent whether it's call control, see
+     *            {@link SipServiceExecutor#executeUrgent(Runnable)}
+     * @param requestId id given back to the callback
+     * @param callback the callback, may be null
+     */
+    private void executeWithCallback(ReturnRunnable action, boolean urgent, final int requestId,
+            final ISipResultCallback callback) {
+        if (callback != null) {
+            action.setOnResultListener(new OnResultListener() {
+                @Override
+                public void onResult(Object result) {
+                    try {
+                        if (result instanceof String) {
+                            callback.onStringResult(requestId, (String) result);
+                        } else if (result instanceof Long) {
+                            callback.onLongResult(requestId, (Long) result);
+                        } else if (result instanceof Integer) {
+                            callback.onResult(requestId, (Integer) result);
+                        } else {
+                            callback.onResult(requestId, SipManager.ERROR_NOT_PROCESSED);
+                        }
+                    } catch (RemoteException e) {
+                        Log.e(THIS_FILE, "Can't give result to callback", e);
+                    }
+                }
+            });
+        }
+        if (urgent) {
+            getExecutor().executeUrgent(action);
+        } else {
+            getExecutor().execute(action);
+        }
+    }
+    
     private static String UI_CALL_PACKAGE = null;
     public static Intent buildCallUiIntent(Context ctxt, SipCallSession callInfo) {
         // Resolve the package to handle call.
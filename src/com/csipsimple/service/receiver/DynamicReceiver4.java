@@ -26,7 +26,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.text.TextUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import com.csipsimple.api.SipConfigManager;
 import com.csipsimple.api.SipManager;
@@ -35,16 +36,7 @@ import com.csipsimple.service.SipService;
 import com.csipsimple.service.SipService.SameThreadException;
 import com.csipsimple.service.SipService.SipRunnable;
 import com.csipsimple.utils.Log;
-
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import com.csipsimple.utils.Threading;
 
 public class DynamicReceiver4 extends BroadcastReceiver {
 
@@ -63,12 +55,21 @@ public class DynamicReceiver4 extends BroadcastReceiver {
     // Store current state
     private String mNetworkType;
     private boolean mConnected = false;
-    private String mRoutes = "";
+    // Written on sip executor, read by route monitor
+    private volatile RouteTable mRoutes = RouteTable.EMPTY;
     
     private boolean hasStartedWifi = false;
 
 
-    private Timer pollingTimer;
+    // Route polling slows down while routes do not change, up to this
+    // multiple of the configured interval. Changes of vpn routes are only
+    // seen by polling, they must not be missed for long.
+    private static final int MAX_ROUTE_POLL_BACKOFF = 4;
+    private HandlerThread routePollThread;
+    private volatile Handler routePollHandler;
+    // Only used on route monitor thread, except on start
+    private long routePollBaseInterval;
+    private long routePollInterval;
 
     
     /**
@@ -118,13 +119,23 @@ public class DynamicReceiver4 extends BroadcastReceiver {
             NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
             onConnectivityChanged(activeNetwork, isSticky);
         } else if (action.equals(SipManager.ACTION_SIP_ACCOUNT_CHANGED)) {
-            final long accountId = intent.getLongExtra(SipProfile.FIELD_ID, -1);
+            // One broadcast for all accounts changed together
+            long[] accountIds = intent.getLongArrayExtra(SipManager.EXTRA_ACCOUNT_IDS);
+            if (accountIds == null) {
+                accountIds = new long[] {
+                        intent.getLongExtra(SipProfile.FIELD_ID, SipProfile.INVALID_ID)
+                };
+            }
             // Should that be threaded?
-            if (accountId != SipProfile.INVALID_ID) {
-                final SipProfile account = service.getAccount(accountId);
-                if (account != null) {
-                    Log.d(THIS_FILE, "Enqueue set account registration");
-                    service.setAccountRegistration(account, account.active ? 1 : 0, true);
+            for (long accountId : accountIds) {
+                if (accountId != SipProfile.INVALID_ID) {
+                    // Do not reuse the profile cached before the change
+                    service.accountCache.invalidate(accountId);
+                    final SipProfile account = service.getAccount(accountId);
+                    if (account != null) {
+                        Log.d(THIS_FILE, "Enqueue set account registration");
+                        service.setAccountRegistration(account, account.active ? 1 : 0, true);
+                    }
                 }
             }
         } else if (action.equals(SipManager.ACTION_SIP_CAN_BE_STOPPED)) {
@@ -137,71 +148,6 @@ public class DynamicReceiver4 extends BroadcastReceiver {
     }
     
 
-    private static final String PROC_NET_ROUTE = "/proc/net/route";
-    private String dumpRoutes() {
-        String routes = "";
-        FileReader fr = null;
-        try {
-            fr = new FileReader(PROC_NET_ROUTE);
-            if(fr != null) {
-                StringBuffer contentBuf = new StringBuffer();
-                BufferedReader buf = new BufferedReader(fr);
-                String line;
-                while ((line = buf.readLine()) != null) {
-                    contentBuf.append(line+"\n");
-                }
-                routes = contentBuf.toString();
-                buf.close();
-            }
-        } catch (FileNotFoundException e) {
-            Log.e(THIS_FILE, "No route file found routes", e);
-        } catch (IOException e) {
-            Log.e(THIS_FILE, "Unable to read route file", e);
-        }finally {
-            try {
-                fr.close();
-            } catch (IOException e) {
-                Log.e(THIS_FILE, "Unable to close route file", e);
-            }
-        }
-        
-        // Clean routes that point unique host 
-        // this aims to workaround the fact android 4.x wakeup 3G layer when position is retrieve to resolve over 3g position
-        String finalRoutes = routes;
-        if(!TextUtils.isEmpty(routes)) {
-            String[] items = routes.split("\n");
-            List<String> finalItems = new ArrayList<String>();
-            int line = 0;
-            for(String item : items) {
-                boolean addItem = true;
-                if(line > 0){
-                    String[] ent = item.split("\t");
-                    if(ent.length > 8) {
-                        String maskStr = ent[7];
-                        if(maskStr.matches("^[0-9A-F]{8}$")) {
-                            int lastMaskPart = Integer.parseInt(maskStr.substring(0, 2), 16);
-                            if(lastMaskPart > 192) {
-                                // if more than 255.255.255.192 : ignore this line
-                                addItem = false;
-                            }
-                        }else {
-                            Log.w(THIS_FILE, "The route mask does not looks like a mask" + maskStr);
-                        }
-                    }
-                }
-                
-                if(addItem) {
-                    finalItems.add(item);
-                }
-                line ++;
-            }
-            finalRoutes = TextUtils.join("\n", finalItems); 
-        }
-        
-        return finalRoutes;
-    }
-
-    
     /**
      * Treat the fact that the connectivity has changed
      * @param info Network info
@@ -223,11 +169,8 @@ public class DynamicReceiver4 extends BroadcastReceiver {
 
         boolean connected = (info != null && info.isConnected() && service.isConnectivityValid());
         String networkType = connected ? info.getTypeName() : "null";
-        String currentRoutes = dumpRoutes();
-        String oldRoutes;
-        synchronized (mRoutes) {
-            oldRoutes = mRoutes;
-        }
+        RouteTable currentRoutes = RouteTable.read();
+        RouteTable oldRoutes = mRoutes;
         
         // Ignore the event if the current active network is not changed.
         if (connected == mConnected && networkType.equals(mNetworkType) && currentRoutes.equals(oldRoutes)) {
@@ -242,11 +185,10 @@ public class DynamicReceiver4 extends BroadcastReceiver {
             }
         }
         // Now process the event
-        synchronized (mRoutes) {
-            mRoutes = currentRoutes;
-        }
+        mRoutes = currentRoutes;
         mConnected = connected;
         mNetworkType = networkType;
+        resetRoutePolling();
 
         if(!isSticky) {
             if (connected) {
@@ -262,39 +204,74 @@ public class DynamicReceiver4 extends BroadcastReceiver {
     
     
     
+    private final Runnable routePollTask = new Runnable() {
+        @Override
+        public void run() {
+            RouteTable currentRoutes = RouteTable.read();
+            if(!currentRoutes.equals(mRoutes)) {
+                Log.d(THIS_FILE, "Route changed");
+                // Poll again at base rate until stable
+                routePollInterval = routePollBaseInterval;
+                // Run the handler in SipServiceExecutor to be protected by wake lock
+                service.getExecutor().execute(new SipRunnable()  {
+                    public void doRun() throws SameThreadException {
+                        onConnectivityChanged(null, false);
+                    }
+                });
+            }else {
+                routePollInterval = Math.min(routePollInterval * 2,
+                        routePollBaseInterval * MAX_ROUTE_POLL_BACKOFF);
+            }
+            Handler handler = routePollHandler;
+            if(handler != null) {
+                handler.postDelayed(this, routePollInterval);
+            }
+        }
+    };
+    
+    private final Runnable routePollResetTask = new Runnable() {
+        @Override
+        public void run() {
+            routePollInterval = routePollBaseInterval;
+            Handler handler = routePollHandler;
+            if(handler != null) {
+                handler.removeCallbacks(routePollTask);
+                handler.postDelayed(routePollTask, routePollInterval);
+            }
+        }
+    };
+    
+    /**
+     * Network just changed, watch routes closely again
+     */
+    private void resetRoutePolling() {
+        Handler handler = routePollHandler;
+        if(handler != null) {
+            handler.post(routePollResetTask);
+        }
+    }
+    
     public void startMonitoring() {
         int pollingIntervalMin = service.getPrefs().getPreferenceIntegerValue(SipConfigManager.NETWORK_ROUTES_POLLING);
 
         Log.d(THIS_FILE, "Start monitoring of route file ? " + pollingIntervalMin);
-        if(pollingIntervalMin > 0) {
-            pollingTimer = new Timer("RouteChangeMonitor", true);
-            pollingTimer.scheduleAtFixedRate(new TimerTask() {
-                @Override
-                public void run() {
-                    String currentRoutes = dumpRoutes();
-                    String oldRoutes;
-                    synchronized (mRoutes) {
-                        oldRoutes = mRoutes;
-                    }
-                    if(!currentRoutes.equalsIgnoreCase(oldRoutes)) {
-                        Log.d(THIS_FILE, "Route changed");
-                        // Run the handler in SipServiceExecutor to be protected by wake lock
-                        service.getExecutor().execute(new SipRunnable()  {
-                            public void doRun() throws SameThreadException {
-                                onConnectivityChanged(null, false);
-                            }
-                        });
-                    }
-                }
-            }, new Date(), pollingIntervalMin * 60 * 1000);
+        if(pollingIntervalMin > 0 && routePollThread == null) {
+            routePollBaseInterval = pollingIntervalMin * 60 * 1000L;
+            routePollInterval = routePollBaseInterval;
+            routePollThread = new HandlerThread("RouteChangeMonitor");
+            routePollThread.start();
+            routePollHandler = new Handler(routePollThread.getLooper());
+            routePollHandler.post(routePollTask);
         }
     }
     
     public void stopMonitoring() {
-        if(pollingTimer != null) {
-            pollingTimer.cancel();
-            pollingTimer.purge();
-            pollingTimer = null;
+        if(routePollHandler != null) {
+            routePollHandler.removeCallbacks(routePollTask);
+            routePollHandler.removeCallbacks(routePollResetTask);
+            routePollHandler = null;
         }
+        Threading.stopHandlerThread(routePollThread, false);
+        routePollThread = null;
     }
 }
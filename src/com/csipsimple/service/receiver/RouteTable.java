@@ -0,0 +1,243 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.service.receiver;
+
+import com.csipsimple.utils.Log;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Routing table as read from <code>/proc/net/route</code>.<br/>
+ * Only the fields telling where packets go are kept : interface,
+ * destination, gateway, flags, metric and mask. Usage counters and the
+ * layout of the file are ignored, so two tables are equal only if routing
+ * actually changed. Routes to small subnets and single hosts are dropped :
+ * android 4.x adds such routes when resolving the position over 3g, they
+ * must not restart the stack.
+ */
+final class RouteTable {
+
+    private static final String THIS_FILE = "RouteTable";
+    private static final String PROC_NET_ROUTE = "/proc/net/route";
+
+    // Column indexes in the route file
+    private static final int COL_IFACE = 0;
+    private static final int COL_DESTINATION = 1;
+    private static final int COL_GATEWAY = 2;
+    private static final int COL_FLAGS = 3;
+    private static final int COL_METRIC = 6;
+    private static final int COL_MASK = 7;
+    private static final int MIN_COLUMNS = COL_MASK + 1;
+
+    // Last byte of masks above 255.255.255.192
+    private static final int MAX_MASK_LAST_BYTE = 192;
+
+    /**
+     * Empty table, for no route file or nothing parsed yet
+     */
+    static final RouteTable EMPTY = new RouteTable(new ArrayList<Route>());
+
+    private static final class Route implements Comparable<Route> {
+        final String iface;
+        final int destination;
+        final int gateway;
+        final int flags;
+        final int metric;
+        final int mask;
+
+        Route(String aIface, int aDestination, int aGateway, int aFlags, int aMetric, int aMask) {
+            iface = aIface;
+            destination = aDestination;
+            gateway = aGateway;
+            flags = aFlags;
+            metric = aMetric;
+            mask = aMask;
+        }
+
+        @Override
+        public int compareTo(Route another) {
+            int res = iface.compareTo(another.iface);
+            if (res == 0) {
+                res = compare(destination, another.destination);
+            }
+            if (res == 0) {
+                res = compare(mask, another.mask);
+            }
+            if (res == 0) {
+                res = compare(gateway, another.gateway);
+            }
+            if (res == 0) {
+                res = compare(metric, another.metric);
+            }
+            if (res == 0) {
+                res = compare(flags, another.flags);
+            }
+            return res;
+        }
+
+        private static int compare(int a, int b) {
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Route && compareTo((Route) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = iface.hashCode();
+            h = 31 * h + destination;
+            h = 31 * h + gateway;
+            h = 31 * h + flags;
+            h = 31 * h + metric;
+            return 31 * h + mask;
+        }
+
+        @Override
+        public String toString() {
+            return iface + " " + Integer.toHexString(destination) + "/" + Integer.toHexString(mask)
+                    + " via " + Integer.toHexString(gateway) + " metric " + metric;
+        }
+    }
+
+    // Sorted, so that order of lines in the file does not matter
+    private final List<Route> routes;
+
+    private RouteTable(List<Route> aRoutes) {
+        Collections.sort(aRoutes);
+        routes = aRoutes;
+    }
+
+    /**
+     * Read the routing table of the device.
+     *
+     * @return the table, {@link #EMPTY} if it cannot be read
+     */
+    static RouteTable read() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(PROC_NET_ROUTE), 1024);
+            return parse(reader);
+        } catch (FileNotFoundException e) {
+            Log.e(THIS_FILE, "No route file found routes", e);
+        } catch (IOException e) {
+            Log.e(THIS_FILE, "Unable to read route file", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(THIS_FILE, "Unable to close route file", e);
+                }
+            }
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Parse a routing table in the <code>/proc/net/route</code> format.
+     * Lines are parsed one at a time, malformed ones are skipped.
+     *
+     * @param reader content of the route file, first line being the header
+     * @return the table
+     */
+    static RouteTable parse(BufferedReader reader) throws IOException {
+        List<Route> routes = new ArrayList<Route>();
+        String[] columns = new String[MIN_COLUMNS];
+        // Skip header
+        String line = reader.readLine();
+        while ((line = reader.readLine()) != null) {
+            if (split(line, columns) < MIN_COLUMNS) {
+                continue;
+            }
+            try {
+                int mask = parseHex(columns[COL_MASK]);
+                // Written little endian, first byte of the text is the last one
+                if (((mask >>> 24) & 0xFF) > MAX_MASK_LAST_BYTE) {
+                    continue;
+                }
+                routes.add(new Route(columns[COL_IFACE].intern(),
+                        parseHex(columns[COL_DESTINATION]),
+                        parseHex(columns[COL_GATEWAY]),
+                        parseHex(columns[COL_FLAGS]),
+                        Integer.parseInt(columns[COL_METRIC]),
+                        mask));
+            } catch (NumberFormatException e) {
+                Log.w(THIS_FILE, "Invalid route line " + line);
+            }
+        }
+        return new RouteTable(routes);
+    }
+
+    /**
+     * Split a line on tabs and spaces into the first columns.
+     *
+     * @return number of columns filled
+     */
+    private static int split(String line, String[] columns) {
+        int count = 0;
+        int length = line.length();
+        int i = 0;
+        while (i < length && count < columns.length) {
+            while (i < length && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                columns[count++] = line.substring(start, i);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Parse a 32 bits hexadecimal value as found in the route file.
+     */
+    private static int parseHex(String value) {
+        return (int) Long.parseLong(value, 16);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RouteTable && routes.equals(((RouteTable) o).routes);
+    }
+
+    @Override
+    public int hashCode() {
+        return routes.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return routes.toString();
+    }
+}
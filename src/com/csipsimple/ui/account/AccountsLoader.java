@@ -41,10 +41,12 @@ import com.csipsimple.utils.PreferencesProviderWrapper;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AccountsLoader extends AsyncTaskLoader<Cursor> {
 
@@ -55,6 +57,8 @@ public class AccountsLoader extends AsyncTaskLoader<Cursor> {
     
 
     private static final String THIS_FILE = "OutgoingAccountsLoader";
+    // Time given to call handler plugins before showing a first result
+    private static final long FIRST_RESULTS_DELAY = 500;
 
     private Cursor currentResult;
 
@@ -133,14 +137,15 @@ public class AccountsLoader extends AsyncTaskLoader<Cursor> {
         }else {
             externalHandlers = new HashMap<String, String>();
         }
+        // Call handlers to show, with their force call flag
+        Map<String, Boolean> callHandlers = new LinkedHashMap<String, Boolean>();
         if(TextUtils.isEmpty(numberToCall)) {
             // In case of empty number to call, just add everything without any other question
             for(SipProfile acc : accounts) {
                 prefinalAccounts.add(new FilteredProfile(acc, false));
             }
             for(Entry<String, String> extEnt : externalHandlers.entrySet() ) {
-                prefinalAccounts.add(new FilteredProfile(extEnt.getKey(), false));
-                
+                callHandlers.put(extEnt.getKey(), false);
             }
         }else {
             // If there is a number to call, add only those callable, and flag must call entries
@@ -160,7 +165,7 @@ public class AccountsLoader extends AsyncTaskLoader<Cursor> {
                 long accId = CallHandlerPlugin.getAccountIdForCallHandler(getContext(), extEnt.getKey());
                 if(Filter.isCallableNumber(getContext(), accId, numberToCall)) {
                     boolean forceCall = Filter.isMustCallNumber(getContext(), accId, numberToCall);
-                    prefinalAccounts.add(new FilteredProfile(extEnt.getKey(), forceCall));
+                    callHandlers.put(extEnt.getKey(), forceCall);
                     if(forceCall) {
                         break;
                     }
@@ -168,6 +173,13 @@ public class AccountsLoader extends AsyncTaskLoader<Cursor> {
             }
             
         }
+        if(!callHandlers.isEmpty()) {
+            Map<String, CallHandlerPlugin> resolved = resolveCallHandlers(callHandlers);
+            for(Entry<String, Boolean> chEnt : callHandlers.entrySet()) {
+                prefinalAccounts.add(new FilteredProfile(chEnt.getKey(), chEnt.getValue(),
+                        resolved.get(chEnt.getKey()), externalHandlers.get(chEnt.getKey())));
+            }
+        }
         
         
         // Build final cursor based on final filtered accounts
@@ -190,6 +202,71 @@ public class AccountsLoader extends AsyncTaskLoader<Cursor> {
     }
     
 
+    /**
+     * Resolve call handler plugins for the number to call.<br/>
+     * All plugins are asked at the same time. We wait for them until the
+     * first results delay, or until the plugin timeout if a force call plugin
+     * is not resolved, since it may be called right away. Plugins answering
+     * later reload the loader, their answers are kept by
+     * {@link CallHandlerPlugin}.
+     * 
+     * @param callHandlers component names of plugins, with force call flag
+     * @return loaded plugins by component name, missing if not answered yet
+     */
+    private Map<String, CallHandlerPlugin> resolveCallHandlers(Map<String, Boolean> callHandlers) {
+        final Map<String, CallHandlerPlugin> resolved = new HashMap<String, CallHandlerPlugin>();
+        Map<String, String> toResolve = new HashMap<String, String>();
+        boolean waitForForced = false;
+        for(Entry<String, Boolean> chEnt : callHandlers.entrySet()) {
+            String componentName = chEnt.getKey();
+            String toCall = numberToCall;
+            if(!ignoreRewritting) {
+                long accId = CallHandlerPlugin.getAccountIdForCallHandler(getContext(), componentName);
+                toCall = Filter.rewritePhoneNumber(getContext(), accId, numberToCall);
+            }
+            CallHandlerPlugin ch = CallHandlerPlugin.getResolved(componentName, toCall);
+            if(ch != null) {
+                resolved.put(componentName, ch);
+            }else {
+                toResolve.put(componentName, toCall);
+                waitForForced |= chEnt.getValue();
+            }
+        }
+        if(toResolve.isEmpty()) {
+            return resolved;
+        }
+        
+        final CountDownLatch latch = new CountDownLatch(toResolve.size());
+        final AtomicBoolean returned = new AtomicBoolean(false);
+        for(final Entry<String, String> resEnt : toResolve.entrySet()) {
+            CallHandlerPlugin.resolve(getContext(), resEnt.getKey(), resEnt.getValue(), new OnLoadListener() {
+                @Override
+                public void onLoad(CallHandlerPlugin ch) {
+                    Log.d(THIS_FILE, "Callhandler loaded");
+                    synchronized (resolved) {
+                        if(!returned.get()) {
+                            resolved.put(resEnt.getKey(), ch);
+                            latch.countDown();
+                            return;
+                        }
+                    }
+                    // Too late for this load, reload with cached answer
+                    loaderObserver.dispatchChange(false);
+                }
+            });
+        }
+        try {
+            latch.await(waitForForced ? CallHandlerPlugin.RESOLVE_TIMEOUT : FIRST_RESULTS_DELAY,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Log.e(THIS_FILE, "Not possible to bind callhandler plugin");
+        }
+        synchronized (resolved) {
+            returned.set(true);
+            return new HashMap<String, CallHandlerPlugin>(resolved);
+        }
+    }
+
     /**
      * Class to hold information about a possible call handler entry.
      * This could be either a sip profile or a call handler plugin
@@ -215,37 +292,23 @@ public class AccountsLoader extends AsyncTaskLoader<Cursor> {
          * To use when input is a call handler plugin.
          * @param componentName The component name of the plugin
          * @param forceCall The force call flag in current context.
+         * @param ch The loaded plugin, null if it did not answer yet
+         * @param defaultLabel Label to use until the plugin answers
          */
-        public FilteredProfile(String componentName, boolean forceCall) {
+        public FilteredProfile(String componentName, boolean forceCall, CallHandlerPlugin ch,
+                String defaultLabel) {
             account = new SipProfile();
             long accId = CallHandlerPlugin.getAccountIdForCallHandler(getContext(), componentName);
             account.id = accId;
             account.wizard = "EXPERT";
-            CallHandlerPlugin ch = new CallHandlerPlugin(getContext());
-            final Semaphore semaphore = new Semaphore(0);
-            
-            String toCall = numberToCall;
-            if(!ignoreRewritting) {
-                toCall = Filter.rewritePhoneNumber(getContext(), accId, numberToCall);
-            }
-            ch.loadFrom(accId, toCall, new OnLoadListener() {
-                @Override
-                public void onLoad(CallHandlerPlugin ch) {
-                    Log.d(THIS_FILE, "Callhandler loaded");
-                    semaphore.release();
-                }
-            });
-            boolean succeedInLoading = false;
-            try {
-                succeedInLoading = semaphore.tryAcquire(3L, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                Log.e(THIS_FILE, "Not possible to bind callhandler plugin");
-            }
-            if(!succeedInLoading) {
-                Log.e(THIS_FILE, "Unreachable callhandler plugin " + componentName);
+            if(ch != null) {
+                account.display_name = ch.getLabel();
+                account.icon = ch.getIcon();
+            }else {
+                Log.w(THIS_FILE, "Callhandler plugin not loaded yet " + componentName);
+                account.display_name = defaultLabel;
+                ch = new CallHandlerPlugin(getContext());
             }
-            account.display_name = ch.getLabel();
-            account.icon = ch.getIcon();
             
             isForceCall = forceCall;
             statusColor = getContext().getResources().getColor(android.R.color.white);
@@ -41,7 +41,7 @@ import com.csipsimple.utils.ContactsAsyncHelper;
  * Adapter class to fill in data for the Call Log.
  */
 public class CallLogAdapter extends GroupingListAdapter
-        implements CallLogGroupBuilder.GroupCreator {
+        implements CallLogGroupBuilder.GroupCreator, CallerInfo.OnCallerInfoListener {
     /** Interface used to initiate a refresh of the content. */
     public interface CallFetcher {
         void fetchCalls();
@@ -226,7 +226,11 @@ public class CallLogAdapter extends GroupingListAdapter
             // already been done
             return;
         }
-        CallerInfo info = CallerInfo.getCallerInfoFromSipUri(mContext, number);
+        CallerInfo info = CallerInfo.getCallerInfoFromSipUri(mContext, number, this);
+        if (info == null) {
+            // Show the number until the contact lookup is done
+            info = CallerInfo.EMPTY;
+        }
 
         final Uri lookupUri = info.contactContentUri;
         final String name = info.name;
@@ -335,4 +339,10 @@ public class CallLogAdapter extends GroupingListAdapter
         super.addGroup(cursorPosition, size, expanded);
     }
 
+    @Override
+    public void onCallerInfoResolved(String sipUri, CallerInfo callerInfo) {
+        // Rows bound meanwhile now get the caller info from cache
+        notifyDataSetChanged();
+    }
+
 }
@@ -49,6 +49,7 @@ import com.csipsimple.R;
 import com.csipsimple.api.SipManager;
 import com.csipsimple.api.SipProfile;
 import com.csipsimple.api.SipUri;
+import com.csipsimple.models.CallerInfo;
 import com.csipsimple.ui.SipHome.ViewPagerVisibilityListener;
 import com.csipsimple.ui.calllog.CallLogAdapter.OnCallLogAction;
 import com.csipsimple.utils.Log;
@@ -245,7 +246,15 @@ public class CallLogListFragment extends CSSListFragment implements ViewPagerVis
                 SipManager.CALLLOG_PROFILE_ID_FIELD
         },
                 null, null,
-                Calls.DEFAULT_SORT_ORDER);
+                Calls.DEFAULT_SORT_ORDER) {
+            @Override
+            public Cursor loadInBackground() {
+                Cursor c = super.loadInBackground();
+                // Resolve contacts of the whole log before rows get bound
+                CallerInfo.prefetchCallerInfos(getContext(), c, Calls.NUMBER);
+                return c;
+            }
+        };
     }
 
 
@@ -54,6 +54,8 @@ import android.widget.RelativeLayout;
 
 import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.csipsimple.R;
+import com.csipsimple.api.ISipCallListener;
+import com.csipsimple.api.ISipResultCallback;
 import com.csipsimple.api.ISipService;
 import com.csipsimple.api.MediaState;
 import com.csipsimple.api.SipCallSession;
@@ -204,8 +206,8 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
         }
         */
 
-        // Listen to media & sip events to update the UI
-        registerReceiver(callStateReceiver, new IntentFilter(SipManager.ACTION_SIP_CALL_CHANGED));
+        // Listen to media & zrtp events to update the UI
+        // Calls states are pushed to callListener once the service is bound
         registerReceiver(callStateReceiver, new IntentFilter(SipManager.ACTION_SIP_MEDIA_CHANGED));
         registerReceiver(callStateReceiver, new IntentFilter(SipManager.ACTION_ZRTP_SHOW_SAS));
         
@@ -289,6 +291,13 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
         }
         */
 
+        if (service != null) {
+            try {
+                service.unregisterCallListener(callListener);
+            } catch (RemoteException e) {
+                // Service is gone, so is the registration
+            }
+        }
         try {
             unbindService(connection);
         } catch (Exception e) {
@@ -391,7 +400,7 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
                     int callId = data.getIntExtra(CALL_ID, -1);
                     if(callId != -1) {
                         try {
-                            service.xfer((int) callId, callee);
+                            service.xferAsync((int) callId, callee, 0, null);
                         } catch (RemoteException e) {
                             // TODO : toaster
                         }
@@ -674,7 +683,7 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
         if (service != null) {
             if (callId != SipCallSession.INVALID_CALL_ID) {
                 try {
-                    service.sendDtmf(callId, keyCode);
+                    service.sendDtmfAsync(callId, keyCode, 0, null);
                     dialFeedback.giveFeedback(dialTone);
                 } catch (RemoteException e) {
                     Log.e(THIS_FILE, "Was not able to send dtmf tone", e);
@@ -751,18 +760,7 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
 
-            if (action.equals(SipManager.ACTION_SIP_CALL_CHANGED)) {
-                if (service != null) {
-                    try {
-                        synchronized (callMutex) {
-                            callsInfo = service.getCalls();
-                            runOnUiThread(new UpdateUIFromCallRunnable());
-                        }
-                    } catch (RemoteException e) {
-                        Log.e(THIS_FILE, "Not able to retrieve calls");
-                    }
-                }
-            } else if (action.equals(SipManager.ACTION_SIP_MEDIA_CHANGED)) {
+            if (action.equals(SipManager.ACTION_SIP_MEDIA_CHANGED)) {
                 if (service != null) {
                     MediaState mediaState;
                     try {
@@ -786,6 +784,50 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
         }
     };
 
+    /**
+     * Calls states pushed by the service
+     */
+    private ISipCallListener.Stub callListener = new ISipCallListener.Stub() {
+        
+        @Override
+        public void onCallsSnapshot(long version, SipCallSession[] calls) throws RemoteException {
+            synchronized (callMutex) {
+                callsInfo = calls;
+            }
+            runOnUiThread(new UpdateUIFromCallRunnable());
+        }
+        
+        @Override
+        public void onCallChanged(long version, SipCallSession call) throws RemoteException {
+            synchronized (callMutex) {
+                callsInfo = mergeCall(callsInfo, call);
+            }
+            runOnUiThread(new UpdateUIFromCallRunnable());
+        }
+    };
+    
+    /**
+     * Replace the call with the same id in calls, or add it
+     */
+    static SipCallSession[] mergeCall(SipCallSession[] calls, SipCallSession call) {
+        if (calls == null) {
+            return new SipCallSession[] {
+                call
+            };
+        }
+        for (int i = 0; i < calls.length; i++) {
+            if (calls[i] != null && calls[i].getCallId() == call.getCallId()) {
+                SipCallSession[] merged = calls.clone();
+                merged[i] = call;
+                return merged;
+            }
+        }
+        SipCallSession[] merged = new SipCallSession[calls.length + 1];
+        System.arraycopy(calls, 0, merged, 0, calls.length);
+        merged[calls.length] = call;
+        return merged;
+    }
+
     /**
      * Service binding
      */
@@ -797,12 +839,10 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
         public void onServiceConnected(ComponentName arg0, IBinder arg1) {
             service = ISipService.Stub.asInterface(arg1);
             try {
-                // Log.d(THIS_FILE,
-                // "Service started get real call info "+callInfo.getCallId());
-                callsInfo = service.getCalls();
+                // Real calls infos are sent first to the listener
+                service.registerCallListener(callListener);
                 serviceConnected = true;
 
-                runOnUiThread(new UpdateUIFromCallRunnable());
                 runOnUiThread(new UpdateUIFromMediaRunnable());
             } catch (RemoteException e) {
                 Log.e(THIS_FILE, "Can't get back the call", e);
@@ -817,6 +857,52 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
     };
     private AlertDialog infoDialog;
 
+    private final ISipResultCallback callInfosCallback = new ISipResultCallback.Stub() {
+        @Override
+        public void onStringResult(int requestId, final String result) throws RemoteException {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    showCallInfos(result);
+                }
+            });
+        }
+
+        @Override
+        public void onResult(int requestId, int status) throws RemoteException {
+            // Not used
+        }
+
+        @Override
+        public void onLongResult(int requestId, long result) throws RemoteException {
+            // Not used
+        }
+    };
+
+    private void showCallInfos(String infos) {
+        if (isFinishing()) {
+            return;
+        }
+        if (infoDialog != null) {
+            infoDialog.dismiss();
+        }
+        SpannableStringBuilder buf = new SpannableStringBuilder();
+        Builder builder = new AlertDialog.Builder(this);
+
+        // Null if the stack did not answer in time
+        buf.append(infos != null ? infos : "");
+        TextAppearanceSpan textSmallSpan = new TextAppearanceSpan(this,
+                android.R.style.TextAppearance_Small);
+        buf.setSpan(textSmallSpan, 0, buf.length(),
+                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        infoDialog = builder.setIcon(android.R.drawable.ic_dialog_info)
+                .setMessage(buf)
+                .setNeutralButton(R.string.ok, null)
+                .create();
+        infoDialog.show();
+    }
+
     // private boolean showDetails = true;
 
 
@@ -869,7 +955,7 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
                                         && callInfo.getCallId() != call.getCallId()) {
 
                                     Log.d(THIS_FILE, "Hold call " + callInfo.getCallId());
-                                    service.hold(callInfo.getCallId());
+                                    service.holdAsync(callInfo.getCallId(), 0, null);
 
                                 }
                             }
@@ -919,25 +1005,8 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
                 }
                 case DETAILED_DISPLAY: {
                     if (service != null) {
-                        if(infoDialog != null) {
-                            infoDialog.dismiss();
-                        }
-                        String infos = service.showCallInfosDialog(call.getCallId());
-                        
-                        SpannableStringBuilder buf = new SpannableStringBuilder();
-                        Builder builder = new AlertDialog.Builder(this);
-
-                        buf.append(infos);
-                        TextAppearanceSpan textSmallSpan = new TextAppearanceSpan(this,
-                                android.R.style.TextAppearance_Small);
-                        buf.setSpan(textSmallSpan, 0, buf.length(),
-                                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-
-                        infoDialog = builder.setIcon(android.R.drawable.ic_dialog_info)
-                                .setMessage(buf)
-                                .setNeutralButton(R.string.ok, null)
-                                .create();
-                        infoDialog.show();
+                        // Dump may take long, dialog is shown once the stack gave it
+                        service.showCallInfosDialogAsync(call.getCallId(), 0, callInfosCallback);
                     }
                     break;
                 }
@@ -947,9 +1016,9 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
                         // "Current state is : "+callInfo.getCallState().name()+" / "+callInfo.getMediaStatus().name());
                         if (call.getMediaStatus() == SipCallSession.MediaState.LOCAL_HOLD ||
                                 call.getMediaStatus() == SipCallSession.MediaState.NONE) {
-                            service.reinvite(call.getCallId(), true);
+                            service.reinviteAsync(call.getCallId(), true, 0, null);
                         } else {
-                            service.hold(call.getCallId());
+                            service.holdAsync(call.getCallId(), 0, null);
                         }
                     }
                     break;
@@ -987,7 +1056,7 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
                                         if (service != null) {
                                             try {
                                                 // 1 = PJSUA_XFER_NO_REQUIRE_REPLACES
-                                                service.xferReplace(call.getCallId(), remoteCalls.get(which).getCallId(), 1);
+                                                service.xferReplaceAsync(call.getCallId(), remoteCalls.get(which).getCallId(), 1, 0, null);
                                             } catch (RemoteException e) {
                                                 Log.e(THIS_FILE, "Was not able to call service method", e);
                                             }
@@ -1238,7 +1307,7 @@ public class InCallActivity extends SherlockFragmentActivity implements IOnCallA
                             if (service != null) {
                                 try {
                                     // 1 = PJSUA_XFER_NO_REQUIRE_REPLACES
-                                    service.xferReplace(call.getCallId(), callId, 1);
+                                    service.xferReplaceAsync(call.getCallId(), callId, 1, 0, null);
                                 } catch (RemoteException e) {
                                     // TODO : toaster
                                 }
@@ -22,13 +22,11 @@
 package com.csipsimple.ui.incall;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.media.AudioManager;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
@@ -45,10 +43,12 @@ import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 
 import com.csipsimple.R;
+import com.csipsimple.api.ISipCallListener;
 import com.csipsimple.api.ISipService;
 import com.csipsimple.api.SipCallSession;
 import com.csipsimple.api.SipConfigManager;
 import com.csipsimple.api.SipManager;
+import com.csipsimple.service.LevelMeter;
 import com.csipsimple.utils.Log;
 
 import java.util.Timer;
@@ -116,7 +116,6 @@ public class InCallMediaControl extends Activity implements OnSeekBarChangeListe
 			isAutoClose = false;
 		}
 		
-		registerReceiver(callStateReceiver, new IntentFilter(SipManager.ACTION_SIP_CALL_CHANGED));
         if (monitorThread == null) {
             monitorThread = new MonitorThread();
             monitorThread.start();
@@ -127,6 +126,14 @@ public class InCallMediaControl extends Activity implements OnSeekBarChangeListe
 	@Override
 	protected void onPause() {
 		super.onPause();
+		stopLevelMeter();
+		if(sipService != null) {
+			try {
+				sipService.unregisterCallListener(callListener);
+			} catch (RemoteException e) {
+				// Service is gone, so is the registration
+			}
+		}
 		try {
 			unbindService(sipConnection);
 		}catch(Exception e) {
@@ -138,11 +145,6 @@ public class InCallMediaControl extends Activity implements OnSeekBarChangeListe
 			quitTimer.purge();
 			quitTimer = null;
 		}
-		try {
-			unregisterReceiver(callStateReceiver);
-		}catch (IllegalArgumentException e) {
-			//That's the case if not registered (early quit)
-		}
 
         if (monitorThread != null) {
             monitorThread.markFinished();
@@ -152,43 +154,55 @@ public class InCallMediaControl extends Activity implements OnSeekBarChangeListe
 	}
 	
 	
-	private BroadcastReceiver callStateReceiver = new BroadcastReceiver() {
-		
+	private final Object callMutex = new Object();
+	// Guarded by callMutex
+	private SipCallSession[] callsInfo = null;
+
+	/**
+	 * Calls states pushed by the service, the screen goes when no call is
+	 * active anymore
+	 */
+	private ISipCallListener.Stub callListener = new ISipCallListener.Stub() {
+
 		@Override
-		public void onReceive(Context context, Intent intent) {
-			String action = intent.getAction();
-			
-			if(action.equals(SipManager.ACTION_SIP_CALL_CHANGED)){
-				if(sipService != null) {
-					try {
-						SipCallSession[] callsInfo = sipService.getCalls();
-						SipCallSession currentCallInfo = null;
-						if(callsInfo != null) {
-							for(SipCallSession callInfo : callsInfo) {
-								int state = callInfo.getCallState();
-								switch (state) {
-									case SipCallSession.InvState.NULL:
-									case SipCallSession.InvState.DISCONNECTED:
-										break;
-									default:
-										currentCallInfo = callInfo;
-										break;
-								}
-								if(currentCallInfo != null) {
-									break;
-								}
-							}
-						}
-						if(currentCallInfo == null) {
-							finish();
-						}
-					} catch (RemoteException e) {
-						Log.e(THIS_FILE, "Not able to retrieve calls");
+		public void onCallsSnapshot(long version, SipCallSession[] calls) throws RemoteException {
+			synchronized (callMutex) {
+				callsInfo = calls;
+			}
+			finishIfNoActiveCall();
+		}
+
+		@Override
+		public void onCallChanged(long version, SipCallSession call) throws RemoteException {
+			synchronized (callMutex) {
+				callsInfo = InCallActivity.mergeCall(callsInfo, call);
+			}
+			finishIfNoActiveCall();
+		}
+	};
+
+	private void finishIfNoActiveCall() {
+		synchronized (callMutex) {
+			if(callsInfo != null) {
+				for(SipCallSession callInfo : callsInfo) {
+					if(callInfo == null) {
+						continue;
+					}
+					int state = callInfo.getCallState();
+					if(state != SipCallSession.InvState.NULL
+							&& state != SipCallSession.InvState.DISCONNECTED) {
+						return;
 					}
 				}
 			}
 		}
-	};
+		runOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				finish();
+			}
+		});
+	}
 	
 	private class LockTimerTask extends TimerTask{
 		@Override
@@ -262,7 +276,14 @@ public class InCallMediaControl extends Activity implements OnSeekBarChangeListe
 		public void onServiceConnected(ComponentName arg0, IBinder arg1) {
 			Log.d(THIS_FILE, "SipService is connected");
 			sipService = ISipService.Stub.asInterface(arg1);
+			try {
+				// Current calls are sent first to the listener
+				sipService.registerCallListener(callListener);
+			} catch (RemoteException e) {
+				Log.e(THIS_FILE, "Can't listen to calls", e);
+			}
 			updateUIFromMedia();
+			startLevelMeter();
 		}
 		@Override
 		public void onServiceDisconnected(ComponentName arg0) {
@@ -379,10 +400,41 @@ public class InCallMediaControl extends Activity implements OnSeekBarChangeListe
 		}
 	}
 
+    // Identifies this screen to the level meter of the service
+    private final IBinder levelMeterToken = new Binder();
+    private volatile LevelMeter.Reader levelReader;
+
+    private void startLevelMeter() {
+        if (sipService == null || levelReader != null) {
+            return;
+        }
+        try {
+            levelReader = LevelMeter.Reader.open(sipService.startLevelMeter(levelMeterToken));
+        } catch (RemoteException e) {
+            Log.e(THIS_FILE, "Problem with remote service", e);
+        }
+    }
+
+    private void stopLevelMeter() {
+        LevelMeter.Reader reader = levelReader;
+        levelReader = null;
+        if (sipService != null) {
+            try {
+                sipService.stopLevelMeter(levelMeterToken);
+            } catch (RemoteException e) {
+                Log.e(THIS_FILE, "Problem with remote service", e);
+            }
+        }
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
     private MonitorThread monitorThread;
 
     private class MonitorThread extends Thread {
         private boolean finished = false;
+        private int lastSequence = -1;
 
         public synchronized void markFinished() {
             finished = true;
@@ -392,19 +444,22 @@ public class InCallMediaControl extends Activity implements OnSeekBarChangeListe
         public void run() {
             super.run();
             while (true) {
-                if (sipService != null) {
-                    try {
-                        long value = sipService.confGetRxTxLevel(0);
-                        runOnUiThread(new UpdateConfLevelRunnable((int) ((value >> 8) & 0xff), (int) (value & 0xff)));
-                    } catch (RemoteException e) {
-                        Log.e(THIS_FILE, "Problem with remote service", e);
-                        break;
+                int period = 100;
+                LevelMeter.Reader reader = levelReader;
+                if (reader != null) {
+                    // Levels are read from the buffer shared with the service
+                    int sequence = reader.getSequence();
+                    if (sequence != lastSequence) {
+                        lastSequence = sequence;
+                        int value = reader.getLevel();
+                        runOnUiThread(new UpdateConfLevelRunnable((value >> 8) & 0xff, value & 0xff));
                     }
+                    period = reader.getPeriod();
                 }
 
                 // End of loop, sleep for a while and exit if necessary
                 try {
-                    sleep(100);
+                    sleep(period);
                 } catch (InterruptedException e) {
                     Log.e(THIS_FILE, "Interupted monitor thread", e);
                 }
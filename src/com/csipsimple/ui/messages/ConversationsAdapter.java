@@ -41,7 +41,7 @@ import com.csipsimple.models.CallerInfo;
 import com.csipsimple.utils.ContactsAsyncHelper;
 import com.csipsimple.widgets.contactbadge.QuickContactBadge;
 
-public class ConversationsAdapter extends SimpleCursorAdapter {
+public class ConversationsAdapter extends SimpleCursorAdapter implements CallerInfo.OnCallerInfoListener {
 
 	private Context mContext;
 	
@@ -113,7 +113,10 @@ public class ConversationsAdapter extends SimpleCursorAdapter {
         view.setBackgroundDrawable(background);
          */
         String number = cursor.getString(cursor.getColumnIndex(SipMessage.FIELD_FROM_FULL));
-        CallerInfo info = CallerInfo.getCallerInfoFromSipUri(mContext, number);
+        CallerInfo info = CallerInfo.getCallerInfoFromSipUri(mContext, number, this);
+        if (info == null) {
+            info = CallerInfo.EMPTY;
+        }
         
         /*
         final Uri lookupUri = info.contactContentUri;
@@ -155,7 +158,7 @@ public class ConversationsAdapter extends SimpleCursorAdapter {
         }
         */
         String remoteContactFull = cursor.getString(cursor.getColumnIndex(SipMessage.FIELD_FROM_FULL));
-        CallerInfo callerInfo = CallerInfo.getCallerInfoFromSipUri(mContext, remoteContactFull);
+        CallerInfo callerInfo = CallerInfo.getCallerInfoFromSipUri(mContext, remoteContactFull, this);
         if (callerInfo != null && callerInfo.contactExists) {
         	buf.append(callerInfo.name);
         	buf.append(" / ");
@@ -178,4 +181,9 @@ public class ConversationsAdapter extends SimpleCursorAdapter {
         }
         return buf;
     }
+
+    @Override
+    public void onCallerInfoResolved(String sipUri, CallerInfo callerInfo) {
+        notifyDataSetChanged();
+    }
 }
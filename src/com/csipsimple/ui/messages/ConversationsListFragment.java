@@ -49,6 +49,7 @@ import com.actionbarsherlock.view.MenuItem;
 import com.actionbarsherlock.view.MenuItem.OnMenuItemClickListener;
 import com.csipsimple.R;
 import com.csipsimple.api.SipMessage;
+import com.csipsimple.models.CallerInfo;
 import com.csipsimple.service.SipNotifications;
 import com.csipsimple.ui.SipHome.ViewPagerVisibilityListener;
 import com.csipsimple.ui.messages.ConversationsAdapter.ConversationListItemViews;
@@ -226,7 +227,14 @@ public class ConversationsListFragment extends CSSListFragment implements ViewPa
     
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return new CursorLoader(getActivity(), SipMessage.THREAD_URI, null, null, null, null);
+        return new CursorLoader(getActivity(), SipMessage.THREAD_URI, null, null, null, null) {
+            @Override
+            public Cursor loadInBackground() {
+                Cursor c = super.loadInBackground();
+                CallerInfo.prefetchCallerInfos(getContext(), c, SipMessage.FIELD_FROM_FULL);
+                return c;
+            }
+        };
     }
 
     public void onCreateContextMenu(ContextMenu menu, View v,
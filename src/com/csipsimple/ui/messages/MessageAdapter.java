@@ -49,7 +49,7 @@ import com.csipsimple.widgets.contactbadge.QuickContactBadge.ArrowPosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-public class MessageAdapter extends ResourceCursorAdapter {
+public class MessageAdapter extends ResourceCursorAdapter implements CallerInfo.OnCallerInfoListener {
 
     private static SimpleDateFormat dateFormatter = new SimpleDateFormat("HH:mm:ss");
     TextAppearanceSpan mTextSmallSpan;
@@ -146,7 +146,10 @@ public class MessageAdapter extends ResourceCursorAdapter {
             setPhotoSide(tagView, ArrowPosition.RIGHT);
             
             // Contact
-            CallerInfo info = CallerInfo.getCallerInfoFromSipUri(mContext, msg.getFullFrom());
+            CallerInfo info = CallerInfo.getCallerInfoFromSipUri(mContext, msg.getFullFrom(), this);
+            if (info == null) {
+                info = CallerInfo.EMPTY;
+            }
     
             // Photo
             tagView.quickContactView.assignContactUri(info.contactContentUri);
@@ -222,4 +225,8 @@ public class MessageAdapter extends ResourceCursorAdapter {
         return buf;
     }
 
+    @Override
+    public void onCallerInfoResolved(String sipUri, CallerInfo callerInfo) {
+        notifyDataSetChanged();
+    }
 }
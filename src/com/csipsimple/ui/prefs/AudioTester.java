@@ -26,6 +26,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
@@ -38,6 +39,7 @@ import android.widget.TextView;
 import com.csipsimple.R;
 import com.csipsimple.api.ISipService;
 import com.csipsimple.api.SipManager;
+import com.csipsimple.service.LevelMeter;
 import com.csipsimple.service.SipService;
 
 public class AudioTester extends Activity implements OnClickListener {
@@ -75,6 +77,7 @@ public class AudioTester extends Activity implements OnClickListener {
                         currentStatus = R.string.test_audio_network_failure;
                     }
                     updateStatusDisplay();
+                    levelReader = LevelMeter.Reader.open(service.startLevelMeter(levelMeterToken));
                 } catch (RemoteException e) {
                     Log.e(THIS_FILE, "Error in test", e);
                 }
@@ -109,14 +112,21 @@ public class AudioTester extends Activity implements OnClickListener {
     @Override
     protected void onPause() {
         super.onPause();
+        LevelMeter.Reader reader = levelReader;
+        levelReader = null;
         if (service != null) {
             try {
+                service.stopLevelMeter(levelMeterToken);
                 service.stopLoopbackTest();
             } catch (RemoteException e) {
                 Log.e(THIS_FILE, "Error in test", e);
             }
         }
 
+        if (reader != null) {
+            reader.close();
+        }
+
         if (connection != null) {
             unbindService(connection);
         }
@@ -132,10 +142,14 @@ public class AudioTester extends Activity implements OnClickListener {
         }
     }
 
+    // Identifies this screen to the level meter of the service
+    private final IBinder levelMeterToken = new Binder();
+    private volatile LevelMeter.Reader levelReader;
     private MonitorThread monitorThread;
 
     private class MonitorThread extends Thread {
         private boolean finished = false;
+        private int lastSequence = -1;
 
         public synchronized void markFinished() {
             finished = true;
@@ -145,19 +159,21 @@ public class AudioTester extends Activity implements OnClickListener {
         public void run() {
             super.run();
             while (true) {
-                if (service != null) {
-                    try {
-                        long value = service.confGetRxTxLevel(0);
-                        runOnUiThread(new UpdateConfLevelRunnable((int) ((value >> 8) & 0xff), (int) (value & 0xff)));
-                    } catch (RemoteException e) {
-                        Log.e(THIS_FILE, "Problem with remote service", e);
-                        break;
+                int period = 100;
+                LevelMeter.Reader reader = levelReader;
+                if (reader != null) {
+                    int sequence = reader.getSequence();
+                    if (sequence != lastSequence) {
+                        lastSequence = sequence;
+                        int value = reader.getLevel();
+                        runOnUiThread(new UpdateConfLevelRunnable((value >> 8) & 0xff, value & 0xff));
                     }
+                    period = reader.getPeriod();
                 }
 
                 // End of loop, sleep for a while and exit if necessary
                 try {
-                    sleep(100);
+                    sleep(period);
                 } catch (InterruptedException e) {
                     Log.e(THIS_FILE, "Interupted monitor thread", e);
                 }
@@ -39,12 +39,15 @@ import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.csipsimple.api.SipManager;
 import com.csipsimple.api.SipProfile;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -64,6 +67,13 @@ public class CallHandlerPlugin {
     private static Map<String, String> AVAILABLE_HANDLERS = null;
 
     private final static String VIRTUAL_ACC_MAX_ENTRIES = "maxVirtualAcc";
+    // Resolved plugins kept, by component and number
+    private final static int RESOLVED_MAX_ENTRIES = 32;
+    private final static long RESOLVED_MAX_AGE = 5 * 60 * 1000;
+    /**
+     * Time after which a plugin that did not answer can be asked again.
+     */
+    public final static long RESOLVE_TIMEOUT = 3000;
     private final static String VIRTUAL_ACC_PREFIX = "vAcc_";
 
     public CallHandlerPlugin(Context ctxt) {
@@ -198,6 +208,107 @@ public class CallHandlerPlugin {
      */
     public static void clearAvailableCallHandlers() {
         AVAILABLE_HANDLERS = null;
+        synchronized (RESOLVED) {
+            RESOLVED.clear();
+        }
+    }
+
+    private static class ResolvedPlugin {
+        final CallHandlerPlugin plugin;
+        final long resolvedAt;
+
+        ResolvedPlugin(CallHandlerPlugin aPlugin) {
+            plugin = aPlugin;
+            resolvedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static class PendingResolution {
+        final long startedAt = SystemClock.elapsedRealtime();
+        final List<OnLoadListener> listeners = new ArrayList<OnLoadListener>();
+    }
+
+    // Guarded by RESOLVED
+    private static final Map<String, ResolvedPlugin> RESOLVED = new LinkedHashMap<String, ResolvedPlugin>(
+            RESOLVED_MAX_ENTRIES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResolvedPlugin> eldest) {
+            return size() > RESOLVED_MAX_ENTRIES;
+        }
+    };
+    private static final Map<String, PendingResolution> PENDING = new HashMap<String, PendingResolution>();
+
+    private static String resolutionKey(String componentName, String number) {
+        return componentName + "|" + (number == null ? "" : number);
+    }
+
+    /**
+     * Get a plugin already resolved for a number.
+     * 
+     * @param componentName Fully qualified component name of the plugin
+     * @param number number to call, as given to the plugin
+     * @return the loaded plugin, null if not resolved or too old
+     */
+    public static CallHandlerPlugin getResolved(String componentName, String number) {
+        String key = resolutionKey(componentName, number);
+        synchronized (RESOLVED) {
+            ResolvedPlugin resolved = RESOLVED.get(key);
+            if (resolved == null) {
+                return null;
+            }
+            if (SystemClock.elapsedRealtime() - resolved.resolvedAt > RESOLVED_MAX_AGE) {
+                RESOLVED.remove(key);
+                return null;
+            }
+            return resolved.plugin;
+        }
+    }
+
+    /**
+     * Resolve a plugin for a number without blocking. Plugins can be
+     * resolved concurrently. A resolution already running for the same
+     * plugin and number is shared, the result is kept for next
+     * {@link #getResolved(String, String)}. {@link #initHandler()} must have
+     * been called.
+     * 
+     * @param ctxt context of application
+     * @param componentName Fully qualified component name of the plugin
+     * @param number number to call
+     * @param l Listener fired on plugin thread once loaded, never if the
+     *            plugin does not answer
+     */
+    public static void resolve(Context ctxt, final String componentName, final String number,
+            OnLoadListener l) {
+        final String key = resolutionKey(componentName, number);
+        synchronized (RESOLVED) {
+            PendingResolution pending = PENDING.get(key);
+            if (pending != null
+                    && SystemClock.elapsedRealtime() - pending.startedAt < RESOLVE_TIMEOUT) {
+                pending.listeners.add(l);
+                return;
+            }
+            pending = new PendingResolution();
+            pending.listeners.add(l);
+            PENDING.put(key, pending);
+        }
+        CallHandlerPlugin ch = new CallHandlerPlugin(ctxt.getApplicationContext());
+        ch.loadFrom(componentName, number, new OnLoadListener() {
+            @Override
+            public void onLoad(CallHandlerPlugin loaded) {
+                PendingResolution done;
+                synchronized (RESOLVED) {
+                    RESOLVED.put(key, new ResolvedPlugin(loaded));
+                    done = PENDING.remove(key);
+                }
+                if (done != null) {
+                    for (OnLoadListener listener : done.listeners) {
+                        listener.onLoad(loaded);
+                    }
+                }
+            }
+        });
     }
 
     /**
@@ -69,6 +69,19 @@ public class CallLogHelper {
 	
 	
 	public static ContentValues logValuesForCall(Context context, SipCallSession call, long callStart) {
+	    return logValuesForCall(context, call, callStart, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Build call log values of a call.
+	 * 
+	 * @param context the context
+	 * @param call the ended call
+	 * @param callStart when the call was confirmed, 0 if never
+	 * @param callEnd when the call ended
+	 * @return the values to insert in call logs
+	 */
+	public static ContentValues logValuesForCall(Context context, SipCallSession call, long callStart, long callEnd) {
 		ContentValues cv = new ContentValues();
 		String remoteContact = call.getRemoteContact();
 		
@@ -81,7 +94,7 @@ public class CallLogHelper {
             number = m.group(2);
         }
         
-        cv.put(CallLog.Calls.DATE, (callStart > 0) ? callStart : System.currentTimeMillis());
+        cv.put(CallLog.Calls.DATE, (callStart > 0) ? callStart : callEnd);
 		int type = CallLog.Calls.OUTGOING_TYPE;
 		int nonAcknowledge = 0; 
 		if(call.isIncoming()) {
@@ -108,7 +121,7 @@ public class CallLogHelper {
         cv.put(CallLog.Calls.TYPE, type);
         cv.put(CallLog.Calls.NEW, nonAcknowledge);
         cv.put(CallLog.Calls.DURATION,
-                (callStart > 0) ? (System.currentTimeMillis() - callStart) / 1000 : 0);
+                (callStart > 0) ? (callEnd - callStart) / 1000 : 0);
         cv.put(SipManager.CALLLOG_PROFILE_ID_FIELD, call.getAccId());
         cv.put(SipManager.CALLLOG_STATUS_CODE_FIELD, call.getLastStatusCode());
         cv.put(SipManager.CALLLOG_STATUS_TEXT_FIELD, call.getLastStatusComment());
@@ -30,12 +30,12 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.support.v4.util.LruCache;
 import android.text.TextUtils;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.csipsimple.R;
@@ -44,15 +44,23 @@ import com.csipsimple.utils.contacts.ContactsWrapper;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.util.LinkedList;
 
 public class ContactsAsyncHelper extends Handler {
     private static final String THIS_FILE = "ContactsAsyncHelper";
     
-    // TODO : use LRUCache for bitmaps.
+    // Decoded bitmaps, by uri and target size
+    private static final LruCache<String, Bitmap> photoCache = new LruCache<String, Bitmap>(5 * 1024 * 1024 /* 5MiB */) {
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    };
     
-    LruCache<Uri, Bitmap> photoCache = new LruCache<Uri, Bitmap>(5 * 1024 * 1024 /* 5MiB */) {
-        protected int sizeOf(Uri key, Bitmap value) {
-            return value.getRowBytes() * value.getWidth();
+    // Compressed photos read from uris, to decode again at another size
+    private static final int PHOTO_BYTES_CACHE_SIZE = 1024 * 1024;
+    private static final LruCache<Uri, byte[]> photoBytesCache = new LruCache<Uri, byte[]>(PHOTO_BYTES_CACHE_SIZE) {
+        protected int sizeOf(Uri key, byte[] value) {
+            return value.length;
         }
     };
 
@@ -75,10 +83,16 @@ public class ContactsAsyncHelper extends Handler {
     private static final int EVENT_LOAD_CONTACT_URI = 3;
     private static final int DEFAULT_TOKEN = -1;
     private static final int TAG_PHOTO_INFOS = R.id.icon;
+    private static final int WORKER_COUNT = 2;
+    // Log cache stats every this number of loads
+    private static final int STATS_PERIOD = 100;
     private static ContactsWrapper contactsWrapper;
 
     // static objects
-    private static Handler sThreadHandler;
+    private static ContactsAsyncHelper sInstance;
+    // Loads waiting for a worker, most recent first. Guarded by itself
+    private static final LinkedList<WorkerArgs> sPendingLoads = new LinkedList<WorkerArgs>();
+    private static int sLoadCount = 0;
 
     private static final class WorkerArgs {
         public Context context;
@@ -88,126 +102,203 @@ public class ContactsAsyncHelper extends Handler {
         public Uri loadedUri;
         public Object cookie;
         public OnImageLoadCompleteListener listener;
+        public int token;
+        public int event;
+        public Uri uri;
+        public String cacheKey;
+        public int targetWidth;
+        public int targetHeight;
+        // Set from main thread when the view is bound to something else
+        public volatile boolean cancelled = false;
+        // Guarded by this
+        public BitmapFactory.Options decodeOptions;
+        
+        synchronized void cancel() {
+            cancelled = true;
+            if (decodeOptions != null) {
+                decodeOptions.requestCancelDecode();
+            }
+        }
     }
 
     private static class PhotoViewTag {
         public Uri uri;
+        // Load not delivered yet
+        public WorkerArgs pending;
+    }
+    
+    /**
+     * Output stream giving access to its buffer, reused from one load to the
+     * next
+     */
+    private static class PhotoBuffer extends ByteArrayOutputStream {
+        PhotoBuffer() {
+            super(32 * 1024);
+        }
+        
+        byte[] getBuffer() {
+            return buf;
+        }
     }
 
     public static final String HIGH_RES_URI_PARAM = "hiRes";
     /**
-     * Thread worker class that handles the task of opening the stream and
-     * loading the images.
+     * Worker thread that opens the streams and decodes the images.
      */
-    private class WorkerHandler extends Handler {
+    private class PhotoWorker extends Thread {
+        private final byte[] readBuffer = new byte[1024 * 16];
+        private final PhotoBuffer photoBuffer = new PhotoBuffer();
 
-        public WorkerHandler(Looper looper) {
-            super(looper);
+        PhotoWorker(int index) {
+            super("ContactsAsyncWorker" + index);
+            setDaemon(true);
         }
 
-        public void handleMessage(Message msg) {
-            WorkerArgs args = (WorkerArgs) msg.obj;
-            Uri uri = null;
-            if (msg.arg1 == EVENT_LOAD_IMAGE) {
-                PhotoViewTag photoTag = (PhotoViewTag) args.view.getTag(TAG_PHOTO_INFOS);
-                if (photoTag != null && photoTag.uri != null) {
-                    uri = photoTag.uri;
-                    boolean hiRes = false;
-                    String p = uri.getQueryParameter(HIGH_RES_URI_PARAM);
-                    if(!TextUtils.isEmpty(p) && p.equalsIgnoreCase("1")) {
-                        hiRes = true;
-                    }
-                    Log.v(THIS_FILE, "get : " + uri);
-                    Bitmap img = null;
-                    synchronized (photoCache) {
-                        img = photoCache.get(uri);
-                    }
-                    if(img == null) {
-                        img = contactsWrapper.getContactPhoto(args.context, uri, hiRes,
-                                args.defaultResource);
-                        synchronized (photoCache) {
-                            photoCache.put(uri, img);
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                WorkerArgs args;
+                synchronized (sPendingLoads) {
+                    while (sPendingLoads.isEmpty()) {
+                        try {
+                            sPendingLoads.wait();
+                        } catch (InterruptedException e) {
+                            Log.e(THIS_FILE, "Photo worker interrupted", e);
                         }
                     }
-                    if (img != null) {
-                        args.result = img;
-                    } else {
-                        args.result = null;
-                    }
+                    args = sPendingLoads.removeFirst();
+                }
+                if (args.cancelled) {
+                    continue;
                 }
-            } else if (msg.arg1 == EVENT_LOAD_IMAGE_URI || msg.arg1 == EVENT_LOAD_CONTACT_URI) {
-                PhotoViewTag photoTag = (PhotoViewTag) args.view.getTag(TAG_PHOTO_INFOS);
-                if (photoTag != null && photoTag.uri != null) {
-                    uri = photoTag.uri;
-                    Log.v(THIS_FILE, "get : " + uri);
+                try {
+                    load(args);
+                } catch (Exception e) {
+                    Log.e(THIS_FILE, "Cannot load photo " + args.uri, e);
+                }
+                if (args.cancelled) {
+                    continue;
+                }
+                args.loadedUri = args.uri;
 
-                    Bitmap img = null;
+                // send the reply to the enclosing class.
+                Message reply = ContactsAsyncHelper.this.obtainMessage(args.token);
+                reply.arg1 = args.event;
+                reply.obj = args;
+                reply.sendToTarget();
+            }
+        }
 
-                    synchronized (photoCache) {
-                        img = photoCache.get(uri);
-                    }
-                    if (img == null) {
-
-                        if (msg.arg1 == EVENT_LOAD_IMAGE_URI) {
-
-                            try {
-                                byte[] buffer = new byte[1024 * 16];
-                                InputStream is = args.context.getContentResolver().openInputStream(
-                                        uri);
-                                if (is != null) {
-                                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                                    try {
-                                        int size;
-                                        while ((size = is.read(buffer)) != -1) {
-                                            baos.write(buffer, 0, size);
-                                        }
-                                    } finally {
-                                        is.close();
-                                    }
-                                    byte[] boasBytes = baos.toByteArray();
-                                    img = BitmapFactory.decodeByteArray(boasBytes, 0,
-                                            boasBytes.length,
-                                            null);
-                                }
-
-                            } catch (Exception ex) {
-                                Log.v(THIS_FILE, "Cannot load photo " + uri, ex);
-                            }
+        private void load(WorkerArgs args) {
+            Uri uri = args.uri;
+            Log.v(THIS_FILE, "get : " + uri);
+            // Only queued by loadImage once the cache missed, looking again
+            // here would count the miss twice
+            Bitmap img = null;
+            if (args.event == EVENT_LOAD_IMAGE) {
+                boolean hiRes = false;
+                String p = uri.getQueryParameter(HIGH_RES_URI_PARAM);
+                if(!TextUtils.isEmpty(p) && p.equalsIgnoreCase("1")) {
+                    hiRes = true;
+                }
+                img = contactsWrapper.getContactPhoto(args.context, uri, hiRes,
+                        args.defaultResource);
+            } else if (args.event == EVENT_LOAD_IMAGE_URI) {
+                img = loadPhotoUri(args);
+            } else if (args.event == EVENT_LOAD_CONTACT_URI) {
+                img = ContactsWrapper.getInstance().getContactPhoto(args.context, uri, false, null);
+            }
+            if (img != null && !args.cancelled) {
+                photoCache.put(args.cacheKey, img);
+            }
+            args.result = img;
+        }
 
-                        } else if (msg.arg1 == EVENT_LOAD_CONTACT_URI) {
-                            img = ContactsWrapper.getInstance().getContactPhoto(args.context, uri, false, null);
-                        }
+        private Bitmap loadPhotoUri(WorkerArgs args) {
+            byte[] bytes = photoBytesCache.get(args.uri);
+            int length;
+            if (bytes != null) {
+                length = bytes.length;
+            } else {
+                try {
+                    InputStream is = args.context.getContentResolver().openInputStream(args.uri);
+                    if (is == null) {
+                        return null;
                     }
-                    
-                    if (img != null) {
-                        args.result = img;
-                        synchronized (photoCache) {
-                            photoCache.put(uri, img);
+                    photoBuffer.reset();
+                    try {
+                        int size;
+                        while ((size = is.read(readBuffer)) != -1) {
+                            if (args.cancelled) {
+                                return null;
+                            }
+                            photoBuffer.write(readBuffer, 0, size);
                         }
-                    } else {
-                        args.result = null;
+                    } finally {
+                        is.close();
                     }
-                    
+                } catch (Exception ex) {
+                    Log.v(THIS_FILE, "Cannot load photo " + args.uri, ex);
+                    return null;
+                }
+                length = photoBuffer.size();
+                if (length <= PHOTO_BYTES_CACHE_SIZE / 8) {
+                    byte[] copy = new byte[length];
+                    System.arraycopy(photoBuffer.getBuffer(), 0, copy, 0, length);
+                    photoBytesCache.put(args.uri, copy);
+                    bytes = copy;
+                } else {
+                    bytes = photoBuffer.getBuffer();
                 }
             }
-            args.loadedUri = uri;
 
-            // send the reply to the enclosing class.
-            Message reply = ContactsAsyncHelper.this.obtainMessage(msg.what);
-            reply.arg1 = msg.arg1;
-            reply.obj = msg.obj;
-            reply.sendToTarget();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, length, options);
+            options.inSampleSize = getSampleSize(options.outWidth, options.outHeight,
+                    args.targetWidth, args.targetHeight);
+            options.inJustDecodeBounds = false;
+            synchronized (args) {
+                if (args.cancelled) {
+                    return null;
+                }
+                args.decodeOptions = options;
+            }
+            return BitmapFactory.decodeByteArray(bytes, 0, length, options);
         }
     }
 
+    /**
+     * Largest power of 2 sample size keeping the image at least as large as
+     * the target
+     */
+    private static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0 || targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     /**
      * Private constructor for static class
      */
     private ContactsAsyncHelper() {
-        HandlerThread thread = new HandlerThread("ContactsAsyncWorker");
-        thread.start();
-        sThreadHandler = new WorkerHandler(thread.getLooper());
         contactsWrapper = ContactsWrapper.getInstance();
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            new PhotoWorker(i).start();
+        }
+    }
+    
+    private static void ensureInstance() {
+        if (sInstance == null) {
+            Log.v(THIS_FILE, "Update image view with contact async");
+            sInstance = new ContactsAsyncHelper();
+        }
     }
 
     /**
@@ -230,9 +321,7 @@ public class ContactsAsyncHelper extends Handler {
     public static final void updateImageViewWithContactPhotoAsync(int token,
             OnImageLoadCompleteListener listener, Object cookie, Context context,
             ImageView imageView, CallerInfo callerInfo, int placeholderImageResource) {
-        if (sThreadHandler == null) {
-            new ContactsAsyncHelper();
-        }
+        ensureInstance();
 
         // in case the source caller info is null, the URI will be null as well.
         // just update using the placeholder image in this case.
@@ -254,18 +343,13 @@ public class ContactsAsyncHelper extends Handler {
         args.cookie = cookie;
         args.context = context;
         args.view = imageView;
-        PhotoViewTag photoTag = new PhotoViewTag();
-        photoTag.uri = callerInfo.contactContentUri;
-        args.view.setTag(TAG_PHOTO_INFOS, photoTag);
         args.defaultResource = placeholderImageResource;
         args.listener = listener;
+        args.token = token;
+        args.event = EVENT_LOAD_IMAGE;
+        args.uri = callerInfo.contactContentUri;
 
-        // setup message arguments
-        Message msg = sThreadHandler.obtainMessage(token);
-        msg.arg1 = EVENT_LOAD_IMAGE;
-        msg.obj = args;
-
-        preloadImage(imageView, placeholderImageResource, msg);
+        loadImage(args);
     }
 
     public static void updateImageViewWithContactPhotoAsync(Context context, ImageView imageView,
@@ -280,10 +364,7 @@ public class ContactsAsyncHelper extends Handler {
 
     private static void updateImageViewWithUriAsync(Context context, ImageView imageView,
             Uri photoUri, int placeholderImageResource, int eventType) {
-        if (sThreadHandler == null) {
-            Log.v(THIS_FILE, "Update image view with contact async");
-            new ContactsAsyncHelper();
-        }
+        ensureInstance();
 
         // in case the source caller info is null, the URI will be null as well.
         // just update using the placeholder image in this case.
@@ -302,21 +383,17 @@ public class ContactsAsyncHelper extends Handler {
         WorkerArgs args = new WorkerArgs();
         args.context = context;
         args.view = imageView;
-        PhotoViewTag photoTag = new PhotoViewTag();
-        photoTag.uri = photoUri;
-        args.view.setTag(TAG_PHOTO_INFOS, photoTag);
         args.defaultResource = placeholderImageResource;
+        args.token = DEFAULT_TOKEN;
+        args.event = eventType;
+        args.uri = photoUri;
 
-        // setup message arguments
-        Message msg = sThreadHandler.obtainMessage();
-        msg.arg1 = eventType;
-        msg.obj = args;
-
-        preloadImage(imageView, placeholderImageResource, msg);
+        loadImage(args);
     }
 
     private static void defaultImage(ImageView imageView, int placeholderImageResource) {
         Log.v(THIS_FILE, "No uri, just display placeholder.");
+        cancelPendingLoad(imageView);
         PhotoViewTag photoTag = new PhotoViewTag();
         photoTag.uri = null;
         imageView.setTag(TAG_PHOTO_INFOS, photoTag);
@@ -324,18 +401,104 @@ public class ContactsAsyncHelper extends Handler {
         imageView.setImageResource(placeholderImageResource);
     }
 
-    private static void preloadImage(ImageView imageView, int placeholderImageResource, Message msg) {
+    /**
+     * Bind the view to the image of args, from cache if there or else from
+     * a worker
+     */
+    private static void loadImage(WorkerArgs args) {
+        ImageView imageView = args.view;
+        cancelPendingLoad(imageView);
+        
+        // Only uris decoded here can be downsampled to the view
+        if (args.event == EVENT_LOAD_IMAGE_URI) {
+            setTargetSize(args);
+        }
+        args.cacheKey = args.uri.toString() + "@" + args.targetWidth + "x" + args.targetHeight;
+        
+        PhotoViewTag photoTag = new PhotoViewTag();
+        photoTag.uri = args.uri;
+        imageView.setTag(TAG_PHOTO_INFOS, photoTag);
+        
+        logStats();
+        Bitmap img = photoCache.get(args.cacheKey);
+        if (img != null) {
+            // Already decoded, no need to go through a worker
+            imageView.setVisibility(View.VISIBLE);
+            imageView.setImageBitmap(img);
+            if (args.listener != null) {
+                args.listener.onImageLoadComplete(args.token, args.cookie, imageView, true);
+            }
+            return;
+        }
+        photoTag.pending = args;
+
         // set the default image first, when the query is complete, we will
         // replace the image with the correct one.
-        if (placeholderImageResource != -1) {
+        if (args.defaultResource != -1) {
             imageView.setVisibility(View.VISIBLE);
-            imageView.setImageResource(placeholderImageResource);
+            imageView.setImageResource(args.defaultResource);
         } else {
             imageView.setVisibility(View.INVISIBLE);
         }
 
-        // notify the thread to begin working
-        sThreadHandler.sendMessage(msg);
+        // notify a worker to begin working
+        synchronized (sPendingLoads) {
+            sPendingLoads.addFirst(args);
+            sPendingLoads.notify();
+        }
+    }
+    
+    /**
+     * Drop the load running for a view that is now bound to something else
+     */
+    private static void cancelPendingLoad(ImageView imageView) {
+        PhotoViewTag vt = (PhotoViewTag) imageView.getTag(TAG_PHOTO_INFOS);
+        if (vt != null && vt.pending != null) {
+            vt.pending.cancel();
+            synchronized (sPendingLoads) {
+                sPendingLoads.remove(vt.pending);
+            }
+            vt.pending = null;
+        }
+    }
+    
+    private static void setTargetSize(WorkerArgs args) {
+        ImageView imageView = args.view;
+        int width = imageView.getWidth();
+        int height = imageView.getHeight();
+        if (width <= 0 || height <= 0) {
+            // Not laid out yet
+            ViewGroup.LayoutParams lp = imageView.getLayoutParams();
+            if (lp != null) {
+                width = lp.width;
+                height = lp.height;
+            }
+        }
+        if (width <= 0 || height <= 0) {
+            // Can be as large as the screen
+            width = imageView.getResources().getDisplayMetrics().widthPixels;
+            height = imageView.getResources().getDisplayMetrics().heightPixels;
+        }
+        args.targetWidth = width;
+        args.targetHeight = height;
+    }
+    
+    private static void logStats() {
+        sLoadCount++;
+        if (sLoadCount % STATS_PERIOD == 0) {
+            Log.d(THIS_FILE, getCacheStats());
+        }
+    }
+    
+    /**
+     * @return hit counts of the bitmap and compressed photo caches
+     */
+    public static String getCacheStats() {
+        return "Photo cache " + photoCache.hitCount() + "/"
+                + (photoCache.hitCount() + photoCache.missCount()) + " hits, "
+                + photoCache.size() + " bytes ; compressed " + photoBytesCache.hitCount() + "/"
+                + (photoBytesCache.hitCount() + photoBytesCache.missCount()) + " hits, "
+                + photoBytesCache.size() + " bytes";
     }
 
     private static boolean isAlreadyProcessed(ImageView imageView, Uri uri) {
@@ -360,10 +523,12 @@ public class ContactsAsyncHelper extends Handler {
                 Log.w(THIS_FILE, "Tag has been removed meanwhile");
                 return;
             }
-            if (!UriUtils.areEqual(args.loadedUri, photoTag.uri)) {
+            if (args.cancelled || photoTag.pending != args
+                    || !UriUtils.areEqual(args.loadedUri, photoTag.uri)) {
                 Log.w(THIS_FILE, "Image view has changed uri meanwhile");
                 return;
             }
+            photoTag.pending = null;
 
             // if the image has been loaded then display it, otherwise set
             // default.
@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.utils;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import com.csipsimple.api.SipConfigManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process local cache of preferences read through the preference provider.<br/>
+ * Values are kept in an immutable typed snapshot. Reads are a field load plus
+ * a map lookup. A miss queries the provider once and publishes a new
+ * snapshot including the value. The preference provider notifies each
+ * changed key on its uri, and only this key is removed from the snapshot.<br/>
+ * Reads are counted until the first {@link #logReadStats(int)}, without
+ * locking.
+ */
+public class PreferencesCache {
+
+    private static final String THIS_FILE = "PreferencesCache";
+
+    /**
+     * Marker for keys the provider has no value for.
+     */
+    private static final Object NO_VALUE = new Object();
+
+    /**
+     * Immutable set of preference values, one map per value type since the
+     * provider answer depends on the requested type.
+     */
+    private static final class Snapshot {
+        final long generation;
+        final Map<String, Object> strings;
+        final Map<String, Object> booleans;
+        final Map<String, Object> floats;
+        final Map<String, Object> integers;
+
+        Snapshot(long aGeneration, Map<String, Object> aStrings, Map<String, Object> aBooleans,
+                Map<String, Object> aFloats, Map<String, Object> aIntegers) {
+            generation = aGeneration;
+            strings = aStrings;
+            booleans = aBooleans;
+            floats = aFloats;
+            integers = aIntegers;
+        }
+
+        static Snapshot empty(long generation) {
+            Map<String, Object> none = Collections.emptyMap();
+            return new Snapshot(generation, none, none, none, none);
+        }
+
+        Snapshot with(Class<?> type, String key, Object value) {
+            return new Snapshot(generation,
+                    type == String.class ? copyWith(strings, key, value) : strings,
+                    type == Boolean.class ? copyWith(booleans, key, value) : booleans,
+                    type == Float.class ? copyWith(floats, key, value) : floats,
+                    type == Integer.class ? copyWith(integers, key, value) : integers);
+        }
+
+        Snapshot without(String key) {
+            return new Snapshot(generation + 1,
+                    copyWithout(strings, key),
+                    copyWithout(booleans, key),
+                    copyWithout(floats, key),
+                    copyWithout(integers, key));
+        }
+
+        private static Map<String, Object> copyWith(Map<String, Object> map, String key,
+                Object value) {
+            HashMap<String, Object> copy = new HashMap<String, Object>(map);
+            copy.put(key, value);
+            return Collections.unmodifiableMap(copy);
+        }
+
+        private static Map<String, Object> copyWithout(Map<String, Object> map, String key) {
+            if (!map.containsKey(key)) {
+                return map;
+            }
+            HashMap<String, Object> copy = new HashMap<String, Object>(map);
+            copy.remove(key);
+            return Collections.unmodifiableMap(copy);
+        }
+    }
+
+    private static PreferencesCache instance;
+
+    private final Context context;
+    private volatile Snapshot snapshot = Snapshot.empty(0);
+    private final ConcurrentHashMap<String, AtomicInteger> readCounts = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    // Cleared once stats are logged, reads are not counted anymore
+    private volatile boolean countReads = true;
+
+    private final ContentObserver prefsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // Before API 16 we do not know which key changed
+            invalidateAll();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri != null && !SipConfigManager.PREF_URI.equals(uri)) {
+                invalidate(uri.getLastPathSegment());
+            } else {
+                invalidateAll();
+            }
+        }
+    };
+
+    private PreferencesCache(Context aContext) {
+        context = aContext;
+        context.getContentResolver().registerContentObserver(SipConfigManager.PREF_URI, true,
+                prefsObserver);
+    }
+
+    /**
+     * Get the cache for this process
+     *
+     * @param ctxt a context, the application context is kept
+     * @return the process wide cache
+     */
+    public static synchronized PreferencesCache getInstance(Context ctxt) {
+        if (instance == null) {
+            instance = new PreferencesCache(ctxt.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public String getPreferenceStringValue(String key, String defaultValue) {
+        Object value = get(String.class, key);
+        return value != NO_VALUE ? (String) value : defaultValue;
+    }
+
+    public Boolean getPreferenceBooleanValue(String key, Boolean defaultValue) {
+        Object value = get(Boolean.class, key);
+        return value != NO_VALUE ? (Boolean) value : defaultValue;
+    }
+
+    public Float getPreferenceFloatValue(String key, Float defaultValue) {
+        Object value = get(Float.class, key);
+        return value != NO_VALUE ? (Float) value : defaultValue;
+    }
+
+    public Integer getPreferenceIntegerValue(String key, Integer defaultValue) {
+        Object value = get(Integer.class, key);
+        return value != NO_VALUE ? (Integer) value : defaultValue;
+    }
+
+    /**
+     * Remove a key from the cache. Next read will query the provider.
+     *
+     * @param key the preference key that changed
+     */
+    public synchronized void invalidate(String key) {
+        snapshot = snapshot.without(key);
+    }
+
+    /**
+     * Drop all cached values.
+     */
+    public synchronized void invalidateAll() {
+        snapshot = Snapshot.empty(snapshot.generation + 1);
+    }
+
+    private Object get(Class<?> type, String key) {
+        Snapshot current = snapshot;
+        Map<String, Object> values;
+        if (type == String.class) {
+            values = current.strings;
+        } else if (type == Boolean.class) {
+            values = current.booleans;
+        } else if (type == Float.class) {
+            values = current.floats;
+        } else {
+            values = current.integers;
+        }
+        Object value = values.get(key);
+        if (countReads) {
+            countRead(key, value != null);
+        }
+        if (value != null) {
+            return value;
+        }
+
+        // Miss : ask the provider
+        if (type == String.class) {
+            value = SipConfigManager.getPreferenceStringValue(context, key, null);
+        } else if (type == Boolean.class) {
+            value = SipConfigManager.getPreferenceBooleanValue(context, key, null);
+        } else if (type == Float.class) {
+            value = SipConfigManager.getPreferenceFloatValue(context, key, null);
+        } else {
+            value = SipConfigManager.getPreferenceIntegerValue(context, key, null);
+        }
+        if (value == null) {
+            value = NO_VALUE;
+        }
+        synchronized (this) {
+            // Do not publish if the key was invalidated while we were querying
+            if (snapshot.generation == current.generation) {
+                snapshot = snapshot.with(type, key, value);
+            }
+        }
+        return value;
+    }
+
+    private void countRead(String key, boolean hit) {
+        AtomicInteger count = readCounts.get(key);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = readCounts.putIfAbsent(key, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+        if (hit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Log the most read keys. Without the cache, each of these reads was a
+     * provider query.<br/>
+     * Counting stops with the first call, later calls log nothing.
+     *
+     * @param max number of keys to log
+     */
+    public synchronized void logReadStats(int max) {
+        if (!countReads) {
+            return;
+        }
+        countReads = false;
+        List<Entry<String, AtomicInteger>> entries = new ArrayList<Entry<String, AtomicInteger>>(
+                readCounts.entrySet());
+        Collections.sort(entries, new Comparator<Entry<String, AtomicInteger>>() {
+            @Override
+            public int compare(Entry<String, AtomicInteger> lhs, Entry<String, AtomicInteger> rhs) {
+                return rhs.getValue().get() - lhs.getValue().get();
+            }
+        });
+        Log.d(THIS_FILE, "Preferences reads : " + hits.get() + " hits, " + misses.get()
+                + " misses");
+        for (int i = 0; i < entries.size() && i < max; i++) {
+            Entry<String, AtomicInteger> entry = entries.get(i);
+            Log.d(THIS_FILE, entry.getKey() + " : " + entry.getValue().get());
+        }
+        readCounts.clear();
+    }
+}
@@ -49,6 +49,7 @@ public class PreferencesProviderWrapper {
     private ContentResolver resolver;
     private ConnectivityManager connectivityManager;
     private Context context;
+    private final PreferencesCache cache;
 
     public static final String LIB_CAP_TLS = PreferencesWrapper.LIB_CAP_TLS;
     public static final String LIB_CAP_SRTP = PreferencesWrapper.LIB_CAP_SRTP;
@@ -56,7 +57,17 @@ public class PreferencesProviderWrapper {
     public static final String HAS_ALREADY_SETUP_SERVICE = PreferencesWrapper.HAS_ALREADY_SETUP_SERVICE;
 
     public PreferencesProviderWrapper(Context aContext) {
+        this(aContext, null);
+    }
+
+    /**
+     * @param aContext the context
+     * @param aCache if not null, reads are served by this in-process cache
+     *            instead of querying the preference provider each time
+     */
+    public PreferencesProviderWrapper(Context aContext, PreferencesCache aCache) {
         context = aContext;
+        cache = aCache;
         resolver = aContext.getContentResolver();
         connectivityManager = (ConnectivityManager) aContext
                 .getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -68,47 +79,82 @@ public class PreferencesProviderWrapper {
     public void resetAllDefaultValues() {
         Uri uri = SipConfigManager.RAZ_URI;
         resolver.update(uri, new ContentValues(), null, null);
+        if (cache != null) {
+            cache.invalidateAll();
+        }
     }
 
     // Api compat part
     public boolean getPreferenceBooleanValue(String string, boolean b) {
+        if (cache != null) {
+            return cache.getPreferenceBooleanValue(string, b);
+        }
         return SipConfigManager.getPreferenceBooleanValue(context, string, b);
     }
 
     public boolean getPreferenceBooleanValue(String string) {
+        if (cache != null) {
+            return cache.getPreferenceBooleanValue(string, null);
+        }
         return SipConfigManager.getPreferenceBooleanValue(context, string);
     }
 
     public String getPreferenceStringValue(String key) {
-        return SipConfigManager.getPreferenceStringValue(context, key);
+        return getPreferenceStringValue(key, null);
     }
 
     public String getPreferenceStringValue(String key, String defaultVal) {
+        if (cache != null) {
+            return cache.getPreferenceStringValue(key, defaultVal);
+        }
         return SipConfigManager.getPreferenceStringValue(context, key, defaultVal);
     }
 
     public int getPreferenceIntegerValue(String key) {
-        return SipConfigManager.getPreferenceIntegerValue(context, key);
+        return getPreferenceIntegerValue(key, null);
+    }
+
+    public Integer getPreferenceIntegerValue(String key, Integer defaultVal) {
+        if (cache != null) {
+            return cache.getPreferenceIntegerValue(key, defaultVal);
+        }
+        return SipConfigManager.getPreferenceIntegerValue(context, key, defaultVal);
     }
 
     public float getPreferenceFloatValue(String key) {
+        if (cache != null) {
+            return cache.getPreferenceFloatValue(key, null);
+        }
         return SipConfigManager.getPreferenceFloatValue(context, key);
     }
 
     public float getPreferenceFloatValue(String key, float f) {
+        if (cache != null) {
+            return cache.getPreferenceFloatValue(key, f);
+        }
         return SipConfigManager.getPreferenceFloatValue(context, key, f);
     }
 
     public void setPreferenceStringValue(String key, String newValue) {
         SipConfigManager.setPreferenceStringValue(context, key, newValue);
+        invalidateCache(key);
     }
 
     public void setPreferenceBooleanValue(String key, boolean newValue) {
         SipConfigManager.setPreferenceBooleanValue(context, key, newValue);
+        invalidateCache(key);
     }
 
     public void setPreferenceFloatValue(String key, float newValue) {
         SipConfigManager.setPreferenceFloatValue(context, key, newValue);
+        invalidateCache(key);
+    }
+
+    private void invalidateCache(String key) {
+        // Do not wait for the provider notification to read our own write
+        if (cache != null) {
+            cache.invalidate(key);
+        }
     }
 
     // Network part
@@ -260,8 +306,7 @@ public class PreferencesProviderWrapper {
     }
 
     public int getLogLevel() {
-        int prefsValue = SipConfigManager.getPreferenceIntegerValue(context,
-                SipConfigManager.LOG_LEVEL, 1);
+        int prefsValue = getPreferenceIntegerValue(SipConfigManager.LOG_LEVEL, 1);
         if (prefsValue <= 6 && prefsValue >= 1) {
             return prefsValue;
         }
@@ -88,6 +88,9 @@ public class PreferencesWrapper {
         put(SipConfigManager.TSX_T2_TIMEOUT, "-1");
         put(SipConfigManager.TSX_T4_TIMEOUT, "-1");
         put(SipConfigManager.TSX_TD_TIMEOUT, "-1");
+        put(SipConfigManager.TIMERS_SLACK_WINDOW, "1000");
+        put(SipConfigManager.CALLLOGS_MAX_ROWS, "500");
+        put(SipConfigManager.CALLLOGS_MAX_AGE, "0");
 		
 		put(SipConfigManager.SND_AUTO_CLOSE_TIME, "1");
 		put(SipConfigManager.ECHO_CANCELLATION_TAIL, "200");
@@ -95,6 +98,7 @@ public class PreferencesWrapper {
 		put(SipConfigManager.SND_MEDIA_QUALITY, "4");
 		put(SipConfigManager.SND_CLOCK_RATE, "16000");
 		put(SipConfigManager.SND_PTIME, "20");
+		put(SipConfigManager.LEVEL_METER_PERIOD, "100");
 		put(SipConfigManager.SIP_AUDIO_MODE, "0");
 		put(SipConfigManager.MICRO_SOURCE, "1");
 		put(SipConfigManager.THREAD_COUNT, "0");
@@ -117,6 +121,8 @@ public class PreferencesWrapper {
 		put(SipConfigManager.TLS_PASSWORD, "");
 		put(SipConfigManager.TLS_METHOD, "0");
 		put(SipConfigManager.NETWORK_ROUTES_POLLING, "0");
+		put(SipConfigManager.REGISTRATION_CONCURRENCY, "2");
+		put(SipConfigManager.REGISTRATION_JITTER, "2000");
 		
 		put(SipConfigManager.DSCP_VAL, "24");
         put(SipConfigManager.DSCP_RTP_VAL, "46");
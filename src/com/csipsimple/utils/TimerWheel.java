@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding pjsip timer entries.<br/>
+ * Each level has 64 slots, a level L slot covering 64^L ticks. An entry is
+ * stored on the level of the highest 6 bits group where its expiry tick
+ * differs from the current tick, so insert and cancel are O(1) and the
+ * earliest entry is always in the lowest occupied slot of the lowest
+ * non-empty level.<br/>
+ * This class has no android dependency and is not thread safe : callers must
+ * serialize accesses.
+ */
+public class TimerWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    // 11 * 6 bits is enough to cover the whole long range of ticks
+    private static final int LEVELS = 11;
+
+    private static final class Entry {
+        final int id;
+        final long deadline;
+        final long tick;
+        final long earliness;
+        int level;
+        int slot;
+        Entry prev;
+        Entry next;
+
+        Entry(int id, long deadline, long tick, long earliness) {
+            this.id = id;
+            this.deadline = deadline;
+            this.tick = tick;
+            this.earliness = earliness;
+        }
+    }
+
+    private static final Comparator<Entry> DEADLINE_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.deadline < rhs.deadline ? -1 : (lhs.deadline == rhs.deadline ? 0 : 1);
+        }
+    };
+
+    private final long tickMs;
+    private final Entry[][] slots = new Entry[LEVELS][];
+    private final long[] occupied = new long[LEVELS];
+    private final HashMap<Integer, Entry> entries = new HashMap<Integer, Entry>();
+    private long currentTick = -1;
+
+    /**
+     * @param tickMs resolution of the wheel in milliseconds
+     */
+    public TimerWheel(long tickMs) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.tickMs = tickMs;
+    }
+
+    /**
+     * Schedule an entry. If the entry is already scheduled it is rescheduled.
+     *
+     * @param id the pjsip timer entry id
+     * @param now current time in ms
+     * @param delayMs delay before the entry should fire
+     * @param slackMs how early the entry may be fired to be batched with
+     *            another one. It is bounded to a quarter of the delay so
+     *            short timers (retransmissions) are never fired too early.
+     */
+    public void schedule(int id, long now, long delayMs, long slackMs) {
+        cancel(id);
+        if (currentTick < 0 || entries.isEmpty()) {
+            currentTick = now / tickMs;
+        }
+        long deadline = now + Math.max(0, delayMs);
+        long earliness = Math.max(0, Math.min(slackMs, delayMs / 4));
+        // Round up so that an entry is never expired before its deadline
+        Entry entry = new Entry(id, deadline, (deadline + tickMs - 1) / tickMs, earliness);
+        entries.put(id, entry);
+        insert(entry);
+    }
+
+    /**
+     * Cancel a scheduled entry.
+     *
+     * @param id the pjsip timer entry id
+     * @return true if the entry was scheduled
+     */
+    public boolean cancel(int id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    /**
+     * @return the number of scheduled entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        entries.clear();
+        for (int level = 0; level < LEVELS; level++) {
+            slots[level] = null;
+            occupied[level] = 0;
+        }
+        currentTick = -1;
+    }
+
+    /**
+     * @return the deadline of the earliest entry in ms, or -1 if nothing is
+     *         scheduled
+     */
+    public long nextDeadline() {
+        Entry earliest = peekEarliest();
+        return earliest != null ? earliest.deadline : -1;
+    }
+
+    /**
+     * Move the wheel to now and remove entries that must be fired.<br/>
+     * Entries which deadline is passed are removed, then following entries
+     * that are inside their slack window are removed as well so that they
+     * fire in the same pass.
+     *
+     * @param now current time in ms
+     * @param expired list where ids of entries to fire are added, in
+     *            deadline order
+     * @return number of entries added to the list
+     */
+    public int expire(long now, List<Integer> expired) {
+        if (currentTick < 0) {
+            return 0;
+        }
+        List<Entry> fired = new ArrayList<Entry>();
+        advance(now / tickMs, fired);
+        Collections.sort(fired, DEADLINE_COMPARATOR);
+
+        Entry earliest;
+        while ((earliest = peekEarliest()) != null
+                && earliest.deadline - earliest.earliness <= now) {
+            unlink(earliest);
+            fired.add(earliest);
+        }
+        for (Entry entry : fired) {
+            entries.remove(entry.id);
+            expired.add(entry.id);
+        }
+        return fired.size();
+    }
+
+    private void advance(long targetTick, List<Entry> fired) {
+        if (targetTick <= currentTick) {
+            return;
+        }
+        long oldTick = currentTick;
+        currentTick = targetTick;
+        for (int level = LEVELS - 1; level >= 0; level--) {
+            if (occupied[level] == 0) {
+                continue;
+            }
+            int shift = level * SLOT_BITS;
+            // Entries of this level share bits above the level with the old
+            // tick. Slots which range now starts before the target must be
+            // redistributed.
+            int lastSlot;
+            if (highBits(oldTick, level) != highBits(targetTick, level)) {
+                lastSlot = SLOT_MASK;
+            } else {
+                lastSlot = (int) ((targetTick >>> shift) & SLOT_MASK);
+            }
+            long toTreat = occupied[level] & (lastSlot == SLOT_MASK ? -1L : ((1L << (lastSlot + 1)) - 1));
+            while (toTreat != 0) {
+                int slot = Long.numberOfTrailingZeros(toTreat);
+                toTreat &= toTreat - 1;
+                Entry entry = slots[level][slot];
+                slots[level][slot] = null;
+                occupied[level] &= ~(1L << slot);
+                while (entry != null) {
+                    Entry next = entry.next;
+                    entry.prev = null;
+                    entry.next = null;
+                    if (entry.tick <= targetTick) {
+                        fired.add(entry);
+                    } else {
+                        insert(entry);
+                    }
+                    entry = next;
+                }
+            }
+        }
+    }
+
+    private static long highBits(long tick, int level) {
+        int shift = (level + 1) * SLOT_BITS;
+        return shift >= Long.SIZE ? 0 : (tick >>> shift);
+    }
+
+    private Entry peekEarliest() {
+        for (int level = 0; level < LEVELS; level++) {
+            if (occupied[level] != 0) {
+                Entry entry = slots[level][Long.numberOfTrailingZeros(occupied[level])];
+                Entry earliest = entry;
+                while (entry != null) {
+                    if (entry.deadline < earliest.deadline) {
+                        earliest = entry;
+                    }
+                    entry = entry.next;
+                }
+                return earliest;
+            }
+        }
+        return null;
+    }
+
+    private void insert(Entry entry) {
+        long diff = entry.tick ^ currentTick;
+        int level = 0;
+        if (entry.tick > currentTick && diff != 0) {
+            level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / SLOT_BITS;
+        }
+        // Already expired entries go to the current slot of level 0 and
+        // will be picked by the next expire pass
+        long slotTick = entry.tick > currentTick ? entry.tick : currentTick;
+        int slot = (int) ((slotTick >>> (level * SLOT_BITS)) & SLOT_MASK);
+        if (slots[level] == null) {
+            slots[level] = new Entry[SLOTS];
+        }
+        entry.level = level;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = slots[level][slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[level][slot] = entry;
+        occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            slots[entry.level][entry.slot] = entry.next;
+            if (entry.next == null) {
+                occupied[entry.level] &= ~(1L << entry.slot);
+            }
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+}
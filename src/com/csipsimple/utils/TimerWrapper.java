@@ -35,6 +35,7 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.SystemClock;
 
+import com.csipsimple.api.SipConfigManager;
 import com.csipsimple.service.SipService;
 import com.csipsimple.service.SipWakeLock;
 
@@ -50,6 +51,8 @@ public class TimerWrapper extends BroadcastReceiver {
 	
 	private static final String TIMER_ACTION = "com.csipsimple.PJ_TIMER";
 	private static final String EXTRA_TIMER_SCHEME = "timer";
+	// Resolution of the timing wheel
+	private static final long WHEEL_TICK_MS = 10;
 	private SipService service;
 	private AlarmManager alarmManager;
 	private SipWakeLock wakeLock;
@@ -61,7 +64,11 @@ public class TimerWrapper extends BroadcastReceiver {
 	
 	private boolean serviceRegistered = false;
 	
-	private final List<Integer> scheduleEntries = new ArrayList<Integer>();
+	// All pjsip entries are held here, only the earliest one is armed in alarm manager
+	private final TimerWheel wheel = new TimerWheel(WHEEL_TICK_MS);
+	private PendingIntent alarmIntent;
+	private long armedDeadline = -1;
+	private long slackWindow = 0;
 
     private SipTimersExecutor mExecutor;
 	
@@ -80,7 +87,9 @@ public class TimerWrapper extends BroadcastReceiver {
     		service = ctxt;
     		alarmManager = (AlarmManager) service.getSystemService(Context.ALARM_SERVICE);
             wakeLock = new SipWakeLock((PowerManager) ctxt.getSystemService(Context.POWER_SERVICE));
+            alarmIntent = null;
 		}
+		slackWindow = Math.max(0, service.getPrefs().getPreferenceIntegerValue(SipConfigManager.TIMERS_SLACK_WINDOW));
 		if(!serviceRegistered) {
     		IntentFilter filter = new IntentFilter(TIMER_ACTION);
     		filter.addDataScheme(EXTRA_TIMER_SCHEME);
@@ -101,86 +110,75 @@ public class TimerWrapper extends BroadcastReceiver {
 			}
 		}
 		
-		/*
-		List<Integer> keys = getPendingsKeys();
-		//Log.v(THIS_FILE, "In buffer : "+keys);
-		for(Integer key : keys) {
-			int heapId = (key & 0xFFF000) >> 8;
-			int timerId = key & 0x000FFF;
-			doCancel(heapId, timerId);
-		}
-		*/
-		
 		if(wakeLock != null) {
 			wakeLock.reset();
 		}
 		
-		if(alarmManager != null) {
-			for(Integer entryId : scheduleEntries) {
-				alarmManager.cancel(getPendingIntentForTimer(entryId));
-			}
-		}
-		scheduleEntries.clear();
-//		hashOffset ++;
-//		hashOffset = hashOffset % 10;
-	}
-	
-	/*
-	private synchronized List<Integer> getPendingsKeys(){
-		ArrayList<Integer> keys = new ArrayList<Integer>();
-		for(Integer key : pendings.keySet()) {
-			keys.add(key);
+		if(alarmManager != null && armedDeadline >= 0) {
+			alarmManager.cancel(getPendingIntent());
 		}
-		return keys;
+		armedDeadline = -1;
+		wheel.clear();
 	}
-	*/
 
-	private PendingIntent getPendingIntentForTimer(int entryId) {
-		Intent intent = new Intent(TIMER_ACTION);
-		String toSend = EXTRA_TIMER_SCHEME + "://" + Integer.toString(entryId);
-		intent.setData(Uri.parse(toSend));
-		intent.putExtra(EXTRA_TIMER_ENTRY, entryId);
-		return PendingIntent.getBroadcast(service, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+	private PendingIntent getPendingIntent() {
+	    if(alarmIntent == null) {
+    		Intent intent = new Intent(TIMER_ACTION);
+    		intent.setData(Uri.parse(EXTRA_TIMER_SCHEME + "://wheel"));
+    		alarmIntent = PendingIntent.getBroadcast(service, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+	    }
+	    return alarmIntent;
 	}
 	
+	/**
+	 * Arm the single alarm on the earliest deadline of the wheel.<br/>
+	 * An alarm already armed earlier but inside the slack window is kept to
+	 * avoid useless binder calls, the fire pass will re-arm it if needed.
+	 */
+	private synchronized void updateAlarm() {
+	    long nextDeadline = wheel.nextDeadline();
+	    if(nextDeadline < 0) {
+	        if(armedDeadline >= 0) {
+	            Log.v(THIS_FILE, "No more entries, cancel alarm");
+	            alarmManager.cancel(getPendingIntent());
+	            armedDeadline = -1;
+	        }
+	        return;
+	    }
+	    if(armedDeadline >= 0 && armedDeadline <= nextDeadline && nextDeadline - armedDeadline <= slackWindow) {
+	        return;
+	    }
+        Log.v(THIS_FILE, "Arm alarm at " + nextDeadline + " for " + wheel.size() + " entries");
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, nextDeadline, getPendingIntent());
+        armedDeadline = nextDeadline;
+	}
 	
 	private synchronized int doSchedule(int entryId, int intervalMs) {
-		//Log.d(THIS_FILE, "SCHED add " + entryId + " in " + intervalMs);
-		PendingIntent pendingIntent = getPendingIntentForTimer(entryId);
-		
-		// If less than 1 sec, do not wake up -- that's probably stun check so useless to wake up about that
-		//int alarmType = (intervalMs < 1000) ? AlarmManager.ELAPSED_REALTIME : AlarmManager.ELAPSED_REALTIME_WAKEUP;
-		int alarmType = AlarmManager.ELAPSED_REALTIME_WAKEUP;
-		
-		// Cancel previous reg anyway
-		alarmManager.cancel(pendingIntent);
-		scheduleEntries.remove((Integer) entryId);
-		
-		
-		long firstTime = SystemClock.elapsedRealtime();
 		// Clamp min
 		if(intervalMs < 10) {
-			firstTime +=  10;
-		}else {
-			firstTime += intervalMs;
+		    intervalMs = 10;
 		}
-		
-		// Push next
         Log.v(THIS_FILE, "Schedule " + entryId + " in " + intervalMs + "ms");
-		alarmManager.set(alarmType, firstTime, pendingIntent);
-		scheduleEntries.add((Integer) entryId);
+        wheel.schedule(entryId, SystemClock.elapsedRealtime(), intervalMs, slackWindow);
+        updateAlarm();
 		return 1;
 	}
 	
 	private synchronized int doCancel(int entryId) {
         Log.v(THIS_FILE, "Cancel " + entryId );
-		alarmManager.cancel(getPendingIntentForTimer(entryId));
-		scheduleEntries.remove((Integer) entryId);
+		if(wheel.cancel(entryId)) {
+		    updateAlarm();
+		}
 		return 1;
 	}
 	
-	
-	private final static String EXTRA_TIMER_ENTRY = "entry";
+	private synchronized List<Integer> collectExpired() {
+	    // Alarm just fired, it is not armed anymore
+	    armedDeadline = -1;
+	    List<Integer> expired = new ArrayList<Integer>();
+	    wheel.expire(SystemClock.elapsedRealtime(), expired);
+	    return expired;
+	}
 	
 	@Override
 	public void onReceive(Context context, Intent intent) {
@@ -191,15 +189,12 @@ public class TimerWrapper extends BroadcastReceiver {
 				Log.w(THIS_FILE, "Not found singleton");
 				return;
 			}
-			int timerEntry = intent.getIntExtra(EXTRA_TIMER_ENTRY, -1);
-
-            Log.v(THIS_FILE, "Treat " + timerEntry);
-			singleton.treatAlarm(timerEntry);
+			singleton.treatAlarm();
 		}
 	}
 	
-	public void treatAlarm(int entry) {
-		getExecutor().execute(new TimerJob(entry));
+	public void treatAlarm() {
+		getExecutor().execute(new TimerJob());
 	}
 	
 	//private final Handler handler = new Handler();
@@ -287,37 +282,30 @@ public class TimerWrapper extends BroadcastReceiver {
     }
 
 	private class TimerJob implements Runnable {
-		private final int entryId;
 		
-		public TimerJob(int anEntry) {
-			entryId = anEntry;
+		public TimerJob() {
 			wakeLock.acquire(this);
 		}
 		
 		@Override
 		public void run() {
-			// From now, the timer can't be cancelled anymore
-			Log.v(THIS_FILE, "FIRE START " + entryId);
+			// From now, the timers can't be cancelled anymore
 			try {
-			    boolean doFire = false;
-			    synchronized (TimerWrapper.this) {
-	                if(scheduleEntries.contains(entryId)) {
-	                    scheduleEntries.remove((Integer) entryId);
-	                    doFire = true;
-	                }
-                }
-			    if(doFire) {
-			        pjsua.pj_timer_fire(entryId);
-			    }else {
-			        Log.w(THIS_FILE, "Fire from old run " + entryId);
+			    List<Integer> expired = collectExpired();
+			    Log.v(THIS_FILE, "FIRE START " + expired);
+			    for(Integer entryId : expired) {
+			        try {
+			            pjsua.pj_timer_fire(entryId);
+			        }catch(Exception e) {
+			            Log.e(THIS_FILE, "Native error ", e);
+			        }
 			    }
-			}catch(Exception e) {
-				Log.e(THIS_FILE, "Native error ", e);
+			    Log.v(THIS_FILE, "FIRE DONE " + expired);
 			}finally {
+			    // Arm for next entries, including the ones re-scheduled by fired callbacks
+			    updateAlarm();
 				wakeLock.release(this);
 			}
-			Log.v(THIS_FILE, "FIRE DONE " + entryId);
-			
 		}
 	}
 
@@ -307,6 +307,11 @@ public class ContactsUtils3 extends ContactsWrapper {
         return callerInfo;
     }
 
+    @Override
+    public Uri getContactsChangesUri() {
+        return Contacts.CONTENT_URI;
+    }
+
 
     @Override
     public Cursor getContactsPhones(Context ctxt) {
@@ -62,7 +62,10 @@ import com.csipsimple.utils.PreferencesProviderWrapper;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @TargetApi(5)
 public class ContactsUtils5 extends ContactsWrapper {
@@ -395,12 +398,12 @@ public class ContactsUtils5 extends ContactsWrapper {
     }
     
 
-    @Override
-    public CallerInfo findCallerInfoForUri(Context ctxt, String sipUri) {
-        CallerInfo callerInfo = new CallerInfo();
-        String[] projection;
+    // Max number of uris or numbers per batch query, sqlite limits args to 999
+    private static final int MAX_URIS_PER_QUERY = 100;
+
+    private String[] getSipUriProjection() {
         if (Compatibility.isCompatible(11)) {
-            projection = new String[] {
+            return new String[] {
                     Data._ID,
                     Data.CONTACT_ID,
                     Data.DATA1,
@@ -410,21 +413,19 @@ public class ContactsUtils5 extends ContactsWrapper {
                     Data.LOOKUP_KEY,
                     Data.PHOTO_URI
             };
-        } else {
-            projection = new String[] {
-                    Data._ID,
-                    Data.CONTACT_ID,
-                    Data.DATA1,
-                    Data.DISPLAY_NAME,
-                    Data.PHOTO_ID,
-                    Data.CUSTOM_RINGTONE,
-                    Data.LOOKUP_KEY
-            };
         }
-        
-
-        Uri uri = Data.CONTENT_URI;
+        return new String[] {
+                Data._ID,
+                Data.CONTACT_ID,
+                Data.DATA1,
+                Data.DISPLAY_NAME,
+                Data.PHOTO_ID,
+                Data.CUSTOM_RINGTONE,
+                Data.LOOKUP_KEY
+        };
+    }
 
+    private String getSipUriSelection() {
         // Has phone number
         String whereSipUriClause = "(" + Data.MIMETYPE + "='" + CommonDataKinds.Im.CONTENT_ITEM_TYPE + "' "
                 + " AND " + CommonDataKinds.Im.PROTOCOL + "=" + CommonDataKinds.Im.PROTOCOL_CUSTOM
@@ -441,12 +442,61 @@ public class ContactsUtils5 extends ContactsWrapper {
                     + CommonDataKinds.SipAddress.CONTENT_ITEM_TYPE + "'";
         }
         
-        String query = Contacts.DISPLAY_NAME + " IS NOT NULL "
-                + " AND (" + whereSipUriClause + ") AND " + Data.DATA1 + "=?";
-        
+        return Contacts.DISPLAY_NAME + " IS NOT NULL "
+                + " AND (" + whereSipUriClause + ")";
+    }
 
-        Cursor cursor = ctxt.getContentResolver().query(uri,
-                projection, query,
+    private CallerInfo getCallerInfoFromSipData(Cursor cursor, String sipUri) {
+        CallerInfo callerInfo = new CallerInfo();
+        ContentValues cv = new ContentValues();
+        DatabaseUtils.cursorRowToContentValues(cursor, cv);
+        callerInfo.contactExists = true;
+        if (cv.containsKey(Data.DISPLAY_NAME)) {
+            callerInfo.name = cv.getAsString(Data.DISPLAY_NAME);
+        }
+
+        callerInfo.phoneNumber = sipUri;
+
+        callerInfo.numberLabel = "sip";
+        callerInfo.phoneLabel = "sip";
+
+        if (cv.containsKey(Data.CONTACT_ID)) {
+            callerInfo.personId = cv.getAsLong(Data.CONTACT_ID);
+            
+            callerInfo.contactContentUri = ContentUris.withAppendedId(
+                    Contacts.CONTENT_URI, callerInfo.personId);
+        }
+
+        if (cv.containsKey(Data.CUSTOM_RINGTONE)) {
+            String cRt = cv.getAsString(Data.CUSTOM_RINGTONE);
+            if(!TextUtils.isEmpty(cRt)) {
+                callerInfo.contactRingtoneUri = Uri.parse(cRt);
+            }
+        }
+
+        if (cv.containsKey(Data.PHOTO_ID) && cv.getAsLong(Data.PHOTO_ID) != null) {
+            callerInfo.photoId = cv.getAsLong(Data.PHOTO_ID);
+        }
+
+        if (cv.containsKey(Data.PHOTO_URI)) {
+            String cPu = cv.getAsString(Data.PHOTO_URI);
+            if(!TextUtils.isEmpty(cPu)) {
+                callerInfo.photoUri = Uri.parse(cPu);
+            }
+        }
+
+        if (callerInfo.name != null && callerInfo.name.length() == 0) {
+            callerInfo.name = null;
+        }
+        return callerInfo;
+    }
+
+    @Override
+    public CallerInfo findCallerInfoForUri(Context ctxt, String sipUri) {
+        CallerInfo callerInfo = new CallerInfo();
+
+        Cursor cursor = ctxt.getContentResolver().query(Data.CONTENT_URI,
+                getSipUriProjection(), getSipUriSelection() + " AND " + Data.DATA1 + "=?",
                 new String[] {sipUri}, 
                 Data.DISPLAY_NAME + " ASC");
         
@@ -455,48 +505,96 @@ public class ContactsUtils5 extends ContactsWrapper {
             try {
                 if (cursor.getCount() > 0) {
                     cursor.moveToFirst();
+                    callerInfo = getCallerInfoFromSipData(cursor, sipUri);
+                }
+            } catch (Exception e) {
+                Log.e(THIS_FILE, "Exception while retrieving cursor infos", e);
+            } finally {
+                cursor.close();
+            }
+        }
+        
+        
+        return callerInfo;
+    }
 
-                    ContentValues cv = new ContentValues();
-                    DatabaseUtils.cursorRowToContentValues(cursor, cv);
-                    callerInfo.contactExists = true;
-                    if (cv.containsKey(Data.DISPLAY_NAME)) {
-                        callerInfo.name = cv.getAsString(Data.DISPLAY_NAME);
-                    }
-
-                    callerInfo.phoneNumber = sipUri;
-
-                    callerInfo.numberLabel = "sip";
-                    callerInfo.phoneLabel = "sip";
-
-                    if (cv.containsKey(Data.CONTACT_ID)) {
-                        callerInfo.personId = cv.getAsLong(Data.CONTACT_ID);
-                        
-                        callerInfo.contactContentUri = ContentUris.withAppendedId(
-                                Contacts.CONTENT_URI, callerInfo.personId);
-                    }
-
-                    if (cv.containsKey(Data.CUSTOM_RINGTONE)) {
-                        String cRt = cv.getAsString(Data.CUSTOM_RINGTONE);
-                        if(!TextUtils.isEmpty(cRt)) {
-                            callerInfo.contactRingtoneUri = Uri.parse(cRt);
-                        }
-                    }
-
-                    if (cv.containsKey(Data.PHOTO_ID) && cv.getAsLong(Data.PHOTO_ID) != null) {
-                        callerInfo.photoId = cv.getAsLong(Data.PHOTO_ID);
+    @Override
+    public Map<String, CallerInfo> findCallerInfosForUris(Context ctxt, Collection<String> sipUris) {
+        Map<String, CallerInfo> callerInfos = new HashMap<String, CallerInfo>();
+        String[] projection = getSipUriProjection();
+        String selection = getSipUriSelection();
+        List<String> uris = new ArrayList<String>(sipUris);
+        for (int start = 0; start < uris.size(); start += MAX_URIS_PER_QUERY) {
+            List<String> chunk = uris.subList(start, Math.min(uris.size(), start + MAX_URIS_PER_QUERY));
+            StringBuilder inClause = new StringBuilder();
+            for (int i = 0; i < chunk.size(); i++) {
+                inClause.append(i == 0 ? "?" : ",?");
+            }
+            Cursor cursor = ctxt.getContentResolver().query(Data.CONTENT_URI,
+                    projection, selection + " AND " + Data.DATA1 + " IN (" + inClause + ")",
+                    chunk.toArray(new String[chunk.size()]),
+                    Data.DISPLAY_NAME + " ASC");
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                int uriIndex = cursor.getColumnIndex(Data.DATA1);
+                while (cursor.moveToNext()) {
+                    String sipUri = cursor.getString(uriIndex);
+                    // Keep first by display name, as the single uri lookup
+                    if (sipUri != null && !callerInfos.containsKey(sipUri)) {
+                        callerInfos.put(sipUri, getCallerInfoFromSipData(cursor, sipUri));
                     }
+                }
+            } catch (Exception e) {
+                Log.e(THIS_FILE, "Exception while retrieving cursor infos", e);
+            } finally {
+                cursor.close();
+            }
+        }
+        return callerInfos;
+    }
 
-                    if (cv.containsKey(Data.PHOTO_URI)) {
-                        String cPu = cv.getAsString(Data.PHOTO_URI);
-                        if(!TextUtils.isEmpty(cPu)) {
-                            callerInfo.photoUri = Uri.parse(cPu);
-                        }
+    @Override
+    public Map<String, CallerInfo> findCallerInfosForNumbers(Context ctxt, Collection<String> numbers) {
+        Map<String, CallerInfo> callerInfos = new HashMap<String, CallerInfo>();
+        // Normalized numbers are only there since API 16
+        boolean useNormalized = Compatibility.isCompatible(16);
+        String[] projection = getPhoneProjection(useNormalized);
+        List<String> numbersList = new ArrayList<String>(numbers);
+        for (int start = 0; start < numbersList.size(); start += MAX_URIS_PER_QUERY) {
+            List<String> chunk = numbersList.subList(start, Math.min(numbersList.size(), start + MAX_URIS_PER_QUERY));
+            StringBuilder inClause = new StringBuilder();
+            for (int i = 0; i < chunk.size(); i++) {
+                inClause.append(i == 0 ? "?" : ",?");
+            }
+            String selection = Data.MIMETYPE + "='" + CommonDataKinds.Phone.CONTENT_ITEM_TYPE + "'"
+                    + " AND (" + CommonDataKinds.Phone.NUMBER + " IN (" + inClause + ")";
+            List<String> args = new ArrayList<String>(chunk);
+            if (useNormalized) {
+                selection += " OR " + CommonDataKinds.Phone.NORMALIZED_NUMBER + " IN (" + inClause + ")";
+                args.addAll(chunk);
+            }
+            selection += ")";
+            Cursor cursor = ctxt.getContentResolver().query(Data.CONTENT_URI,
+                    projection, selection, args.toArray(new String[args.size()]),
+                    Data.DISPLAY_NAME + " ASC");
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                int numberIndex = cursor.getColumnIndex(CommonDataKinds.Phone.NUMBER);
+                int normalizedIndex = cursor.getColumnIndex(CommonDataKinds.Phone.NORMALIZED_NUMBER);
+                while (cursor.moveToNext()) {
+                    // Give the row back to the number it was found for
+                    String number = cursor.getString(numberIndex);
+                    if (!chunk.contains(number) && normalizedIndex >= 0) {
+                        number = cursor.getString(normalizedIndex);
                     }
-
-                    if (callerInfo.name != null && callerInfo.name.length() == 0) {
-                        callerInfo.name = null;
+                    // Keep first by display name
+                    if (number != null && chunk.contains(number) && !callerInfos.containsKey(number)) {
+                        callerInfos.put(number, getCallerInfoFromPhoneData(ctxt, cursor));
                     }
-
                 }
             } catch (Exception e) {
                 Log.e(THIS_FILE, "Exception while retrieving cursor infos", e);
@@ -504,8 +602,77 @@ public class ContactsUtils5 extends ContactsWrapper {
                 cursor.close();
             }
         }
-        
-        
+        return callerInfos;
+    }
+
+    private String[] getPhoneProjection(boolean useNormalized) {
+        List<String> projection = new ArrayList<String>();
+        projection.add(Data.CONTACT_ID);
+        projection.add(Data.DISPLAY_NAME);
+        projection.add(CommonDataKinds.Phone.NUMBER);
+        projection.add(CommonDataKinds.Phone.TYPE);
+        projection.add(CommonDataKinds.Phone.LABEL);
+        projection.add(Data.PHOTO_ID);
+        projection.add(Data.CUSTOM_RINGTONE);
+        projection.add(Data.LOOKUP_KEY);
+        if (Compatibility.isCompatible(11)) {
+            projection.add(Data.PHOTO_URI);
+        }
+        if (useNormalized) {
+            projection.add(CommonDataKinds.Phone.NORMALIZED_NUMBER);
+        }
+        return projection.toArray(new String[projection.size()]);
+    }
+
+    /**
+     * Same caller info as {@link #findCallerInfo(Context, String)} gives,
+     * from a phone data row
+     */
+    private CallerInfo getCallerInfoFromPhoneData(Context ctxt, Cursor cursor) {
+        CallerInfo callerInfo = new CallerInfo();
+        ContentValues cv = new ContentValues();
+        DatabaseUtils.cursorRowToContentValues(cursor, cv);
+        callerInfo.contactExists = true;
+        if (cv.containsKey(Data.DISPLAY_NAME)) {
+            callerInfo.name = cv.getAsString(Data.DISPLAY_NAME);
+        }
+
+        callerInfo.phoneNumber = cv.getAsString(CommonDataKinds.Phone.NUMBER);
+
+        if (cv.containsKey(CommonDataKinds.Phone.TYPE) && cv.containsKey(CommonDataKinds.Phone.LABEL)) {
+            callerInfo.numberType = cv.getAsInteger(CommonDataKinds.Phone.TYPE);
+            callerInfo.numberLabel = cv.getAsString(CommonDataKinds.Phone.LABEL);
+            callerInfo.phoneLabel = (String) CommonDataKinds.Phone.getTypeLabel(
+                    ctxt.getResources(), callerInfo.numberType, callerInfo.numberLabel);
+        }
+
+        if (cv.containsKey(Data.CONTACT_ID)) {
+            callerInfo.personId = cv.getAsLong(Data.CONTACT_ID);
+            callerInfo.contactContentUri = ContentUris.withAppendedId(
+                    Contacts.CONTENT_URI, callerInfo.personId);
+        }
+
+        if (cv.containsKey(Data.CUSTOM_RINGTONE)) {
+            String cRt = cv.getAsString(Data.CUSTOM_RINGTONE);
+            if(!TextUtils.isEmpty(cRt)) {
+                callerInfo.contactRingtoneUri = Uri.parse(cRt);
+            }
+        }
+
+        if (cv.containsKey(Data.PHOTO_ID) && cv.getAsLong(Data.PHOTO_ID) != null) {
+            callerInfo.photoId = cv.getAsLong(Data.PHOTO_ID);
+        }
+
+        if (cv.containsKey(Data.PHOTO_URI)) {
+            String cPu = cv.getAsString(Data.PHOTO_URI);
+            if(!TextUtils.isEmpty(cPu)) {
+                callerInfo.photoUri = Uri.parse(cPu);
+            }
+        }
+
+        if (callerInfo.name != null && callerInfo.name.length() == 0) {
+            callerInfo.name = null;
+        }
         return callerInfo;
     }
 
@@ -515,6 +682,11 @@ public class ContactsUtils5 extends ContactsWrapper {
         return callerInfo;
     }
 
+    @Override
+    public Uri getContactsChangesUri() {
+        return ContactsContract.AUTHORITY_URI;
+    }
+
     @Override
     public Cursor getContactsPhones(Context ctxt) {
 
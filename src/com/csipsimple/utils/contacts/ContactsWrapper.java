@@ -38,7 +38,10 @@ import com.csipsimple.models.CallerInfo;
 import com.csipsimple.utils.Compatibility;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public abstract class ContactsWrapper {
     private static ContactsWrapper instance;
@@ -390,11 +393,46 @@ public abstract class ContactsWrapper {
      */
     public abstract CallerInfo findCallerInfoForUri(Context ctxt, String sipUri);
     
+    /**
+     * Get the information of several sip uri callers at once
+     * @param ctxt The application context
+     * @param sipUris The sip uris to search
+     * @return Caller information of uris matching a contact, by sip uri
+     */
+    public Map<String, CallerInfo> findCallerInfosForUris(Context ctxt, Collection<String> sipUris) {
+        Map<String, CallerInfo> callerInfos = new HashMap<String, CallerInfo>();
+        for (String sipUri : sipUris) {
+            CallerInfo callerInfo = findCallerInfoForUri(ctxt, sipUri);
+            if (callerInfo != null && callerInfo.contactExists) {
+                callerInfos.put(sipUri, callerInfo);
+            }
+        }
+        return callerInfos;
+    }
+    
+    /**
+     * Get the information of several phone number callers at once. Numbers
+     * are matched as stored, so numbers not found here must still be searched
+     * with {@link #findCallerInfo(Context, String)}.
+     * @param ctxt The application context
+     * @param numbers The phone numbers to search
+     * @return Caller information of numbers matching a contact, by number
+     */
+    public Map<String, CallerInfo> findCallerInfosForNumbers(Context ctxt, Collection<String> numbers) {
+        return new HashMap<String, CallerInfo>();
+    }
+    
     /**
      * Get self information based. This works better in ICS where it's formalized
      * @param ctxt The application context
      * @return Caller information of the current application user
      */
     public abstract CallerInfo findSelfInfo(Context ctxt);
+    
+    /**
+     * Get the uri to observe to be notified of any change of contacts
+     * @return The uri, to observe with descendants
+     */
+    public abstract Uri getContactsChangesUri();
 
 }
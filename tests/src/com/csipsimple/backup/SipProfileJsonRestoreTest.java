@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.backup;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.csipsimple.api.SipManager;
+import com.csipsimple.api.SipProfile;
+import com.csipsimple.models.Filter;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Restore of 50 accounts with 2000 filters through
+ * {@link SipProfileJson#restoreSipAccounts(Context, JSONArray)}.<br/>
+ * Logs the time taken and checks that all accounts are announced by a single
+ * {@link SipManager#ACTION_SIP_ACCOUNT_CHANGED}.
+ * <p>
+ * Runs against the provider of the installed application : run it with the
+ * sip service stopped. Accounts and filters present before are restored
+ * after.
+ * <pre>
+ * cd tests ; ant debug install
+ * adb shell am instrument -w -e class com.csipsimple.backup.SipProfileJsonRestoreTest com.csipsimple.tests/android.test.InstrumentationTestRunner
+ * </pre>
+ */
+public class SipProfileJsonRestoreTest extends AndroidTestCase {
+
+    private static final String THIS_FILE = "SipProfileJsonRestoreTest";
+
+    private static final int ACCOUNTS = 50;
+    private static final int FILTERS_PER_ACCOUNT = 40;
+    // Longer than the notification window of the provider
+    private static final long SETTLE_DELAY = 1000;
+    // Milliseconds, not seconds
+    private static final long MAX_RESTORE_TIME = 1000;
+
+    private JSONArray savedAccounts;
+
+    private final List<long[]> broadcasts = new ArrayList<long[]>();
+
+    private final BroadcastReceiver accountsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            long[] ids = intent.getLongArrayExtra(SipManager.EXTRA_ACCOUNT_IDS);
+            synchronized (broadcasts) {
+                broadcasts.add(ids != null ? ids : new long[0]);
+            }
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        savedAccounts = SipProfileJson.serializeSipProfiles(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SipProfileJson.restoreSipAccounts(getContext(), savedAccounts);
+        super.tearDown();
+    }
+
+    public void testRestoreFiftyAccounts() throws Exception {
+        JSONArray accounts = buildBackup();
+        // Let notifications of the backup creation go
+        SystemClock.sleep(SETTLE_DELAY);
+
+        getContext().registerReceiver(accountsReceiver,
+                new IntentFilter(SipManager.ACTION_SIP_ACCOUNT_CHANGED));
+        try {
+            long start = SystemClock.elapsedRealtime();
+            SipProfileJson.restoreSipAccounts(getContext(), accounts);
+            long duration = SystemClock.elapsedRealtime() - start;
+            SystemClock.sleep(SETTLE_DELAY);
+
+            Log.i(THIS_FILE, "Restored " + ACCOUNTS + " accounts and "
+                    + (ACCOUNTS * FILTERS_PER_ACCOUNT) + " filters in " + duration + " ms");
+            synchronized (broadcasts) {
+                assertEquals("Account change broadcasts", 1, broadcasts.size());
+                assertEquals("Accounts in broadcast", ACCOUNTS, broadcasts.get(0).length);
+            }
+            assertTrue("Restore took " + duration + " ms", duration < MAX_RESTORE_TIME);
+        } finally {
+            getContext().unregisterReceiver(accountsReceiver);
+        }
+    }
+
+    /**
+     * Store the accounts and filters and serialize them as a backup does.
+     */
+    private JSONArray buildBackup() {
+        ContentValues[] accountsCv = new ContentValues[ACCOUNTS];
+        ContentValues[] filtersCv = new ContentValues[ACCOUNTS * FILTERS_PER_ACCOUNT];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            long id = i + 1;
+            ContentValues cv = new ContentValues();
+            cv.put(SipProfile.FIELD_ID, id);
+            cv.put(SipProfile.FIELD_DISPLAY_NAME, "Restore " + id);
+            cv.put(SipProfile.FIELD_WIZARD, "EXPERT");
+            cv.put(SipProfile.FIELD_ACC_ID, "<sip:user" + id + "@example.com>");
+            cv.put(SipProfile.FIELD_REG_URI, "sip:example.com");
+            // Not registered if the service is running anyway
+            cv.put(SipProfile.FIELD_ACTIVE, 0);
+            accountsCv[i] = cv;
+            for (int j = 0; j < FILTERS_PER_ACCOUNT; j++) {
+                ContentValues filter = new ContentValues();
+                filter.put(Filter.FIELD_ACCOUNT, id);
+                filter.put(Filter.FIELD_PRIORITY, j);
+                filter.put(Filter.FIELD_ACTION, Filter.ACTION_CANT_CALL);
+                filter.put(Filter.FIELD_MATCHES, "^\\Q00" + (100 + j) + "\\E(.*)$");
+                filtersCv[i * FILTERS_PER_ACCOUNT + j] = filter;
+            }
+        }
+        getContext().getContentResolver().delete(SipProfile.ACCOUNT_URI, "1", null);
+        getContext().getContentResolver().delete(SipManager.FILTER_URI, "1", null);
+        getContext().getContentResolver().bulkInsert(SipProfile.ACCOUNT_URI, accountsCv);
+        getContext().getContentResolver().bulkInsert(SipManager.FILTER_URI, filtersCv);
+        return SipProfileJson.serializeSipProfiles(getContext());
+    }
+}
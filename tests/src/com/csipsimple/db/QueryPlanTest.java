@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.provider.CallLog;
+import android.test.AndroidTestCase;
+
+import com.csipsimple.api.SipManager;
+import com.csipsimple.api.SipMessage;
+import com.csipsimple.models.Filter;
+
+/**
+ * Query plans of the hot queries of {@link DBProvider}, on a database created
+ * in memory with the schema of {@link DBAdapter.DatabaseHelper}.<br/>
+ * None of them may scan a table without an index, which is what happens when
+ * an index of {@link DBAdapter.DatabaseHelper} is dropped or no longer
+ * matches its query.
+ */
+public class QueryPlanTest extends AndroidTestCase {
+
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+        new DBAdapter.DatabaseHelper(getContext()).onCreate(db);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    /**
+     * As {@link Filter#getFiltersCursorForAccount(android.content.Context, long)}
+     */
+    public void testFiltersForAccount() {
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, SipManager.FILTERS_TABLE_NAME,
+                Filter.FULL_PROJ, Filter.FIELD_ACCOUNT + "=?", null, null, Filter.DEFAULT_ORDER,
+                null), "1");
+    }
+
+    /**
+     * Messages of a conversation
+     */
+    public void testThreadMessages() {
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, SipMessage.MESSAGES_TABLE_NAME,
+                null, DBProvider.MESSAGES_THREAD_SELECTION, null, null,
+                SipMessage.FIELD_DATE + " DESC", null), "sip:a@example.com", "sip:a@example.com");
+    }
+
+    /**
+     * Conversations list
+     */
+    public void testThreads() {
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, MessageThreads.THREADS_TABLE_NAME,
+                MessageThreads.THREADS_PROJECTION, null, null, null,
+                SipMessage.FIELD_DATE + " DESC", null));
+    }
+
+    /**
+     * Call logs list
+     */
+    public void testCallLogs() {
+        assertIndexed(SQLiteQueryBuilder.buildQueryString(false, SipManager.CALLLOGS_TABLE_NAME,
+                null, null, null, null, CallLog.Calls.DATE + " DESC", null));
+    }
+
+    private void assertIndexed(String sql, String... args) {
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailIndex = c.getColumnIndexOrThrow("detail");
+            assertTrue("No plan for " + sql, c.moveToFirst());
+            do {
+                String detail = c.getString(detailIndex);
+                // "SCAN TABLE t" on older sqlite, "SCAN t" on newer ones
+                if (detail.startsWith("SCAN") && !detail.contains(" USING ")) {
+                    fail(detail + " for " + sql);
+                }
+            } while (c.moveToNext());
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.models;
+
+import com.csipsimple.models.Filter.RegExpRepresentation;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Compare the cost of finding the matching rules of a number with the
+ * regexps of the filters, one by one, and with a {@link DialPlan}, for 10,
+ * 100 and 1000 rules.<br/>
+ * Rules are a mix of country prefixes, blocked numbers, suffixes, contained
+ * digits and digits counts, as provisioned dial plans are. Both ways must
+ * find the same rules, the benchmark exits with 1 otherwise.
+ * <p>
+ * Dial plans only use matcher representations, so this runs on the JVM
+ * against the classes of a build. Regexps are built as
+ * {@link Filter#setMatcherRepresentation(RegExpRepresentation)} does.
+ * <pre>
+ * javac -cp bin/classes -d /tmp/bench tests/src/com/csipsimple/models/DialPlanBenchmark.java
+ * java -cp /tmp/bench:bin/classes com.csipsimple.models.DialPlanBenchmark
+ * </pre>
+ */
+public class DialPlanBenchmark {
+
+    private static final int[] RULES_COUNTS = {
+            10, 100, 1000
+    };
+    private static final int NUMBERS = 2000;
+    private static final int ROUNDS = 20;
+
+    private static final int[] ACTIONS = {
+            Filter.ACTION_CANT_CALL, Filter.ACTION_CAN_CALL, Filter.ACTION_AUTO_ANSWER,
+            Filter.ACTION_DIRECTLY_CALL
+    };
+
+    public static void main(String[] args) {
+        boolean valid = true;
+        System.out.println("rules\tbuild ms\tregexp ns/number\tdial plan ns/number");
+        for (int count : RULES_COUNTS) {
+            Random random = new Random(count);
+            RegExpRepresentation[] matchers = buildMatchers(count, random);
+            int[] actions = new int[count];
+            Pattern[] patterns = new Pattern[count];
+            for (int i = 0; i < count; i++) {
+                // Mostly blocking rules, so that walks go far in the list
+                actions[i] = random.nextInt(10) < 7 ? Filter.ACTION_CANT_CALL
+                        : ACTIONS[random.nextInt(ACTIONS.length)];
+                patterns[i] = Pattern.compile(getPattern(matchers[i]));
+            }
+            String[] numbers = buildNumbers(matchers, random);
+
+            long start = System.nanoTime();
+            DialPlan dialPlan = new DialPlan(matchers, actions, 0, count);
+            long buildNs = System.nanoTime() - start;
+
+            DialPlan.Match match = new DialPlan.Match();
+            DialPlan.Match expected = new DialPlan.Match();
+            for (String number : numbers) {
+                dialPlan.lookup(number, match);
+                lookupRegexp(actions, patterns, number, expected);
+                valid &= same(match, expected);
+            }
+
+            long regexpNs = 0;
+            long dialPlanNs = 0;
+            // First rounds warm up the JIT
+            for (int round = 0; round < ROUNDS; round++) {
+                start = System.nanoTime();
+                for (String number : numbers) {
+                    lookupRegexp(actions, patterns, number, expected);
+                }
+                long regexpRound = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (String number : numbers) {
+                    dialPlan.lookup(number, match);
+                }
+                long dialPlanRound = System.nanoTime() - start;
+                if (round >= ROUNDS / 2) {
+                    regexpNs += regexpRound;
+                    dialPlanNs += dialPlanRound;
+                }
+            }
+            long lookups = (long) NUMBERS * (ROUNDS - ROUNDS / 2);
+            System.out.println(count + "\t" + (buildNs / 1000000) + "\t\t"
+                    + (regexpNs / lookups) + "\t\t\t" + (dialPlanNs / lookups));
+        }
+        if (!valid) {
+            System.out.println("Dial plan and regexps do not find the same rules");
+            System.exit(1);
+        }
+    }
+
+    private static RegExpRepresentation[] buildMatchers(int count, Random random) {
+        RegExpRepresentation[] matchers = new RegExpRepresentation[count];
+        for (int i = 0; i < count; i++) {
+            RegExpRepresentation repr = new RegExpRepresentation();
+            switch (i % 5) {
+                case 0:
+                    repr.type = Filter.MATCHER_STARTS;
+                    repr.fieldContent = "00" + (1 + random.nextInt(999));
+                    break;
+                case 1:
+                    repr.type = Filter.MATCHER_IS_EXACTLY;
+                    repr.fieldContent = digits(random, 10);
+                    break;
+                case 2:
+                    repr.type = Filter.MATCHER_ENDS;
+                    repr.fieldContent = digits(random, 4);
+                    break;
+                case 3:
+                    repr.type = Filter.MATCHER_CONTAINS;
+                    repr.fieldContent = digits(random, 5);
+                    break;
+                default:
+                    repr.type = Filter.MATCHER_HAS_N_DIGIT;
+                    repr.fieldContent = Integer.toString(3 + random.nextInt(4));
+                    break;
+            }
+            matchers[i] = repr;
+        }
+        return matchers;
+    }
+
+    /**
+     * Same regexps as {@link Filter#setMatcherRepresentation(RegExpRepresentation)}
+     */
+    private static String getPattern(RegExpRepresentation repr) {
+        switch (repr.type) {
+            case Filter.MATCHER_STARTS:
+                return "^" + Pattern.quote(repr.fieldContent) + "(.*)$";
+            case Filter.MATCHER_ENDS:
+                return "^(.*)" + Pattern.quote(repr.fieldContent) + "$";
+            case Filter.MATCHER_CONTAINS:
+                return "^(.*)" + Pattern.quote(repr.fieldContent) + "(.*)$";
+            case Filter.MATCHER_HAS_N_DIGIT:
+                return "^(\\d{" + repr.fieldContent + "})$";
+            default:
+                return "^(" + Pattern.quote(repr.fieldContent) + ")$";
+        }
+    }
+
+    private static String[] buildNumbers(RegExpRepresentation[] matchers, Random random) {
+        String[] numbers = new String[NUMBERS];
+        for (int i = 0; i < NUMBERS; i++) {
+            if (i % 4 == 0) {
+                // Some numbers hit exact rules
+                RegExpRepresentation repr = matchers[random.nextInt(matchers.length)];
+                if (repr.type == Filter.MATCHER_IS_EXACTLY) {
+                    numbers[i] = repr.fieldContent;
+                    continue;
+                }
+            }
+            numbers[i] = (random.nextBoolean() ? "00" : "0") + digits(random, 8 + random.nextInt(4));
+        }
+        return numbers;
+    }
+
+    private static String digits(Random random, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append((char) ('0' + random.nextInt(10)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * What filters did before dial plans : test each regexp in order until a
+     * rule stops processing.
+     */
+    private static void lookupRegexp(int[] actions, Pattern[] patterns, String number,
+            DialPlan.Match match) {
+        match.stop = match.cantCall = match.autoAnswer = DialPlan.NO_RULE;
+        for (int i = 0; i < actions.length; i++) {
+            if (!patterns[i].matcher(number).matches()) {
+                continue;
+            }
+            switch (actions[i]) {
+                case Filter.ACTION_CANT_CALL:
+                    match.cantCall = Math.min(match.cantCall, i);
+                    break;
+                case Filter.ACTION_AUTO_ANSWER:
+                    match.autoAnswer = Math.min(match.autoAnswer, i);
+                    break;
+                default:
+                    match.stop = i;
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Only rules before the stopping one matter, the dial plan gives later
+     * ones too.
+     */
+    private static boolean same(DialPlan.Match match, DialPlan.Match expected) {
+        return match.stop == expected.stop
+                && Math.min(match.cantCall, match.stop) == Math.min(expected.cantCall, expected.stop)
+                && Math.min(match.autoAnswer, match.stop) == Math.min(expected.autoAnswer,
+                        expected.stop);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.service.receiver;
+
+import android.test.InstrumentationTestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * {@link RouteTable} against route files recorded from devices, in the
+ * assets/routes folder of the tests.
+ */
+public class RouteTableTest extends InstrumentationTestCase {
+
+    private RouteTable load(String fixture) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                getInstrumentation().getContext().getAssets().open("routes/" + fixture)));
+        try {
+            return RouteTable.parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testSameFileIsEqual() throws IOException {
+        assertEquals(load("base.txt"), load("base.txt"));
+        assertFalse(RouteTable.EMPTY.equals(load("base.txt")));
+    }
+
+    public void testReorderedLinesAreEqual() throws IOException {
+        assertEquals(load("base.txt"), load("reordered.txt"));
+    }
+
+    public void testUsageAndRefCountAreIgnored() throws IOException {
+        assertEquals(load("base.txt"), load("counters.txt"));
+    }
+
+    public void testHostAndSmallSubnetRoutesAreIgnored() throws IOException {
+        // Adds a host route and a /27 route to base
+        assertEquals(load("base.txt"), load("small_routes.txt"));
+    }
+
+    public void testGatewayChangeIsNotEqual() throws IOException {
+        assertFalse(load("base.txt").equals(load("gateway.txt")));
+    }
+
+    public void testMetricChangeIsNotEqual() throws IOException {
+        assertFalse(load("base.txt").equals(load("metric.txt")));
+    }
+
+    public void testMalformedLinesAreSkipped() throws IOException {
+        // Adds a truncated line, a line with invalid hex and an empty line
+        assertEquals(load("base.txt"), load("malformed.txt"));
+    }
+}
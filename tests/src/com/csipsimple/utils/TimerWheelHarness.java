@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2010-2012 Regis Montoya (aka r3gis - www.r3gis.fr)
+ * This file is part of CSipSimple.
+ *
+ *  CSipSimple is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *  If you own a pjsip commercial license you can also redistribute it
+ *  and/or modify it under the terms of the GNU Lesser General Public License
+ *  as an android library.
+ *
+ *  CSipSimple is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with CSipSimple.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.csipsimple.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measure the wake ups per hour of {@link TimerWheel} for a synthetic
+ * schedule of 20 accounts, as {@link TimerWrapper} would arm the alarm.<br/>
+ * Each account has a keep alive, a registration refresh and, after each
+ * refresh, a transaction timer cancelled when the answer comes. Time is
+ * simulated, one hour runs in well under a second.<br/>
+ * Without the wheel each fired timer was its own alarm, so the fired count
+ * is the old number of wake ups.
+ * <p>
+ * Run on the JVM, TimerWheel has no android dependency :
+ * <pre>
+ * javac -d /tmp/harness src/com/csipsimple/utils/TimerWheel.java tests/src/com/csipsimple/utils/TimerWheelHarness.java
+ * java -cp /tmp/harness com.csipsimple.utils.TimerWheelHarness
+ * </pre>
+ * Exits with 1 if a timer fired before its deadline minus its allowed
+ * earliness, or later than the deadline.
+ */
+public class TimerWheelHarness {
+
+    private static final int ACCOUNTS = 20;
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long TICK_MS = 10;
+
+    // Keep alive intervals, as for udp and tcp transports
+    private static final long[] KEEP_ALIVES = {
+            15000, 40000, 80000
+    };
+    // Registration expirations, refreshed a bit before
+    private static final long[] EXPIRES = {
+            300000, 900000, 1800000, 3600000
+    };
+    // Sip timer F, registration transaction timeout
+    private static final long TRANSACTION_TIMEOUT = 32000;
+    // Time for the registrar to answer
+    private static final long ANSWER_DELAY = 150;
+
+    private static final int KIND_KEEP_ALIVE = 0;
+    private static final int KIND_REFRESH = 1;
+    private static final int KIND_TRANSACTION = 2;
+    private static final int KIND_ANSWER = 3;
+
+    private static final class Timer {
+        final int kind;
+        final long interval;
+        // For an answer, the transaction timer it cancels
+        int transactionId;
+        long deadline;
+        long allowedEarliness;
+
+        Timer(int kind, long interval) {
+            this.kind = kind;
+            this.interval = interval;
+        }
+    }
+
+    private static final class Result {
+        int wakeups;
+        int fired;
+        long maxEarly;
+        boolean valid = true;
+    }
+
+    private final long slack;
+    private final Random random;
+    private final TimerWheel wheel = new TimerWheel(TICK_MS);
+    private final Map<Integer, Timer> timers = new HashMap<Integer, Timer>();
+    private final Result result = new Result();
+    private int nextId = 1;
+
+    private TimerWheelHarness(long aSlack, long seed) {
+        slack = aSlack;
+        random = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        long[] slacks = {
+                0, 250, 1000, 5000
+        };
+        boolean valid = true;
+        System.out.println(ACCOUNTS + " accounts, one hour");
+        System.out.println("slack ms\ttimers fired\twake ups\tmax early ms");
+        for (long slack : slacks) {
+            Result result = new TimerWheelHarness(slack, 42).run();
+            valid &= result.valid;
+            System.out.println(slack + "\t\t" + result.fired + "\t\t" + result.wakeups + "\t\t"
+                    + result.maxEarly);
+        }
+        if (!valid) {
+            System.out.println("A timer fired outside of its window");
+            System.exit(1);
+        }
+    }
+
+    private Result run() {
+        long now = 0;
+        for (int account = 0; account < ACCOUNTS; account++) {
+            // Accounts do not all start at the same time
+            long keepAlive = KEEP_ALIVES[random.nextInt(KEEP_ALIVES.length)];
+            long expires = EXPIRES[random.nextInt(EXPIRES.length)];
+            schedule(new Timer(KIND_KEEP_ALIVE, keepAlive), now,
+                    1 + random.nextInt((int) keepAlive));
+            schedule(new Timer(KIND_REFRESH, expires - expires / 10), now,
+                    1 + random.nextInt((int) expires));
+        }
+
+        List<Integer> expired = new ArrayList<Integer>();
+        while (true) {
+            // The single alarm goes off on the earliest deadline
+            now = wheel.nextDeadline();
+            if (now < 0 || now > HOUR) {
+                break;
+            }
+            result.wakeups++;
+            expired.clear();
+            wheel.expire(now, expired);
+            for (Integer id : expired) {
+                fire(timers.remove(id), now);
+            }
+        }
+        return result;
+    }
+
+    private void fire(Timer timer, long now) {
+        result.fired++;
+        long early = timer.deadline - now;
+        result.maxEarly = Math.max(result.maxEarly, early);
+        if (early > timer.allowedEarliness || now - timer.deadline > TICK_MS) {
+            result.valid = false;
+        }
+        switch (timer.kind) {
+            case KIND_KEEP_ALIVE:
+                schedule(timer, now, timer.interval);
+                break;
+            case KIND_REFRESH:
+                schedule(timer, now, timer.interval);
+                // The REGISTER transaction is started, then answered
+                Timer answer = new Timer(KIND_ANSWER, ANSWER_DELAY);
+                answer.transactionId = schedule(new Timer(KIND_TRANSACTION, TRANSACTION_TIMEOUT),
+                        now, TRANSACTION_TIMEOUT);
+                schedule(answer, now, ANSWER_DELAY);
+                break;
+            case KIND_ANSWER:
+                // Answer received, the transaction timer is cancelled
+                timers.remove(timer.transactionId);
+                wheel.cancel(timer.transactionId);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return id of the timer entry
+     */
+    private int schedule(Timer timer, long now, long delay) {
+        int id = nextId++;
+        timer.deadline = now + delay;
+        // What the wheel is allowed to do, see TimerWheel#schedule
+        timer.allowedEarliness = Math.max(0, Math.min(slack, delay / 4));
+        timers.put(id, timer);
+        wheel.schedule(id, now, delay, slack);
+        return id;
+    }
+}